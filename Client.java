@@ -1,11 +1,43 @@
 import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -16,13 +48,48 @@ import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
 
 public class Client extends JFrame {
+    private static final long PARALLEL_DOWNLOAD_THRESHOLD = 8 * 1024 * 1024;
+    private static final long RECONNECT_BASE_DELAY_MS = 100;
+    private static final long RECONNECT_MAX_DELAY_MS = 30_000;
+    private static final String SESSION_EXPIRED = "Error: Session expired.";
+    // Uploads one /mstore runs at once on a mux connection.
+    private static final int MSTORE_CONCURRENCY = 4;
+
     private JTextArea textArea;
     private JTextField textField;
     private JButton sendButton;
     private JButton disconnectButton;
     private Socket clientSocket;
-    private BufferedReader in;
+    private SocketChannel channel;
+    private InputStream in;
     private PrintWriter out;
+    // Keeps typed commands from being written into the middle of an upload.
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private volatile String handle;
+    private volatile String pendingHandle;
+    // Lets a reconnect take the handle back with /resume (see Server.handleSession).
+    private volatile String sessionToken;
+    private volatile boolean sessionRequested;
+    // Set when the user leaves or disconnects, so the connection is not reopened.
+    private volatile boolean closing;
+    private volatile boolean binary;
+    private volatile boolean compress;
+    // Set when the server takes MuxProtocol: /get and /store then run on streams
+    // of their own, next to chat, instead of holding up the connection.
+    private volatile boolean mux;
+    private final AtomicInteger nextStream = new AtomicInteger(MuxProtocol.FIRST_TRANSFER);
+    private final Map<Integer, MuxDownload> muxDownloads = new ConcurrentHashMap<>();
+    private final Map<Integer, MuxUpload> muxUploads = new ConcurrentHashMap<>();
+    // A /sums reply still being read by the listener thread.
+    private Checksums incomingSums;
+    // A /signature reply still being read by the listener thread, and the files
+    // /sync is waiting for signatures of.
+    private Checksums incomingSignature;
+    private final Set<String> pendingSync = ConcurrentHashMap.newKeySet();
+    // Set with /streams; above 1, large downloads are fetched in parallel ranges.
+    private volatile int downloadStreams = 1;
+    // Files waiting for their /stat reply before a parallel download starts.
+    private final Set<String> pendingParallel = ConcurrentHashMap.newKeySet();
     private boolean connected = false;
     private String serverIp = "127.0.0.1";
     private int serverPort = 12345;
@@ -56,27 +123,60 @@ public class Client extends JFrame {
 
     private void connectToServer(String ip, int port) {
         new Thread(() -> {
-            while (!connected) {
+            int failures = 0;
+            while (!connected && !closing) {
                 try {
-                    clientSocket = new Socket(ip, port);
-                    in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                    channel = SocketChannel.open(new InetSocketAddress(ip, port));
+                    clientSocket = channel.socket();
+                    in = new BufferedInputStream(clientSocket.getInputStream(), 64 * 1024);
                     out = new PrintWriter(clientSocket.getOutputStream(), true);
+
+                    // Servers without compression or the binary protocol answer with
+                    // an error line, in which case that feature simply stays off.
+                    out.println(TransferCompression.NEGOTIATE);
+                    compress = TransferCompression.ACCEPTED.equals(readLine());
+                    out.println(MuxProtocol.NEGOTIATE);
+                    mux = MuxProtocol.ACCEPTED.equals(readLine());
+                    if (!mux) {
+                        out.println(WireProtocol.NEGOTIATE);
+                    }
+                    binary = mux || WireProtocol.ACCEPTED.equals(readLine());
                     connected = true;
                     textArea.append("Connected to the server at " + ip + ":" + port + "\n");
 
                     new Thread(new ServerListener()).start();
+                    if (handle != null) {
+                        // Take the same handle back, with any messages missed in the
+                        // meantime if the session is still held; interrupted
+                        // downloads resume once the server welcomes us back.
+                        pendingHandle = handle;
+                        send(sessionToken != null ? "/resume " + handle + " " + sessionToken : "/register " + handle);
+                    }
                 } catch (IOException e) {
-                    textArea.append("Failed to connect to server, retrying in 10 seconds...\n");
-                    try {   
-                        Thread.sleep(10000); // Wait for 10 seconds before retrying
+                    long delay = reconnectDelay(failures++);
+                    textArea.append("Failed to connect to server, retrying in " + delay + " ms...\n");
+                    try {
+                        Thread.sleep(delay);
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
+                        return;
                     }
                 }
             }
         }).start();
     }
 
+    /**
+     * Exponential backoff with jitter. The first attempt after a lost connection
+     * goes out at once; after each failure the wait doubles, up to
+     * RECONNECT_MAX_DELAY_MS, and a random part of up to half of it is taken off
+     * so clients that lost the same server do not all come back in the same instant.
+     */
+    private static long reconnectDelay(int failures) {
+        long cap = Math.min(RECONNECT_MAX_DELAY_MS, RECONNECT_BASE_DELAY_MS << Math.min(failures, 20));
+        return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+    }
+
     private class SendButtonListener implements ActionListener {
         @Override
         public void actionPerformed(ActionEvent e) {
@@ -88,6 +188,7 @@ public class Client extends JFrame {
         @Override
         public void actionPerformed(ActionEvent e) {
             try {
+                closing = true;
                 disconnect();
             } catch (IOException ioException) {
                 textArea.append("Error disconnecting from server.\n");
@@ -99,16 +200,281 @@ public class Client extends JFrame {
         @Override
         public void run() {
             try {
-                String serverResponse;
-                while ((serverResponse = in.readLine()) != null) {
-                    textArea.append("> " + serverResponse + "\n");
+                if (mux) {
+                    readMuxFrames();
+                } else if (binary) {
+                    readFrames(new DataInputStream(in));
+                } else {
+                    String serverResponse;
+                    while ((serverResponse = readLine()) != null) {
+                        String untagged = serverResponse.substring(tagLength(serverResponse));
+                        if (untagged.startsWith("/file ")) {
+                            String[] parts = untagged.split(" ");
+                            boolean deflated = parts.length == 5 && parts[4].equals(TransferCompression.ENCODING);
+                            receiveFile(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]), deflated);
+                            continue;
+                        }
+                        handleText(serverResponse);
+                    }
                 }
             } catch (IOException e) {
+                // Reconnect below, the same as when the server closes the connection.
+            }
+            connected = false;
+            closeTransfers();
+            if (!closing) {
                 textArea.append("Connection to server lost.\n");
-                connected = false;
-                connectToServer(clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort());
+                connectToServer(serverIp, serverPort);
+            }
+        }
+    }
+
+    private void readFrames(DataInputStream data) throws IOException {
+        while (true) {
+            int length;
+            try {
+                length = data.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            byte opcode = data.readByte();
+            switch (opcode) {
+                case WireProtocol.OP_TEXT:
+                    handleText(readString(data));
+                    break;
+                case WireProtocol.OP_BROADCAST_FROM:
+                    showResponse("Broadcast from " + readString(data) + ": " + readString(data));
+                    break;
+                case WireProtocol.OP_UNICAST_FROM:
+                    showResponse("Message from " + readString(data) + ": " + readString(data));
+                    break;
+                case WireProtocol.OP_FILE:
+                    receiveFile(readString(data), data.readLong(), data.readLong(), false);
+                    break;
+                case WireProtocol.OP_FILE_DEFLATE:
+                    receiveFile(readString(data), data.readLong(), data.readLong(), true);
+                    break;
+                default:
+                    data.skipBytes(length - 1);
+                    break;
+            }
+        }
+    }
+
+    private String readString(DataInputStream data) throws IOException {
+        byte[] bytes = new byte[data.readUnsignedShort()];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads mux frames until the connection closes. Control and chat payloads are
+     * WireProtocol frames; anything else belongs to one of our transfers.
+     */
+    private void readMuxFrames() throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        while (true) {
+            int length;
+            try {
+                length = data.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            int stream = data.readInt();
+            byte type = data.readByte();
+            byte[] payload = new byte[length - (MuxProtocol.HEADER_LENGTH - 4)];
+            data.readFully(payload);
+            if (stream == MuxProtocol.CONTROL || stream == MuxProtocol.CHAT) {
+                readFrames(new DataInputStream(new ByteArrayInputStream(payload)));
+                continue;
+            }
+            MuxUpload upload = muxUploads.get(stream);
+            if (upload != null) {
+                onUploadFrame(stream, upload, type, payload);
+                continue;
+            }
+            MuxDownload download = muxDownloads.get(stream);
+            if (download != null) {
+                onDownloadFrame(stream, download, type, payload);
+            } else if (type == MuxProtocol.OPEN && stream >= MuxProtocol.FIRST_SERVER_TRANSFER) {
+                // One of the files of an /mget.
+                muxDownloads.put(stream, new MuxDownload());
+            }
+        }
+    }
+
+    private void onUploadFrame(int stream, MuxUpload upload, byte type, byte[] payload) throws IOException {
+        if (type == MuxProtocol.WINDOW) {
+            upload.credit(ByteBuffer.wrap(payload).getInt());
+        } else if (type == MuxProtocol.DATA) {
+            readFrames(new DataInputStream(new ByteArrayInputStream(payload)));
+        } else if (type == MuxProtocol.END) {
+            muxUploads.remove(stream);
+            upload.end();
+        }
+    }
+
+    /**
+     * A download's stream carries an OP_FILE frame, the body, and then the
+     * server's reply; an error reply comes instead of the first two.
+     */
+    private void onDownloadFrame(int stream, MuxDownload download, byte type, byte[] payload) throws IOException {
+        if (type == MuxProtocol.END) {
+            muxDownloads.remove(stream);
+            download.finish();
+            return;
+        }
+        if (type != MuxProtocol.DATA) {
+            return;
+        }
+        if (download.file != null && download.remaining > 0) {
+            download.file.write(payload);
+            download.remaining -= payload.length;
+            writeFrame(MuxProtocol.windowFrame(stream, payload.length));
+            return;
+        }
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+        data.readInt();
+        byte opcode = data.readByte();
+        if (opcode == WireProtocol.OP_FILE) {
+            download.filename = new File(readString(data)).getName();
+            long offset = data.readLong();
+            long length = data.readLong();
+            download.file = openPartFile(download.filename, offset, length);
+            download.remaining = length;
+        } else if (opcode == WireProtocol.OP_TEXT) {
+            handleText(readString(data));
+        }
+    }
+
+    /**
+     * Called when the connection goes. Partial downloads stay as .part files for
+     * resumeDownloads(), and uploads waiting for window give up.
+     */
+    private void closeTransfers() {
+        for (MuxDownload download : muxDownloads.values()) {
+            download.close();
+        }
+        muxDownloads.clear();
+        for (MuxUpload upload : muxUploads.values()) {
+            upload.end();
+        }
+        muxUploads.clear();
+    }
+
+    /**
+     * Handles a reply line in either protocol. Lines belonging to a /sums or
+     * /signature reply are collected instead of shown. Only called from the
+     * listener thread.
+     */
+    private void handleText(String reply) {
+        int tagLength = tagLength(reply);
+        String tag = tagLength > 0 ? reply.substring(0, tagLength - 1) : null;
+        String line = reply.substring(tagLength);
+        if (line.startsWith("/session ")) {
+            sessionToken = line.split(" ")[1];
+            sessionRequested = false;
+            return;
+        }
+        if (sessionRequested && line.equals("Error: Command not found.")) {
+            // An older server without sessions.
+            sessionRequested = false;
+            return;
+        }
+        if (line.equals(SESSION_EXPIRED) && pendingHandle != null) {
+            sessionToken = null;
+            textArea.append("Session expired, registering again.\n");
+            send("/register " + pendingHandle);
+            return;
+        }
+        if (incomingSums != null) {
+            incomingSums.digests.add(line);
+            if (incomingSums.digests.size() == incomingSums.count) {
+                Checksums complete = incomingSums;
+                incomingSums = null;
+                new Thread(() -> resumeDownload(complete)).start();
+            }
+            return;
+        }
+        if (incomingSignature != null) {
+            incomingSignature.digests.add(line);
+            if (incomingSignature.digests.size() == incomingSignature.count) {
+                Checksums complete = incomingSignature;
+                incomingSignature = null;
+                new Thread(() -> syncFile(complete)).start();
+            }
+            return;
+        }
+        if (line.startsWith("/stat ")) {
+            String[] parts = line.split(" ");
+            if (parts.length == 4 && pendingParallel.remove(parts[1])) {
+                long size = Long.parseLong(parts[2]);
+                new Thread(() -> downloadParallel(parts[1], size)).start();
+                return;
+            }
+        }
+        if (line.startsWith("/sums ")) {
+            String[] parts = line.split(" ");
+            if (parts.length == 5) {
+                incomingSums = new Checksums(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                        Integer.parseInt(parts[4]));
+                return;
+            }
+        }
+        if (line.startsWith("/signature ")) {
+            String[] parts = line.split(" ");
+            if (parts.length == 6) {
+                Checksums signature = new Checksums(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                        Integer.parseInt(parts[4]));
+                signature.hash = parts[5].equals("-") ? null : parts[5];
+                if (signature.count == 0) {
+                    new Thread(() -> syncFile(signature)).start();
+                } else {
+                    incomingSignature = signature;
+                }
+                return;
+            }
+        }
+        if (line.startsWith("/mget ")) {
+            String[] parts = line.split(" ");
+            if (parts.length == 3) {
+                line = "Received " + parts[2] + " file(s) matching " + parts[1] + ".";
             }
         }
+        showResponse(line, tag);
+    }
+
+    /**
+     * The length of the "#<id> " correlation tag a reply starts with, or 0 if
+     * it has none.
+     */
+    private static int tagLength(String line) {
+        if (!line.startsWith("#")) {
+            return 0;
+        }
+        int space = line.indexOf(' ');
+        return space < 0 ? 0 : space + 1;
+    }
+
+    private void showResponse(String serverResponse) {
+        showResponse(serverResponse, null);
+    }
+
+    private void showResponse(String serverResponse, String tag) {
+        boolean registered = false;
+        if (pendingHandle != null && serverResponse.equals("Welcome " + pendingHandle + "!")) {
+            handle = pendingHandle;
+            pendingHandle = null;
+            registered = true;
+        }
+        textArea.append("> " + (tag != null ? "[" + tag + "] " : "") + serverResponse + "\n");
+        if (registered) {
+            if (sessionToken == null) {
+                sessionRequested = true;
+                send("/session");
+            }
+            resumeDownloads();
+        }
     }
 
     private void sendMessage() {
@@ -117,7 +483,36 @@ public class Client extends JFrame {
         if (connected) {
             try {
                 if (!message.isEmpty()) {
-                    out.println(message);
+                    String[] parts = message.split(" ");
+                    if (parts[0].equals("/store") && parts.length == 2 && handle != null) {
+                        uploadFile(parts[1]);
+                    } else if (parts[0].equals("/mstore") && parts.length == 2 && handle != null) {
+                        storeMatching(parts[1]);
+                    } else if (parts[0].equals("/sync") && parts.length <= 2 && handle != null) {
+                        syncMatching(parts.length == 2 ? parts[1] : "*");
+                    } else if (parts[0].equals("/get") && parts.length == 2 && handle != null) {
+                        if (stateFile(new File(parts[1]).getName()).isFile()) {
+                            // Part of it is already here; check what before fetching the rest.
+                            send("/sums " + parts[1]);
+                        } else if (downloadStreams > 1) {
+                            pendingParallel.add(parts[1]);
+                            send("/stat " + parts[1]);
+                        } else {
+                            send(message + " 0");
+                        }
+                    } else if (parts[0].equals("/streams") && parts.length == 2) {
+                        downloadStreams = Math.max(1, Integer.parseInt(parts[1]));
+                        textArea.append("Downloads will use " + downloadStreams + " stream(s).\n");
+                    } else {
+                        if (parts[0].equals("/register") && parts.length == 2) {
+                            pendingHandle = parts[1];
+                        } else if (parts[0].equals("/leave")) {
+                            // The server ends the session too.
+                            closing = true;
+                            sessionToken = null;
+                        }
+                        send(message);
+                    }
                     textField.setText("");
                 }
             } catch (Exception e) {
@@ -131,6 +526,7 @@ public class Client extends JFrame {
                     int port = Integer.parseInt(parts[2]);
                     serverIp = ip; 
                     serverPort = port; 
+                    closing = false;
                     connectToServer(serverIp, serverPort);
                 } else {
                     textArea.append("Error: Connection to the Server has failed!\n" + 
@@ -141,8 +537,14 @@ public class Client extends JFrame {
                     textArea.append("/leave\n");
                     textArea.append("/register <handle>\n");
                     textArea.append("/store <filename>\n");
-                    textArea.append("/dir\n");
+                    textArea.append("/dir [pattern] [page]\n");
                     textArea.append("/get <filename>\n");
+                    textArea.append("/mget <pattern>\n");
+                    textArea.append("/mstore <pattern>\n");
+                    textArea.append("/sums <filename>\n");
+                    textArea.append("/sync [pattern]\n");
+                    textArea.append("/stats\n");
+                    textArea.append("/streams <count>\n");
                     textArea.append("/broadcast <message>\n");
                     textArea.append("/unicast <handle> <message>\n");
                     textArea.append("/?\n");
@@ -154,6 +556,619 @@ public class Client extends JFrame {
     }
     
 
+    private void send(String message) {
+        sendLock.lock();
+        try {
+            writeCommand(message);
+        } catch (IOException e) {
+            textArea.append("Error sending message.\n");
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Writes one command in the negotiated protocol. Callers hold sendLock.
+     */
+    private void writeCommand(String message) throws IOException {
+        if (!binary) {
+            out.println(message);
+            return;
+        }
+        if (mux) {
+            if (message.startsWith("/get ")) {
+                // A download gets a stream of its own, so chat carries on around it.
+                int stream = nextStream.getAndIncrement();
+                muxDownloads.put(stream, new MuxDownload());
+                writeFrame(MuxProtocol.openFrame(stream, message));
+                return;
+            }
+            writeFrame(MuxProtocol.frame(MuxProtocol.CONTROL, MuxProtocol.DATA, WireProtocol.encodeCommand(message)));
+            return;
+        }
+        ByteBuffer frame = WireProtocol.encodeCommand(message);
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    private void writeFrame(ByteBuffer... frame) throws IOException {
+        sendLock.lock();
+        try {
+            long remaining = 0;
+            for (ByteBuffer buffer : frame) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(frame);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a file from the handle's folder as "/store <filename> <size>" followed
+     * by the raw bytes. The body goes out with transferTo, off the Swing thread.
+     */
+    private void uploadFile(String filename) {
+        File file = new File(handle + "_files/" + filename);
+        if (!file.isFile()) {
+            textArea.append("Error: Source file does not exist.\n");
+            return;
+        }
+
+        if (mux) {
+            new Thread(() -> uploadMux(file, filename)).start();
+        } else {
+            new Thread(() -> uploadBlocking(file, filename)).start();
+        }
+    }
+
+    /**
+     * /mstore <pattern> uploads every file in the handle's folder whose name
+     * matches the glob. On a mux connection up to MSTORE_CONCURRENCY go at once,
+     * each on its own stream; otherwise they go back to back, without waiting
+     * for each reply.
+     */
+    private void storeMatching(String pattern) {
+        File[] files = matchingFiles(pattern);
+        if (files == null) {
+            return;
+        }
+
+        textArea.append("Sending " + files.length + " file(s)...\n");
+        if (mux) {
+            ExecutorService uploads = Executors.newFixedThreadPool(Math.min(MSTORE_CONCURRENCY, files.length));
+            for (File file : files) {
+                uploads.execute(() -> uploadMux(file, file.getName()));
+            }
+            uploads.shutdown();
+            return;
+        }
+        new Thread(() -> {
+            for (File file : files) {
+                if (!uploadBlocking(file, file.getName())) {
+                    return;
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * The files in the handle's folder whose names match the glob, leaving out
+     * unfinished downloads. Returns null, having said why, if there are none.
+     */
+    private File[] matchingFiles(String pattern) {
+        PathMatcher matcher;
+        try {
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        } catch (IllegalArgumentException e) {
+            textArea.append("Error: Invalid pattern. " + e.getMessage() + "\n");
+            return null;
+        }
+        File[] files = new File(handle + "_files").listFiles(file -> file.isFile()
+                && matcher.matches(file.toPath().getFileName())
+                && !file.getName().endsWith(".part") && !file.getName().endsWith(".download"));
+        if (files == null || files.length == 0) {
+            textArea.append("Error: No files found.\n");
+            return null;
+        }
+        return files;
+    }
+
+    /**
+     * /sync [pattern] brings the server's copies of the matching files in the
+     * handle's folder up to date, all of them if no pattern is given. Each file
+     * starts with a /signature request; syncFile() takes it from there.
+     */
+    private void syncMatching(String pattern) {
+        File[] files = matchingFiles(pattern);
+        if (files == null) {
+            return;
+        }
+        textArea.append("Syncing " + files.length + " file(s)...\n");
+        for (File file : files) {
+            pendingSync.add(file.getName());
+            send("/signature " + file.getName());
+        }
+    }
+
+    /**
+     * Sends the server what it needs to turn its version of the file into ours,
+     * given its signature (see DeltaSync): nothing if the two are the same
+     * already, otherwise a /patch with the delta as its body.
+     */
+    private void syncFile(Checksums signature) {
+        if (!pendingSync.remove(signature.name)) {
+            // Not one of ours, someone typed /signature.
+            textArea.append("> /signature " + signature.name + " " + signature.size + " " + signature.chunkSize
+                    + " " + signature.count + " " + (signature.hash != null ? signature.hash : "-") + "\n");
+            for (String line : signature.digests) {
+                textArea.append("> " + line + "\n");
+            }
+            return;
+        }
+
+        File file = new File(handle + "_files/" + signature.name);
+        try {
+            String hash = ContentHash.of(file.toPath());
+            if (hash.equals(signature.hash)) {
+                textArea.append(signature.name + " is up to date.\n");
+                return;
+            }
+            DeltaSync.Delta delta = DeltaSync.delta(file.toPath(), DeltaSync.Signature.parse(signature.size,
+                    (int) signature.chunkSize, signature.hash, signature.digests));
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                String command = "/patch " + signature.name + " " + signature.chunkSize + " " + source.size()
+                        + " " + hash + " " + delta.length();
+                if (mux) {
+                    uploadMux(command, delta.open(source), delta.length());
+                } else {
+                    uploadBlocking(command, delta.open(source), delta.length());
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            textArea.append("Error: Unable to sync " + signature.name + ". " + e.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Sends "/store <filename> <size>" and the body while holding the send lock.
+     * Returns false if the upload failed, which also ends the connection.
+     */
+    private boolean uploadBlocking(File file, String filename) {
+        sendLock.lock();
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = source.size();
+            if (compress && size > 0 && TransferCompression.worthCompressing(readBlock(source, 0, size))) {
+                writeCommand("/store " + filename + " " + size + " " + TransferCompression.ENCODING);
+                deflateTo(source, filename, size);
+                return true;
+            }
+            writeCommand("/store " + filename + " " + size);
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, size - position, channel);
+            }
+            return true;
+        } catch (IOException e) {
+            textArea.append("Error: Unable to upload file. " + e.getMessage() + "\n");
+            try {
+                disconnect();
+            } catch (IOException ignored) {
+            }
+            return false;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a command followed by a body of exactly size bytes from body, such
+     * as a /patch and its delta, while holding the send lock.
+     */
+    private boolean uploadBlocking(String command, ReadableByteChannel body, long size) {
+        sendLock.lock();
+        try {
+            writeCommand(command);
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long remaining = size;
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                if (body.read(buffer) < 0) {
+                    throw new IOException("File was truncated during upload.");
+                }
+                buffer.flip();
+                remaining -= buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            textArea.append("Error: Unable to upload file. " + e.getMessage() + "\n");
+            try {
+                disconnect();
+            } catch (IOException ignored) {
+            }
+            return false;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a file on a stream of its own, a DATA frame at a time as the server's
+     * window allows. The send lock is only held per frame, so chat and other
+     * transfers interleave with it. Mux streams are not compressed.
+     */
+    private void uploadMux(File file, String filename) {
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = source.size();
+            uploadMux("/store " + filename + " " + size, source, size);
+        } catch (IOException e) {
+            textArea.append("Error: Unable to upload file. " + e.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Opens a stream with the command and sends size bytes from body on it.
+     */
+    private void uploadMux(String command, ReadableByteChannel body, long size) {
+        int stream = nextStream.getAndIncrement();
+        MuxUpload upload = new MuxUpload();
+        muxUploads.put(stream, upload);
+        try {
+            writeFrame(MuxProtocol.openFrame(stream, command));
+            ByteBuffer buffer = ByteBuffer.allocate(MuxProtocol.MAX_DATA_LENGTH);
+            long position = 0;
+            while (position < size) {
+                int count = upload.awaitWindow((int) Math.min(buffer.capacity(), size - position));
+                if (count == 0) {
+                    // The server ended the stream; its reply says why.
+                    return;
+                }
+                buffer.clear().limit(count);
+                while (buffer.hasRemaining()) {
+                    if (body.read(buffer) < 0) {
+                        throw new IOException("File was truncated during upload.");
+                    }
+                }
+                writeFrame(MuxProtocol.header(stream, MuxProtocol.DATA, count), buffer.flip());
+                position += count;
+            }
+        } catch (IOException e) {
+            textArea.append("Error: Unable to upload file. " + e.getMessage() + "\n");
+            if (muxUploads.remove(stream) != null) {
+                try {
+                    writeFrame(MuxProtocol.endFrame(stream));
+                } catch (IOException ignored) {
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends the file as compressed blocks (see TransferCompression). Callers hold sendLock.
+     */
+    private void deflateTo(FileChannel source, String filename, long size) throws IOException {
+        TransferCompression.Encoder encoder = TransferCompression.Encoder.acquire();
+        try {
+            long position = 0;
+            while (position < size) {
+                ByteBuffer raw = readBlock(source, position, size - position);
+                position += raw.remaining();
+                ByteBuffer block = encoder.encode(raw);
+                while (block.hasRemaining()) {
+                    channel.write(block);
+                }
+            }
+            textArea.append("Sent " + filename + " compressed: " + encoder.getStats() + "\n");
+        } finally {
+            encoder.release();
+        }
+    }
+
+    private static ByteBuffer readBlock(FileChannel source, long position, long remaining) throws IOException {
+        ByteBuffer raw = ByteBuffer.allocate(TransferCompression.blockLength(remaining));
+        while (raw.hasRemaining()) {
+            if (source.read(raw, position + raw.position()) < 0) {
+                throw new IOException("File was truncated during upload.");
+            }
+        }
+        return raw.flip();
+    }
+
+    /**
+     * Reads the body that follows a "/file <filename> <offset> <length>" header
+     * (or an OP_FILE frame) into <handle>_files/<filename>.part and renames it
+     * once complete. A <filename>.download file next to it records the full size
+     * until then, so an interrupted download can be resumed later. A deflated
+     * body is inflated block by block (see TransferCompression).
+     */
+    private void receiveFile(String name, long offset, long length, boolean deflated) throws IOException {
+        String filename = new File(name).getName();
+        try (RandomAccessFile file = openPartFile(filename, offset, length)) {
+            if (deflated) {
+                inflateInto(file, filename, length);
+            }
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = deflated ? 0 : length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Connection closed during file transfer.");
+                }
+                file.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        finishPartFile(filename);
+    }
+
+    /**
+     * Opens <filename>.part to take a body starting at offset.
+     */
+    private RandomAccessFile openPartFile(String filename, long offset, long length) throws IOException {
+        File folder = downloadFolder();
+        folder.mkdirs();
+        if (offset == 0) {
+            writeState(filename, length);
+        }
+        RandomAccessFile file = new RandomAccessFile(new File(folder, filename + ".part"), "rw");
+        try {
+            file.setLength(Math.min(file.length(), offset));
+            file.seek(offset);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return file;
+    }
+
+    private void finishPartFile(String filename) throws IOException {
+        File folder = downloadFolder();
+        Files.move(new File(folder, filename + ".part").toPath(), new File(folder, filename).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(stateFile(filename).toPath());
+    }
+
+    /**
+     * Fetches a file as downloadStreams ranges over extra connections (see
+     * RangeDownloader). Small files are not worth the extra connections and go
+     * through the normal /get.
+     */
+    private void downloadParallel(String name, long size) {
+        if (size < PARALLEL_DOWNLOAD_THRESHOLD) {
+            send("/get " + name + " 0");
+            return;
+        }
+        String filename = new File(name).getName();
+        File folder = downloadFolder();
+        folder.mkdirs();
+        File partFile = new File(folder, filename + ".part");
+        try {
+            writeState(filename, size);
+            long start = System.nanoTime();
+            RangeDownloader downloader = new RangeDownloader(
+                    new InetSocketAddress(clientSocket.getInetAddress(), clientSocket.getPort()), handle);
+            downloader.download(name, size, downloadStreams, partFile.toPath());
+            Files.move(partFile.toPath(), new File(folder, filename).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(stateFile(filename).toPath());
+            long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            textArea.append("> File received from Server: " + name + " (" + downloadStreams + " streams, "
+                    + (size / 1024 * 1000 / millis) + " KB/s)\n");
+        } catch (IOException e) {
+            textArea.append("Error: Parallel download of " + name + " failed. " + e.getMessage()
+                    + " Use /get again to resume.\n");
+        }
+    }
+
+    private void writeState(String filename, long size) throws IOException {
+        Properties state = new Properties();
+        state.setProperty("size", Long.toString(size));
+        try (OutputStream stateOut = new FileOutputStream(stateFile(filename))) {
+            state.store(stateOut, "Download of " + filename);
+        }
+    }
+
+    private void inflateInto(RandomAccessFile file, String filename, long length) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] block = new byte[TransferCompression.MAX_BLOCK_LENGTH];
+        TransferCompression.Decoder decoder = TransferCompression.Decoder.acquire(length, false);
+        try {
+            while (!decoder.isComplete()) {
+                int blockLength = data.readInt();
+                if (blockLength < 0 || blockLength > block.length) {
+                    throw new IOException("Compressed block is too large.");
+                }
+                data.readFully(block, 0, blockLength);
+                ByteBuffer raw = decoder.inflateBlock(block, blockLength);
+                file.write(raw.array(), raw.arrayOffset() + raw.position(), raw.remaining());
+            }
+            textArea.append("Received " + filename + " compressed: " + decoder.getStats() + "\n");
+        } finally {
+            decoder.release();
+        }
+    }
+
+    private File downloadFolder() {
+        return new File((handle != null ? handle : "client") + "_files");
+    }
+
+    private File stateFile(String filename) {
+        return new File(downloadFolder(), filename + ".download");
+    }
+
+    /**
+     * Asks for the checksums of every download left unfinished in the handle's
+     * folder; resumeDownload() takes it from there when they arrive.
+     */
+    private void resumeDownloads() {
+        File[] states = downloadFolder().listFiles((dir, name) -> name.endsWith(".download"));
+        if (states == null) {
+            return;
+        }
+        for (File state : states) {
+            String filename = state.getName().substring(0, state.getName().length() - ".download".length());
+            textArea.append("Resuming download of " + filename + "...\n");
+            send("/sums " + filename);
+        }
+    }
+
+    /**
+     * Compares the server's chunk checksums with the partial file and requests
+     * everything from the first chunk that is missing or differs.
+     */
+    private void resumeDownload(Checksums checksums) {
+        File stateFile = stateFile(checksums.name);
+        File partFile = new File(downloadFolder(), checksums.name + ".part");
+        if (!stateFile.isFile()) {
+            // Not one of ours, someone typed /sums.
+            textArea.append("> /sums " + checksums.name + " " + checksums.size + " " + checksums.chunkSize + "\n");
+            for (String digest : checksums.digests) {
+                textArea.append("> " + digest + "\n");
+            }
+            return;
+        }
+
+        long offset = 0;
+        try {
+            Properties state = new Properties();
+            try (InputStream stateIn = new FileInputStream(stateFile)) {
+                state.load(stateIn);
+            }
+            if (partFile.isFile() && Long.parseLong(state.getProperty("size", "-1")) == checksums.size) {
+                List<String> local = ContentHash.chunkDigests(partFile.toPath());
+                int verified = 0;
+                while (verified < local.size() && verified < checksums.digests.size()
+                        && local.get(verified).equals(checksums.digests.get(verified))) {
+                    verified++;
+                }
+                offset = Math.min(checksums.size, verified * checksums.chunkSize);
+            }
+        } catch (IOException | NumberFormatException e) {
+            offset = 0;
+        }
+        if (offset > 0) {
+            textArea.append("Already have " + offset + " of " + checksums.size + " bytes of " + checksums.name + ".\n");
+        }
+        send("/get " + checksums.name + " " + offset);
+    }
+
+    /**
+     * A download on a mux stream. Only touched by the listener thread.
+     */
+    private class MuxDownload {
+        private String filename;
+        private RandomAccessFile file;
+        private long remaining;
+
+        void finish() throws IOException {
+            if (file == null) {
+                return;
+            }
+            file.close();
+            file = null;
+            if (remaining == 0) {
+                finishPartFile(filename);
+            } else {
+                textArea.append("Download of " + filename + " was cut short. Use /get again to resume.\n");
+            }
+        }
+
+        void close() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * The window the server has granted an upload on a mux stream.
+     */
+    private static class MuxUpload {
+        private int window = MuxProtocol.INITIAL_WINDOW;
+        private boolean ended;
+
+        synchronized void credit(int increment) {
+            window += increment;
+            notifyAll();
+        }
+
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for window and takes up to wanted of it. Returns 0 once the
+         * stream has ended.
+         */
+        synchronized int awaitWindow(int wanted) throws InterruptedException {
+            while (window == 0 && !ended) {
+                wait();
+            }
+            if (ended) {
+                return 0;
+            }
+            int granted = Math.min(window, wanted);
+            window -= granted;
+            return granted;
+        }
+    }
+
+    /**
+     * A /sums reply: per-chunk checksums of a file on the server. A /signature
+     * reply has the same shape, with block checksums and the file's hash.
+     */
+    private static class Checksums {
+        private final String name;
+        private final long size;
+        private final long chunkSize;
+        private final int count;
+        private final List<String> digests = new ArrayList<>();
+        private String hash;
+
+        Checksums(String name, long size, long chunkSize, int count) {
+            this.name = name;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Reads one line from the server. Lines are read byte by byte from the shared
+     * buffered stream, so file data following a header is left in place.
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, Charset.defaultCharset());
+    }
+
     private void disconnect() throws IOException {
         if (clientSocket != null && !clientSocket.isClosed()) {
             clientSocket.close();
@@ -0,0 +1,82 @@
+/**
+ * Handle to client lookup shared by every connection thread.
+ *
+ * Backed by a ConcurrentHashMap, which is already sharded per hash bin: reads
+ * never lock, inserts into an empty bin are a single CAS, and the size counter
+ * is striped so concurrent registrations do not contend on it. Iteration is
+ * weakly consistent, so a broadcast sees a usable snapshot even while other
+ * threads register and disconnect.
+ */
+
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ClientRegistry<T> {
+    private final ConcurrentHashMap<String, T> clients;
+
+    public ClientRegistry() {
+        this(16);
+    }
+
+    public ClientRegistry(int expectedClients) {
+        clients = new ConcurrentHashMap<>(expectedClients);
+    }
+
+    /**
+     * Registers the handle for the client unless someone else already holds it.
+     * The check and the insert are one atomic step, so two clients racing for the
+     * same handle can never both succeed.
+     */
+    public boolean claim(String handle, T client) {
+        return clients.putIfAbsent(handle, client) == null;
+    }
+
+    /**
+     * Frees the handle, but only if it still belongs to this client. A stale
+     * connection cleaning up cannot remove a newer owner of the same handle.
+     */
+    public boolean release(String handle, T client) {
+        return clients.remove(handle, client);
+    }
+
+    /**
+     * Moves the handle from one client to another in one step, so it is never
+     * free in between for someone else to claim.
+     */
+    public boolean replace(String handle, T client, T next) {
+        return clients.replace(handle, client, next);
+    }
+
+    public T get(String handle) {
+        return clients.get(handle);
+    }
+
+    public boolean contains(String handle) {
+        return clients.containsKey(handle);
+    }
+
+    /**
+     * A live, weakly consistent view for fan-out. Clients registered or removed
+     * during iteration may or may not be seen, but iteration never fails.
+     */
+    public Collection<T> values() {
+        return clients.values();
+    }
+
+    /**
+     * The registered handles, as a weakly consistent view like values().
+     */
+    public Set<String> handles() {
+        return clients.keySet();
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    public void clear() {
+        clients.clear();
+    }
+}
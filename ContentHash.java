@@ -0,0 +1,141 @@
+/**
+ * Content hash used to identify stored files.
+ *
+ * The file is cut into CHUNK_SIZE pieces, each piece is hashed with SHA-256,
+ * and the result is the SHA-256 of the concatenated piece digests. Pieces of a
+ * file on disk are hashed in parallel; an upload arriving over the network is
+ * hashed piece by piece as it streams in with a Builder. Both give the same
+ * value for the same bytes. It is not the plain SHA-256 of the file.
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+public final class ContentHash {
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentHash() {
+    }
+
+    public static String of(Path file) throws IOException {
+        MessageDigest combined = newDigest();
+        for (byte[] digest : hashChunks(file)) {
+            combined.update(digest);
+        }
+        return toHex(combined.digest());
+    }
+
+    /**
+     * The hex SHA-256 of each CHUNK_SIZE piece of the file, in order. The last
+     * piece may be shorter; an empty file has a single empty piece.
+     */
+    public static List<String> chunkDigests(Path file) throws IOException {
+        List<String> digests = new ArrayList<>();
+        for (byte[] digest : hashChunks(file)) {
+            digests.add(toHex(digest));
+        }
+        return digests;
+    }
+
+    private static byte[][] hashChunks(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunks = (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            byte[][] digests = new byte[chunks][];
+            try {
+                // Positional reads do not share the channel's position, so the
+                // pieces can be read concurrently from one channel.
+                IntStream.range(0, chunks).parallel().forEach(i -> {
+                    long start = (long) i * CHUNK_SIZE;
+                    digests[i] = hashChunk(channel, start, Math.min(CHUNK_SIZE, size - start));
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return digests;
+        }
+    }
+
+    private static byte[] hashChunk(FileChannel channel, long start, long length) {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_BUFFER_SIZE, Math.max(length, 1)));
+        long done = 0;
+        try {
+            while (done < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - done));
+                int read = channel.read(buffer, start + done);
+                if (read < 0) {
+                    throw new IOException("File shrank while it was being hashed.");
+                }
+                buffer.flip();
+                digest.update(buffer);
+                done += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return digest.digest();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Hashes bytes as they arrive, in order, without keeping them.
+     */
+    public static class Builder {
+        private final MessageDigest chunk = newDigest();
+        private final ByteArrayOutputStream digests = new ByteArrayOutputStream();
+        private long inChunk;
+
+        public void update(ByteBuffer bytes) {
+            while (bytes.hasRemaining()) {
+                int count = (int) Math.min(bytes.remaining(), CHUNK_SIZE - inChunk);
+                ByteBuffer piece = bytes.slice();
+                piece.limit(count);
+                chunk.update(piece);
+                bytes.position(bytes.position() + count);
+                inChunk += count;
+                if (inChunk == CHUNK_SIZE) {
+                    digests.writeBytes(chunk.digest());
+                    inChunk = 0;
+                }
+            }
+        }
+
+        public String finish() {
+            if (inChunk > 0 || digests.size() == 0) {
+                digests.writeBytes(chunk.digest());
+            }
+            return toHex(newDigest().digest(digests.toByteArray()));
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/**
+ * Content-addressed store that keeps one copy of each distinct file.
+ *
+ * Contents live once in .blobs/<first two hex digits>/<ContentHash>, and each
+ * stored name is a hard link to its blob, so readers still find an ordinary
+ * file under the name. A duplicate upload costs a hash plus a link and a
+ * manifest line instead of a second copy. Where hard links are not supported
+ * the blob is copied under the name instead, which is correct but saves nothing.
+ *
+ * The .manifest file is an append-only log of "+ <hash> <name>" and "- <name>"
+ * lines that maps names to hashes; reference counts are derived from it. It is
+ * not forced to disk: after a crash collectGarbage() re-adopts any name missing
+ * from it, so the worst case is hashing those files again. Stored files must not
+ * be modified in place, since every name linked to the blob would change with it.
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+public class DedupFileStore implements FileStore {
+    private static final String BLOB_DIRECTORY = ".blobs";
+    private static final String MANIFEST = ".manifest";
+
+    private final Path directory;
+    private final Path blobs;
+    private final Path manifestPath;
+    private final Consumer<String> log;
+
+    // Guards everything below. Hashing always happens outside of it.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, String> manifest = new HashMap<>();
+    private final Map<String, Integer> references = new HashMap<>();
+    private FileChannel manifestLog;
+    private boolean linksUnsupported;
+
+    public DedupFileStore(Path directory, Consumer<String> log) throws IOException {
+        this.directory = directory;
+        this.blobs = directory.resolve(BLOB_DIRECTORY);
+        this.manifestPath = directory.resolve(MANIFEST);
+        this.log = log;
+        Files.createDirectories(blobs);
+        loadManifest();
+        collectGarbage();
+    }
+
+    @Override
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public boolean contains(String name) {
+        return Files.exists(directory.resolve(name));
+    }
+
+    @Override
+    public Path newTempPath(String name) {
+        return directory.resolve("." + name + "-" + System.nanoTime() + ".part");
+    }
+
+    @Override
+    public boolean isContentAddressed() {
+        return true;
+    }
+
+    @Override
+    public void commit(String name, Path temp, String hash) throws IOException {
+        if (hash == null) {
+            hash = ContentHash.of(temp);
+        }
+        lock.lock();
+        try {
+            boolean duplicate = storeBlob(temp, hash);
+            try {
+                link(directory.resolve(name), blobPath(hash));
+            } catch (IOException e) {
+                dropUnreferenced(hash, duplicate);
+                throw e;
+            }
+            record(name, hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The name is linked to the new blob under a temp path first and then moved
+     * over the old link, never rewritten, since the old blob may be shared.
+     */
+    @Override
+    public void replace(String name, Path temp, String hash) throws IOException {
+        if (hash == null) {
+            hash = ContentHash.of(temp);
+        }
+        Path staged = newTempPath(name);
+        lock.lock();
+        try {
+            boolean duplicate = storeBlob(temp, hash);
+            try {
+                link(staged, blobPath(hash));
+                Files.move(staged, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.deleteIfExists(staged);
+                dropUnreferenced(hash, duplicate);
+                throw e;
+            }
+            String previous = manifest.get(name);
+            record(name, hash);
+            if (previous != null && release(previous) == 0) {
+                Files.deleteIfExists(blobPath(previous));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void importFile(Path source, String name) throws IOException {
+        String hash = ContentHash.of(source);
+        lock.lock();
+        try {
+            Path blob = blobPath(hash);
+            if (Files.exists(blob)) {
+                link(directory.resolve(name), blob);
+                record(name, hash);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        Path temp = newTempPath(name);
+        try {
+            Files.copy(source, temp);
+            commit(name, temp, hash);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public String getHash(String name) {
+        lock.lock();
+        try {
+            return manifest.get(name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void forget(String name) {
+        lock.lock();
+        try {
+            if (Files.exists(directory.resolve(name))) {
+                return;
+            }
+            String hash = manifest.remove(name);
+            if (hash == null) {
+                return;
+            }
+            appendManifest("- " + name);
+            if (release(hash) == 0) {
+                Files.deleteIfExists(blobPath(hash));
+            }
+        } catch (IOException e) {
+            log.accept("Error removing unreferenced file data: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops names that were deleted from the directory, adopts files that were
+     * put there by hand, deletes blobs nothing refers to and compacts the manifest.
+     */
+    @Override
+    public void collectGarbage() throws IOException {
+        List<String> untracked = new ArrayList<>();
+        lock.lock();
+        try {
+            for (String name : new ArrayList<>(manifest.keySet())) {
+                forget(name);
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (!name.startsWith(".") && name.indexOf('\n') < 0 && !manifest.containsKey(name)
+                            && Files.isRegularFile(file)) {
+                        untracked.add(name);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (String name : untracked) {
+            try {
+                adopt(name);
+            } catch (IOException e) {
+                log.accept("Error adding " + name + " to the store: " + e.getMessage());
+            }
+        }
+
+        lock.lock();
+        try {
+            int removed = 0;
+            try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(blobs)) {
+                for (Path prefix : prefixes) {
+                    try (DirectoryStream<Path> blobFiles = Files.newDirectoryStream(prefix)) {
+                        for (Path blob : blobFiles) {
+                            if (!references.containsKey(blob.getFileName().toString())) {
+                                Files.delete(blob);
+                                removed++;
+                            }
+                        }
+                    }
+                }
+            }
+            if (removed > 0) {
+                log.accept("Removed " + removed + " unreferenced file(s) from storage.");
+            }
+            rewriteManifest();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes over a file that appeared in the directory without going through
+     * the store, replacing it with a link if its content is already stored.
+     */
+    private void adopt(String name) throws IOException {
+        Path file = directory.resolve(name);
+        String hash = ContentHash.of(file);
+        Path blob = blobPath(hash);
+        lock.lock();
+        try {
+            if (manifest.containsKey(name) || !Files.isRegularFile(file)) {
+                return;
+            }
+            if (Files.exists(blob)) {
+                if (!Files.isSameFile(file, blob)) {
+                    Path temp = newTempPath(name);
+                    link(temp, blob);
+                    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } else {
+                Files.createDirectories(blob.getParent());
+                link(blob, file);
+            }
+            record(name, hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (manifestLog != null) {
+                manifestLog.close();
+                manifestLog = null;
+            }
+        } catch (IOException ignored) {
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves temp into the blob for hash, or deletes it if that blob exists
+     * already, which it returns. Called with the lock held.
+     */
+    private boolean storeBlob(Path temp, String hash) throws IOException {
+        Path blob = blobPath(hash);
+        if (Files.exists(blob)) {
+            Files.delete(temp);
+            return true;
+        }
+        Files.createDirectories(blob.getParent());
+        Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+        return false;
+    }
+
+    private void dropUnreferenced(String hash, boolean duplicate) throws IOException {
+        if (!duplicate && references.getOrDefault(hash, 0) == 0) {
+            Files.deleteIfExists(blobPath(hash));
+        }
+    }
+
+    private Path blobPath(String hash) {
+        return blobs.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private void link(Path link, Path existing) throws IOException {
+        if (!linksUnsupported) {
+            try {
+                Files.createLink(link, existing);
+                return;
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                linksUnsupported = true;
+                log.accept("Hard links are not supported here, duplicate files will be copied.");
+            }
+        }
+        Files.copy(existing, link);
+    }
+
+    private void record(String name, String hash) throws IOException {
+        manifest.put(name, hash);
+        references.merge(hash, 1, Integer::sum);
+        appendManifest("+ " + hash + " " + name);
+    }
+
+    private int release(String hash) {
+        Integer count = references.computeIfPresent(hash, (key, value) -> value > 1 ? value - 1 : null);
+        return count == null ? 0 : count;
+    }
+
+    private void loadManifest() throws IOException {
+        if (!Files.exists(manifestPath)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("+ ") && line.length() > 3) {
+                    int split = line.indexOf(' ', 2);
+                    if (split < 0) {
+                        continue;
+                    }
+                    String previous = manifest.put(line.substring(split + 1), line.substring(2, split));
+                    if (previous != null) {
+                        release(previous);
+                    }
+                    references.merge(line.substring(2, split), 1, Integer::sum);
+                } else if (line.startsWith("- ")) {
+                    String hash = manifest.remove(line.substring(2));
+                    if (hash != null) {
+                        release(hash);
+                    }
+                }
+            }
+        }
+    }
+
+    private void rewriteManifest() throws IOException {
+        if (manifestLog != null) {
+            manifestLog.close();
+        }
+        Path temp = directory.resolve(MANIFEST + ".tmp");
+        StringBuilder contents = new StringBuilder();
+        for (Map.Entry<String, String> entry : manifest.entrySet()) {
+            contents.append("+ ").append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+        }
+        Files.write(temp, contents.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        manifestLog = FileChannel.open(manifestPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void appendManifest(String line) throws IOException {
+        if (manifestLog == null) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            manifestLog.write(bytes);
+        }
+    }
+}
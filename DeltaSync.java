@@ -0,0 +1,520 @@
+/**
+ * rsync-style delta transfer shared by Server and Client, for /sync.
+ *
+ * The server describes its copy of a file with a Signature: for every block of
+ * blockSize bytes, a weak rolling checksum and a strong MD5. The client slides
+ * a window over its own version, one byte at a time, and looks the window's
+ * rolling checksum up among the server's blocks. Only on a weak hit is the MD5
+ * worked out, so a byte that matches nothing costs a few additions. The Delta
+ * it builds says which of the server's blocks to copy, and carries the bytes
+ * in between as literals. The server rebuilds the new version from its old
+ * one and the delta, and checks the result against the client's ContentHash
+ * before it replaces anything.
+ *
+ * Delta:   COPY | int first block | int block count
+ *          DATA | int length | bytes
+ *
+ * Only whole blocks are matched, so the old file's short last block, if any,
+ * is always sent as a literal. A file the server does not have has an empty
+ * signature, and its delta is the whole file.
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class DeltaSync {
+    public static final int MIN_BLOCK_SIZE = 2 * 1024;
+    public static final int MAX_BLOCK_SIZE = 128 * 1024;
+    // Longer literals are split, so a length always fits an int and the server
+    // never has to hold much of one at a time.
+    private static final int MAX_LITERAL = 1024 * 1024;
+    private static final int WINDOW_BUFFER_SIZE = 8 * MAX_BLOCK_SIZE;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int STRONG_LENGTH = 16;
+    private static final byte COPY = 0;
+    private static final byte DATA = 1;
+
+    private DeltaSync() {
+    }
+
+    /**
+     * About the square root of the file's size, which balances the signature's
+     * size against how much an edit costs, as a power of two.
+     */
+    public static int blockSize(long fileSize) {
+        long root = (long) Math.sqrt((double) fileSize);
+        return Integer.highestOneBit((int) Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, root)));
+    }
+
+    /**
+     * Checksums of each block of one version of a file.
+     */
+    public static class Signature {
+        public final long size;
+        public final int blockSize;
+        /** The file's ContentHash, or null if the file does not exist. */
+        public final String hash;
+        private final int[] weak;
+        private final byte[][] strong;
+
+        private Signature(long size, int blockSize, String hash, int[] weak, byte[][] strong) {
+            this.size = size;
+            this.blockSize = blockSize;
+            this.hash = hash;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        /**
+         * Reads the file once, taking its ContentHash on the way.
+         */
+        public static Signature of(Path file) throws IOException {
+            if (!Files.isRegularFile(file)) {
+                return new Signature(0, MIN_BLOCK_SIZE, null, new int[0], new byte[0][]);
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                int blockSize = blockSize(size);
+                int count = (int) ((size + blockSize - 1) / blockSize);
+                int[] weak = new int[count];
+                byte[][] strong = new byte[count][];
+                ContentHash.Builder hasher = new ContentHash.Builder();
+                MessageDigest md5 = newDigest();
+                ByteBuffer block = ByteBuffer.allocate(blockSize);
+                for (int i = 0; i < count; i++) {
+                    long start = (long) i * blockSize;
+                    block.clear().limit((int) Math.min(blockSize, size - start));
+                    while (block.hasRemaining()) {
+                        if (channel.read(block, start + block.position()) < 0) {
+                            throw new IOException("File shrank while it was being read.");
+                        }
+                    }
+                    block.flip();
+                    hasher.update(block.duplicate());
+                    weak[i] = weakChecksum(block.array(), 0, block.limit());
+                    md5.update(block.array(), 0, block.limit());
+                    strong[i] = md5.digest();
+                }
+                if (count == 0) {
+                    hasher.update(block.flip());
+                }
+                return new Signature(size, blockSize, hasher.finish(), weak, strong);
+            }
+        }
+
+        /**
+         * Builds a signature from the lines of a /signature reply.
+         */
+        public static Signature parse(long size, int blockSize, String hash, List<String> lines) {
+            if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE
+                    || lines.size() != (size + blockSize - 1) / blockSize) {
+                throw new IllegalArgumentException("Signature does not match the file's size.");
+            }
+            int[] weak = new int[lines.size()];
+            byte[][] strong = new byte[lines.size()][];
+            for (int i = 0; i < lines.size(); i++) {
+                byte[] bytes = fromHex(lines.get(i));
+                if (bytes.length != 4 + STRONG_LENGTH) {
+                    throw new IllegalArgumentException("Malformed block checksum: " + lines.get(i));
+                }
+                weak[i] = ByteBuffer.wrap(bytes).getInt();
+                strong[i] = Arrays.copyOfRange(bytes, 4, bytes.length);
+            }
+            return new Signature(size, blockSize, hash, weak, strong);
+        }
+
+        public int blockCount() {
+            return weak.length;
+        }
+
+        /**
+         * Block i as a line of hex: the weak checksum, then the MD5.
+         */
+        public String line(int i) {
+            byte[] bytes = ByteBuffer.allocate(4 + STRONG_LENGTH).putInt(weak[i]).put(strong[i]).array();
+            return ContentHash.toHex(bytes);
+        }
+    }
+
+    /**
+     * How to build a new version of a file from a Signature's blocks and
+     * literal ranges of the new version.
+     */
+    public static class Delta {
+        // {COPY, first block, count} or {DATA, offset in the new file, length}
+        private final List<long[]> ops;
+        private final long length;
+        private final long literalBytes;
+
+        private Delta(List<long[]> ops) {
+            this.ops = ops;
+            long length = 0;
+            long literalBytes = 0;
+            for (long[] op : ops) {
+                length += op[0] == COPY ? 9 : 5 + op[2];
+                literalBytes += op[0] == COPY ? 0 : op[2];
+            }
+            this.length = length;
+            this.literalBytes = literalBytes;
+        }
+
+        /**
+         * Encoded size in bytes.
+         */
+        public long length() {
+            return length;
+        }
+
+        public long literalBytes() {
+            return literalBytes;
+        }
+
+        /**
+         * The encoded delta as a stream, with the literals read from the new
+         * version as they are needed. The file must not change meanwhile; if it
+         * does, the server's check of the rebuilt file fails.
+         */
+        public ReadableByteChannel open(FileChannel source) {
+            return new ReadableByteChannel() {
+                private int index;
+                private ByteBuffer header;
+                private long done;
+
+                @Override
+                public int read(ByteBuffer target) throws IOException {
+                    int start = target.position();
+                    while (target.hasRemaining() && index < ops.size()) {
+                        long[] op = ops.get(index);
+                        if (header == null) {
+                            header = op[0] == COPY
+                                    ? ByteBuffer.allocate(9).put(COPY).putInt((int) op[1]).putInt((int) op[2])
+                                    : ByteBuffer.allocate(5).put(DATA).putInt((int) op[2]);
+                            header.flip();
+                            done = 0;
+                        }
+                        int count = Math.min(header.remaining(), target.remaining());
+                        ByteBuffer part = header.duplicate();
+                        part.limit(part.position() + count);
+                        target.put(part);
+                        header.position(header.position() + count);
+                        if (header.hasRemaining()) {
+                            break;
+                        }
+                        if (op[0] == DATA && done < op[2]) {
+                            ByteBuffer literal = target.slice();
+                            literal.limit((int) Math.min(literal.remaining(), op[2] - done));
+                            while (literal.hasRemaining()) {
+                                if (source.read(literal, op[1] + done + literal.position()) < 0) {
+                                    throw new IOException("File was truncated during upload.");
+                                }
+                            }
+                            target.position(target.position() + literal.limit());
+                            done += literal.limit();
+                            if (done < op[2]) {
+                                break;
+                            }
+                        }
+                        index++;
+                        header = null;
+                    }
+                    int read = target.position() - start;
+                    return read == 0 && index == ops.size() ? -1 : read;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+
+    /**
+     * Works out the delta from base to the file's current contents.
+     */
+    public static Delta delta(Path file, Signature base) throws IOException {
+        int blockSize = base.blockSize;
+        // Chains of full blocks by weak checksum, in plain arrays since this is
+        // looked up once for every byte of the file.
+        int blocks = (int) (base.size / blockSize);
+        int tableSize = Integer.highestOneBit(Math.max(16, blocks) * 2);
+        int[] heads = new int[tableSize];
+        Arrays.fill(heads, -1);
+        int[] next = new int[blocks];
+        for (int i = 0; i < blocks; i++) {
+            int bucket = bucket(base.weak[i], tableSize);
+            next[i] = heads[bucket];
+            heads[bucket] = i;
+        }
+
+        List<long[]> ops = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            Window window = new Window(channel, size);
+            MessageDigest md5 = newDigest();
+            long position = 0;
+            long literalStart = 0;
+            int a = 0;
+            int b = 0;
+            boolean fresh = true;
+            while (blocks > 0 && position + blockSize <= size) {
+                window.fill(position, Math.min(size, position + blockSize + 1));
+                int offset = (int) (position - window.start);
+                byte[] bytes = window.bytes;
+                if (fresh) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < blockSize; i++) {
+                        int x = bytes[offset + i] & 0xFF;
+                        a += x;
+                        b += (blockSize - i) * x;
+                    }
+                    a &= 0xFFFF;
+                    b &= 0xFFFF;
+                    fresh = false;
+                }
+                int weak = (b << 16) | a;
+                int match = -1;
+                for (int i = heads[bucket(weak, tableSize)]; i >= 0; i = next[i]) {
+                    if (base.weak[i] != weak) {
+                        continue;
+                    }
+                    if (match < 0) {
+                        md5.update(bytes, offset, blockSize);
+                        byte[] strong = md5.digest();
+                        for (int j = i; j >= 0; j = next[j]) {
+                            if (base.weak[j] == weak && Arrays.equals(strong, base.strong[j])) {
+                                match = j;
+                                // The block after the last one copied extends that copy.
+                                if (follows(ops, j)) {
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                    break;
+                }
+                if (match >= 0) {
+                    addLiteral(ops, literalStart, position);
+                    addCopy(ops, match);
+                    position += blockSize;
+                    literalStart = position;
+                    fresh = true;
+                } else {
+                    if (position + blockSize < size) {
+                        int out = bytes[offset] & 0xFF;
+                        int in = bytes[offset + blockSize] & 0xFF;
+                        a = (a - out + in) & 0xFFFF;
+                        b = (b - blockSize * out + a) & 0xFFFF;
+                    }
+                    position++;
+                }
+            }
+            addLiteral(ops, literalStart, size);
+        }
+        return new Delta(ops);
+    }
+
+    /**
+     * What apply() made of a delta.
+     */
+    public static class Rebuilt {
+        public final String hash;
+        public final long literalBytes;
+
+        Rebuilt(String hash, long literalBytes) {
+            this.hash = hash;
+            this.literalBytes = literalBytes;
+        }
+    }
+
+    /**
+     * Writes the new version of a file to target, from the delta and the old
+     * version in base (null if there was none), and returns its ContentHash.
+     * Fails if the delta does not fit base or does not add up to size bytes.
+     */
+    public static Rebuilt apply(Path delta, Path base, int blockSize, long size, Path target) throws IOException {
+        ContentHash.Builder hasher = new ContentHash.Builder();
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        long written = 0;
+        long literalBytes = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(delta)));
+                FileChannel old = base != null ? FileChannel.open(base, StandardOpenOption.READ) : null;
+                FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long oldSize = old != null ? old.size() : 0;
+            int type;
+            while ((type = in.read()) >= 0) {
+                if (type == COPY) {
+                    long first = in.readInt();
+                    long count = in.readInt();
+                    long start = first * blockSize;
+                    long end = (first + count) * blockSize;
+                    if (first < 0 || count <= 0 || end > oldSize) {
+                        throw new IOException("The delta does not fit the file on the server.");
+                    }
+                    for (long position = start; position < end; ) {
+                        buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                        if (old.read(buffer, position) < 0) {
+                            throw new IOException("File shrank while it was being read.");
+                        }
+                        buffer.flip();
+                        position += buffer.remaining();
+                        written += write(buffer, out, hasher);
+                    }
+                } else if (type == DATA) {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_LITERAL) {
+                        throw new IOException("Malformed delta.");
+                    }
+                    literalBytes += length;
+                    for (int done = 0; done < length; ) {
+                        int count = Math.min(buffer.capacity(), length - done);
+                        in.readFully(buffer.array(), 0, count);
+                        buffer.clear().limit(count);
+                        done += count;
+                        written += write(buffer, out, hasher);
+                    }
+                } else {
+                    throw new IOException("Malformed delta.");
+                }
+                if (written > size) {
+                    throw new IOException("The delta makes the file bigger than it should be.");
+                }
+            }
+        }
+        if (written != size) {
+            throw new IOException("The delta makes the file smaller than it should be.");
+        }
+        return new Rebuilt(hasher.finish(), literalBytes);
+    }
+
+    private static int write(ByteBuffer bytes, FileChannel out, ContentHash.Builder hasher) throws IOException {
+        int count = bytes.remaining();
+        hasher.update(bytes.duplicate());
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+        return count;
+    }
+
+    /**
+     * The part of the file the delta scan is looking at, read ahead in large
+     * pieces. Only the window itself is kept; literals are read again when the
+     * delta is sent.
+     */
+    private static class Window {
+        private final FileChannel channel;
+        private final long size;
+        private final byte[] bytes = new byte[WINDOW_BUFFER_SIZE];
+        private long start;
+        private long end;
+
+        Window(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        /**
+         * Makes bytes[from - start, to - start) hold that part of the file.
+         */
+        void fill(long from, long to) throws IOException {
+            if (to <= end) {
+                return;
+            }
+            int kept = (int) (end - from);
+            if (kept > 0) {
+                System.arraycopy(bytes, (int) (from - start), bytes, 0, kept);
+            } else {
+                kept = 0;
+            }
+            start = from;
+            end = from + kept;
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, kept, (int) Math.min(bytes.length - kept, size - end));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, end) < 0) {
+                    throw new IOException("File shrank while it was being read.");
+                }
+                end = start + buffer.position();
+            }
+        }
+    }
+
+    private static boolean follows(List<long[]> ops, int block) {
+        if (ops.isEmpty()) {
+            return false;
+        }
+        long[] last = ops.get(ops.size() - 1);
+        return last[0] == COPY && last[1] + last[2] == block;
+    }
+
+    private static void addCopy(List<long[]> ops, int block) {
+        if (follows(ops, block)) {
+            ops.get(ops.size() - 1)[2]++;
+        } else {
+            ops.add(new long[] {COPY, block, 1});
+        }
+    }
+
+    private static void addLiteral(List<long[]> ops, long from, long to) {
+        for (long offset = from; offset < to; offset += MAX_LITERAL) {
+            ops.add(new long[] {DATA, offset, Math.min(MAX_LITERAL, to - offset)});
+        }
+    }
+
+    private static int weakChecksum(byte[] bytes, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = bytes[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    private static int bucket(int weak, int tableSize) {
+        int mixed = weak * 0x9E3779B1;
+        return (mixed ^ (mixed >>> 16)) & (tableSize - 1);
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd number of hex digits.");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Not hex: " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * The server's disk threads, so file I/O does not hold up the threads that
+ * serve connections, and group commit for stored files.
+ *
+ * Uploads are written through AsynchronousFileChannels running on the disk
+ * executor. When one is complete, commit() makes it durable before it becomes
+ * visible: the file is forced to disk, published under its real name by an
+ * atomic rename, and the directory is forced so the rename survives a crash.
+ * Only then is the client told it was stored. A crash therefore leaves either
+ * the old state or the whole new file, never a torn one under the real name;
+ * at worst a hidden temp file remains, and the server clears those at start.
+ *
+ * Forcing is slow, so it is shared. A single committer thread takes every
+ * commit that has queued up since its last round: it forces all their files at
+ * once on the disk threads, publishes them in order, and forces each directory
+ * once for the lot. An upload arriving alone is committed at once; under load
+ * each round is bigger, and the cost of one directory sync is spread over all
+ * of them.
+ */
+
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+public class DiskIo {
+    private static final int MAX_BATCH = 256;
+    private static final long POLL_MILLIS = 200;
+
+    private final ExecutorService executor;
+    private final BlockingQueue<Commit<?>> commits = new LinkedBlockingQueue<>();
+    private final Thread committer;
+    private final Consumer<String> log;
+    private final LongAdder rounds = new LongAdder();
+    private final LongAdder committed = new LongAdder();
+    private volatile boolean running = true;
+    // Not every platform can open a directory to force it; there the rename is
+    // as durable as the file system makes it anyway.
+    private volatile boolean directorySyncUnsupported;
+
+    public DiskIo(int threads, Consumer<String> log) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "disk-io-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.log = log;
+        this.committer = new Thread(this::commitLoop, "disk-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Work done on a disk thread.
+     */
+    @FunctionalInterface
+    public interface IoTask<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Creates a file for writing whose completions run on the disk threads.
+     */
+    public AsynchronousFileChannel create(Path file) throws IOException {
+        return AsynchronousFileChannel.open(file, EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+                executor);
+    }
+
+    /**
+     * Runs blocking file work on a disk thread. Its IOException, if any, fails
+     * the future.
+     */
+    public <T> CompletableFuture<T> submit(IoTask<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> complete(result, task));
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new IOException("The server is stopping."));
+        }
+        return result;
+    }
+
+    /**
+     * Forces a finished file to disk and closes it, then runs publish, which
+     * should rename it into directory, and forces directory. The future completes
+     * with publish's result once all of that is durable.
+     */
+    public <T> CompletableFuture<T> commit(AsynchronousFileChannel file, Path directory, IoTask<T> publish) {
+        return enqueue(new Commit<>(() -> {
+            try (AsynchronousFileChannel closing = file) {
+                closing.force(true);
+            }
+        }, directory, publish));
+    }
+
+    /**
+     * The same for a file that was written and closed by other means.
+     */
+    public <T> CompletableFuture<T> commit(Path file, Path directory, IoTask<T> publish) {
+        return enqueue(new Commit<>(() -> {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }, directory, publish));
+    }
+
+    /**
+     * Rounds of forcing so far, and how many files they committed between them;
+     * the ratio is the average batch.
+     */
+    public long getCommitRounds() {
+        return rounds.sum();
+    }
+
+    public long getCommittedFiles() {
+        return committed.sum();
+    }
+
+    /**
+     * Lets queued commits finish, then stops the disk threads.
+     */
+    public void close() {
+        running = false;
+        try {
+            committer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Anything that slipped in as the committer stopped.
+        Commit<?> late;
+        while ((late = commits.poll()) != null) {
+            late.result.completeExceptionally(new IOException("The server is stopping."));
+        }
+        executor.shutdown();
+    }
+
+    private <T> CompletableFuture<T> enqueue(Commit<T> commit) {
+        if (!running) {
+            commit.result.completeExceptionally(new IOException("The server is stopping."));
+            return commit.result;
+        }
+        commits.add(commit);
+        return commit.result;
+    }
+
+    private void commitLoop() {
+        List<Commit<?>> batch = new ArrayList<>();
+        while (running || !commits.isEmpty()) {
+            Commit<?> first;
+            try {
+                // Polled rather than interrupted out of take(): an interrupt
+                // would close whatever FileChannel the thread was using.
+                first = commits.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                continue;
+            }
+            batch.add(first);
+            commits.drainTo(batch, MAX_BATCH - 1);
+            commitBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void commitBatch(List<Commit<?>> batch) {
+        // Every file at once, so the file system can fold them into as few
+        // journal commits as it likes.
+        List<CompletableFuture<Void>> forced = new ArrayList<>(batch.size());
+        for (Commit<?> commit : batch) {
+            forced.add(submit(() -> {
+                commit.force.run();
+                return null;
+            }));
+        }
+        Set<Path> directories = new LinkedHashSet<>();
+        List<Commit<?>> published = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Commit<?> commit = batch.get(i);
+            try {
+                forced.get(i).join();
+                commit.publish();
+                directories.add(commit.directory);
+                published.add(commit);
+            } catch (CompletionException e) {
+                commit.result.completeExceptionally(e.getCause());
+            } catch (IOException | RuntimeException e) {
+                commit.result.completeExceptionally(e);
+            }
+        }
+        for (Path directory : directories) {
+            forceDirectory(directory);
+        }
+        rounds.increment();
+        committed.add(published.size());
+        for (Commit<?> commit : published) {
+            commit.finish();
+        }
+    }
+
+    private void forceDirectory(Path directory) {
+        if (directorySyncUnsupported) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            directorySyncUnsupported = true;
+            log.accept("Directories cannot be synced here, renames are left to the file system: " + e.getMessage());
+        }
+    }
+
+    private static <T> void complete(CompletableFuture<T> result, IoTask<T> task) {
+        try {
+            result.complete(task.run());
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface IoAction {
+        void run() throws IOException;
+    }
+
+    private static class Commit<T> {
+        private final IoAction force;
+        private final Path directory;
+        private final IoTask<T> publisher;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private T value;
+
+        Commit(IoAction force, Path directory, IoTask<T> publisher) {
+            this.force = force;
+            this.directory = directory;
+            this.publisher = publisher;
+        }
+
+        void publish() throws IOException {
+            value = publisher.run();
+        }
+
+        void finish() {
+            result.complete(value);
+        }
+    }
+}
@@ -0,0 +1,652 @@
+/**
+ * Joins several Server processes into one cluster over peer TCP links, kept
+ * apart from the port clients connect to.
+ *
+ * Each node dials the peers it was given, accepts the ones that dial it, and
+ * tells every new peer where the others are, so the nodes end up fully
+ * meshed. Links that drop are dialled again every RECONNECT_SECONDS. If two
+ * nodes dial each other at once, both keep the link started by the node with
+ * the lower name.
+ *
+ * Handles: every node tells its peers which handles it holds, so any node can
+ * route a unicast to the one the target is connected to. /register first takes
+ * the handle locally and then asks every connected peer, and only succeeds if
+ * all of them grant it. A peer refuses a handle it holds itself or has already
+ * granted to another node. Of two nodes claiming the same handle at once, at
+ * least one is therefore refused by the other; both may be, and their clients
+ * simply try again. A peer that does not answer within CLAIM_TIMEOUT_MILLIS
+ * counts as a refusal. Nodes that cannot reach each other cannot check each
+ * other's handles either; if both took the same one meanwhile, the conflict is
+ * logged when they reconnect and each keeps the handle for its own clients.
+ *
+ * A broadcast crosses each link once, and the receiving node fans it out to its
+ * own clients. Nodes also send their file names whenever those change, for the
+ * federated /dir.
+ *
+ * Frame:   int length | byte type | fields       (length counts type + fields)
+ *
+ * Fields are encoded as in WireProtocol.
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class Federation {
+    /**
+     * What the federation needs from the server it runs in. The deliver methods
+     * are called on a link's reader thread and must not block for long.
+     */
+    public interface LocalNode {
+        boolean hasHandle(String handle);
+
+        Collection<String> handles();
+
+        List<String> files();
+
+        void deliverUnicast(byte[] sender, String target, ByteBuffer message);
+
+        void deliverBroadcast(byte[] sender, ByteBuffer message);
+    }
+
+    private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    // Frames one link may have waiting; a peer that falls this far behind is
+    // dropped and dialled again, and catches up from the snapshots sent then.
+    private static final int MAX_QUEUED_FRAMES = 10_000;
+    private static final long CLAIM_TIMEOUT_MILLIS = 1000;
+    private static final long RECONNECT_SECONDS = 2;
+    private static final long FILES_INTERVAL_SECONDS = 2;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    /** [node name][int peer port] */
+    private static final byte HELLO = 1;
+    /** [int count]["host:peer port"]... the sender's other peers */
+    private static final byte PEERS = 2;
+    /** [int count][handle]... every handle the sender holds */
+    private static final byte HANDLES = 3;
+    /** [long id][handle] */
+    private static final byte CLAIM = 4;
+    /** [long id][byte granted] */
+    private static final byte GRANT = 5;
+    /** [handle] */
+    private static final byte RELEASE = 6;
+    /** [sender][target][message] */
+    private static final byte UNICAST = 7;
+    /** [sender][message] */
+    private static final byte BROADCAST = 8;
+    /** [int count][filename]... every file the sender has */
+    private static final byte FILES = 9;
+
+    private final LocalNode node;
+    private final Consumer<String> log;
+    private volatile String name;
+    private int peerPort;
+    private ServerSocket listener;
+    private ScheduledExecutorService timer;
+    private volatile boolean running;
+
+    // Linked peers by node name, once they have said hello.
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+    // Handles held on other nodes, or granted to them, and the link to each.
+    private final ConcurrentHashMap<String, Peer> owners = new ConcurrentHashMap<>();
+    // Peer addresses to stay linked to, and the ones that turned out to be us.
+    private final Set<InetSocketAddress> known = ConcurrentHashMap.newKeySet();
+    private final Set<InetSocketAddress> self = ConcurrentHashMap.newKeySet();
+    private final Set<InetSocketAddress> dialing = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<Long, Claim> claims = new ConcurrentHashMap<>();
+    private final AtomicLong claimIds = new AtomicLong();
+    private List<String> lastFiles = Collections.emptyList();
+
+    public Federation(LocalNode node, Consumer<String> log) {
+        this.node = node;
+        this.log = log;
+    }
+
+    /**
+     * Listens for peers on peerPort and starts dialling the given ones. Until
+     * this is called the node is on its own, and every method is a no-op.
+     */
+    public synchronized void start(String nodeName, int peerPort, List<InetSocketAddress> seeds) throws IOException {
+        if (running) {
+            throw new IllegalStateException("Already federated as " + name + ".");
+        }
+        name = nodeName;
+        this.peerPort = peerPort;
+        listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress(peerPort));
+        known.addAll(seeds);
+        running = true;
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "federation-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::dialAll, 0, RECONNECT_SECONDS, TimeUnit.SECONDS);
+        timer.scheduleWithFixedDelay(this::sendFilesIfChanged, FILES_INTERVAL_SECONDS, FILES_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+        Thread acceptor = new Thread(this::acceptPeers, "federation-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.accept("Node " + name + " listening for peers on port " + peerPort);
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        timer.shutdownNow();
+        try {
+            listener.close();
+        } catch (IOException ignored) {
+        }
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Names of the nodes currently linked to this one.
+     */
+    public Set<String> getPeers() {
+        return Collections.unmodifiableSet(peers.keySet());
+    }
+
+    /**
+     * Asks every linked peer whether handle is free, after the caller has taken
+     * it locally. The future completes with the answer once every peer has
+     * granted it, one has refused, or CLAIM_TIMEOUT_MILLIS has passed; it is
+     * completed on a link's reader thread or the timer, so what follows it must
+     * not block. A refused claim is withdrawn again from the peers that granted
+     * it.
+     */
+    public CompletableFuture<Boolean> claim(String handle) {
+        if (owners.containsKey(handle)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        List<Peer> asked = new ArrayList<>(peers.values());
+        if (asked.isEmpty()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        long id = claimIds.incrementAndGet();
+        Claim claim = new Claim(asked.size());
+        claims.put(id, claim);
+        ScheduledFuture<?> timeout;
+        try {
+            timeout = timer.schedule(() -> claim.result.complete(false), CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            claims.remove(id);
+            return CompletableFuture.completedFuture(false);
+        }
+        ByteBuffer request = frame(CLAIM, id, handle);
+        for (Peer peer : asked) {
+            peer.send(request.duplicate());
+        }
+        return claim.result.whenComplete((granted, e) -> {
+            claims.remove(id);
+            timeout.cancel(false);
+            if (!granted) {
+                released(handle);
+            }
+        });
+    }
+
+    /**
+     * Tells the peers that this node no longer holds handle.
+     */
+    public void released(String handle) {
+        sendAll(frame(RELEASE, handle));
+    }
+
+    /**
+     * Forwards a unicast to the node holding target. Returns false if no linked
+     * node does.
+     */
+    public boolean unicast(String target, byte[] sender, ByteBuffer message) {
+        Peer owner = owners.get(target);
+        if (owner == null) {
+            return false;
+        }
+        owner.send(frame(UNICAST, sender, target, message));
+        return true;
+    }
+
+    public void broadcast(byte[] sender, ByteBuffer message) {
+        sendAll(frame(BROADCAST, sender, message));
+    }
+
+    /**
+     * The files on each linked node, by node name.
+     */
+    public Map<String, List<String>> files() {
+        Map<String, List<String>> files = new TreeMap<>();
+        for (Peer peer : peers.values()) {
+            files.put(peer.name, peer.files);
+        }
+        return files;
+    }
+
+    private void sendAll(ByteBuffer frame) {
+        for (Peer peer : peers.values()) {
+            peer.send(frame.duplicate());
+        }
+    }
+
+    private void sendFilesIfChanged() {
+        if (peers.isEmpty()) {
+            return;
+        }
+        List<String> files = node.files();
+        if (!files.equals(lastFiles)) {
+            lastFiles = files;
+            sendAll(frame(FILES, files));
+        }
+    }
+
+    private void acceptPeers() {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                new Peer(socket, false, null).start();
+            } catch (IOException e) {
+                if (running) {
+                    log.accept("Error accepting a peer: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void dialAll() {
+        Set<InetSocketAddress> linked = ConcurrentHashMap.newKeySet();
+        for (Peer peer : peers.values()) {
+            linked.add(peer.address);
+        }
+        for (InetSocketAddress address : known) {
+            if (!linked.contains(address) && !self.contains(address) && dialing.add(address)) {
+                Thread dialer = new Thread(() -> dial(address), "federation-dial");
+                dialer.setDaemon(true);
+                dialer.start();
+            }
+        }
+    }
+
+    private void dial(InetSocketAddress address) {
+        try {
+            Socket socket = new Socket();
+            try {
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                socket.close();
+                return;
+            }
+            new Peer(socket, true, address).start();
+        } catch (IOException e) {
+            log.accept("Error linking to " + address + ": " + e.getMessage());
+        } finally {
+            dialing.remove(address);
+        }
+    }
+
+    /**
+     * Called once a link has said hello. Returns false if the link is not
+     * wanted: it leads back to this node, or the two nodes are already linked
+     * the other way.
+     */
+    private boolean linked(Peer peer) {
+        if (peer.name.equals(name)) {
+            self.add(peer.address);
+            known.remove(peer.address);
+            return false;
+        }
+        known.add(peer.address);
+        Peer existing = peers.putIfAbsent(peer.name, peer);
+        if (existing != null) {
+            // A new link from the same side is a reconnect, and the old one is
+            // dead even if that has not shown yet.
+            String lower = peer.name.compareTo(name) < 0 ? peer.name : name;
+            boolean keep = peer.dialer().equals(existing.dialer()) || peer.dialer().equals(lower);
+            if (!keep || !peers.replace(peer.name, existing, peer)) {
+                return false;
+            }
+            existing.close();
+        }
+        log.accept("Linked to node " + peer.name + " at " + peer.address);
+
+        // Everything the new peer needs to know about this node and the rest of
+        // the cluster.
+        peer.send(frame(HANDLES, new ArrayList<>(node.handles())));
+        peer.send(frame(FILES, node.files()));
+        List<String> others = new ArrayList<>();
+        for (Peer other : peers.values()) {
+            if (other != peer) {
+                others.add(other.address.getAddress().getHostAddress() + ":" + other.address.getPort());
+            }
+        }
+        peer.send(frame(PEERS, others));
+        return true;
+    }
+
+    private void unlinked(Peer peer) {
+        if (peer.name == null || !peers.remove(peer.name, peer)) {
+            return;
+        }
+        owners.values().removeIf(owner -> owner == peer);
+        if (running) {
+            log.accept("Lost the link to node " + peer.name);
+        }
+    }
+
+    private void receive(Peer peer, ByteBuffer frame) {
+        byte type = frame.get();
+        switch (type) {
+            case PEERS: {
+                int count = frame.getInt();
+                for (int i = 0; i < count; i++) {
+                    String address = WireProtocol.getString(frame);
+                    int colon = address.lastIndexOf(':');
+                    known.add(new InetSocketAddress(address.substring(0, colon),
+                            Integer.parseInt(address.substring(colon + 1))));
+                }
+                try {
+                    timer.execute(this::dialAll);
+                } catch (RejectedExecutionException e) {
+                    // Closing.
+                }
+                break;
+            }
+            case HANDLES: {
+                int count = frame.getInt();
+                for (int i = 0; i < count; i++) {
+                    String handle = WireProtocol.getString(frame);
+                    if (node.hasHandle(handle)) {
+                        log.accept("Handle " + handle + " is held on both this node and " + peer.name);
+                    } else {
+                        owners.put(handle, peer);
+                    }
+                }
+                break;
+            }
+            case CLAIM: {
+                long id = frame.getLong();
+                String handle = WireProtocol.getString(frame);
+                // Recorded before checking the local handles, while a local
+                // /register takes its handle before checking these; of the two,
+                // at least one sees the other.
+                Peer owner = owners.putIfAbsent(handle, peer);
+                boolean granted = owner == null || owner == peer;
+                if (granted && node.hasHandle(handle)) {
+                    owners.remove(handle, peer);
+                    granted = false;
+                }
+                peer.send(frame(GRANT, id, granted));
+                break;
+            }
+            case GRANT: {
+                Claim claim = claims.get(frame.getLong());
+                if (claim != null) {
+                    claim.answer(frame.get() != 0);
+                }
+                break;
+            }
+            case RELEASE:
+                owners.remove(WireProtocol.getString(frame), peer);
+                break;
+            case UNICAST: {
+                byte[] sender = bytes(WireProtocol.getStringView(frame));
+                String target = WireProtocol.getString(frame);
+                node.deliverUnicast(sender, target, WireProtocol.getStringView(frame));
+                break;
+            }
+            case BROADCAST: {
+                byte[] sender = bytes(WireProtocol.getStringView(frame));
+                node.deliverBroadcast(sender, WireProtocol.getStringView(frame));
+                break;
+            }
+            case FILES: {
+                int count = frame.getInt();
+                List<String> files = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    files.add(WireProtocol.getString(frame));
+                }
+                peer.files = files;
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown frame type " + type + ".");
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer view) {
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Builds a frame from fields: String, byte[] and ByteBuffer as strings,
+     * Integer, Long and Boolean as int, long and byte, and a collection of
+     * strings as a count followed by the strings.
+     */
+    private static ByteBuffer frame(byte type, Object... fields) {
+        int length = 1;
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] instanceof String) {
+                fields[i] = ((String) fields[i]).getBytes(StandardCharsets.UTF_8);
+            }
+            length += fieldLength(fields[i]);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).put(type);
+        for (Object field : fields) {
+            if (field instanceof byte[]) {
+                WireProtocol.putString(frame, (byte[]) field);
+            } else if (field instanceof ByteBuffer) {
+                ByteBuffer view = (ByteBuffer) field;
+                frame.putShort((short) view.remaining()).put(view.duplicate());
+            } else if (field instanceof Integer) {
+                frame.putInt((Integer) field);
+            } else if (field instanceof Long) {
+                frame.putLong((Long) field);
+            } else if (field instanceof Boolean) {
+                frame.put((byte) ((Boolean) field ? 1 : 0));
+            } else {
+                Collection<?> strings = (Collection<?>) field;
+                frame.putInt(strings.size());
+                for (Object string : strings) {
+                    WireProtocol.putString(frame, ((String) string).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return frame.flip();
+    }
+
+    private static int fieldLength(Object field) {
+        if (field instanceof byte[]) {
+            return 2 + ((byte[]) field).length;
+        } else if (field instanceof ByteBuffer) {
+            return 2 + ((ByteBuffer) field).remaining();
+        } else if (field instanceof Integer) {
+            return 4;
+        } else if (field instanceof Long) {
+            return 8;
+        } else if (field instanceof Boolean) {
+            return 1;
+        }
+        int length = 4;
+        for (Object string : (Collection<?>) field) {
+            length += 2 + ((String) string).getBytes(StandardCharsets.UTF_8).length;
+        }
+        return length;
+    }
+
+    /**
+     * Answers still owed to a claim, and its outcome once the last grant or the
+     * first refusal is in.
+     */
+    private static class Claim {
+        private final AtomicInteger owed;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Claim(int peers) {
+            owed = new AtomicInteger(peers);
+        }
+
+        void answer(boolean granted) {
+            if (!granted) {
+                result.complete(false);
+            } else if (owed.decrementAndGet() == 0) {
+                result.complete(true);
+            }
+        }
+    }
+
+    /**
+     * One link to another node: a reader thread that handles its frames as they
+     * arrive, and a writer thread that sends what is queued for it, so a slow
+     * peer never holds up a client's thread.
+     */
+    private class Peer {
+        private final Socket socket;
+        private final boolean outbound;
+        private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>(MAX_QUEUED_FRAMES);
+        // Where the node accepts peers; known up front only if we dialled it.
+        private volatile InetSocketAddress address;
+        private volatile String name;
+        private volatile List<String> files = Collections.emptyList();
+        private volatile boolean closed;
+
+        Peer(Socket socket, boolean outbound, InetSocketAddress address) throws SocketException {
+            this.socket = socket;
+            this.outbound = outbound;
+            this.address = address;
+            socket.setTcpNoDelay(true);
+        }
+
+        void start() {
+            send(frame(HELLO, Federation.this.name, peerPort));
+            Thread reader = new Thread(this::read, "federation-reader");
+            reader.setDaemon(true);
+            reader.start();
+            Thread writer = new Thread(this::write, "federation-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * The name of the node that opened the link.
+         */
+        String dialer() {
+            return outbound ? Federation.this.name : name;
+        }
+
+        void send(ByteBuffer frame) {
+            if (!closed && !queue.offer(frame)) {
+                log.accept("Node " + name + " is not keeping up, dropping the link.");
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            // Wakes the writer up so it sees the link is closed.
+            queue.offer(ByteBuffer.allocate(0));
+            unlinked(this);
+        }
+
+        private void read() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (!closed) {
+                    int length = in.readInt();
+                    if (length < 1 || length > MAX_FRAME_LENGTH) {
+                        throw new IOException("Frame of " + length + " bytes.");
+                    }
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    ByteBuffer frame = ByteBuffer.wrap(bytes);
+                    if (name == null) {
+                        if (frame.get() != HELLO) {
+                            throw new IOException("The peer did not say hello.");
+                        }
+                        String peerName = WireProtocol.getString(frame);
+                        int port = frame.getInt();
+                        if (address == null) {
+                            address = new InetSocketAddress(socket.getInetAddress(), port);
+                        }
+                        name = peerName;
+                        if (!linked(this)) {
+                            break;
+                        }
+                        continue;
+                    }
+                    receive(this, frame);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!closed && running) {
+                    log.accept("Error on the link to " + (name != null ? "node " + name : socket.getInetAddress())
+                            + ": " + e.getMessage());
+                }
+            }
+            close();
+        }
+
+        private void write() {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                while (!closed) {
+                    ByteBuffer frame = queue.take();
+                    out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    // Frames queued meanwhile go out in the same flush.
+                    while ((frame = queue.poll()) != null && !closed) {
+                        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    }
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * Contents of frequently downloaded files, kept in direct memory so a /get for
+ * a hot file is written to the socket straight from the cached buffer instead
+ * of opening and reading the file again.
+ *
+ * Whole files are cached up to a byte budget, none bigger than a quarter of it.
+ * Eviction is LRU, with a TinyLFU admission filter in front: a count-min sketch
+ * estimates how often each name has been asked for lately, and a file only
+ * displaces the least recently used entries if it is wanted more often than
+ * each of them. A one-off download of a large file cannot flush out the files
+ * everyone is fetching. The sketch halves its counts every SAMPLE_SIZE
+ * requests, so popularity fades.
+ *
+ * An entry remembers the size and modification time it was loaded with, and a
+ * lookup with other values (see FileIndex) is a miss; the server also drops a
+ * name whenever it stores or loses that file. Buffers are handed out as
+ * read-only duplicates, so an evicted buffer stays valid for transfers still
+ * using it, and the garbage collector frees it after.
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+public class FileCache {
+    public static final long DISABLED = 0;
+    private static final int MAX_ENTRY_SHARE = 4;
+
+    // In access order, least recently used first. Guarded by this, as are the
+    // sketch and the sizes.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch = new FrequencySketch();
+    private volatile long capacity;
+    private long size;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    public FileCache(long capacityBytes) {
+        setCapacity(capacityBytes);
+    }
+
+    /**
+     * The byte budget, or DISABLED. Shrinking it evicts at once.
+     */
+    public synchronized void setCapacity(long bytes) {
+        capacity = Math.max(DISABLED, bytes);
+        evictTo(capacity);
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns a read-only buffer holding the file's contents, positioned at 0,
+     * or null if it should be read from disk this time. fileSize and
+     * lastModified are the file's current attributes as the caller knows them.
+     * A miss loads the file if the admission filter lets it in.
+     */
+    public ByteBuffer get(String name, Path file, long fileSize, long lastModified) {
+        if (capacity == DISABLED) {
+            return null;
+        }
+        synchronized (this) {
+            sketch.increment(name);
+            Entry entry = entries.get(name);
+            if (entry != null && entry.matches(fileSize, lastModified)) {
+                hits.increment();
+                return entry.contents.duplicate();
+            }
+            misses.increment();
+            if (entry != null) {
+                remove(name);
+            }
+            if (!admits(name, fileSize)) {
+                rejections.increment();
+                return null;
+            }
+        }
+
+        // Read outside the lock; if two threads miss on the same file at once
+        // both load it, and the second copy is only used for its own transfer.
+        ByteBuffer contents = load(file, fileSize, lastModified);
+        if (contents == null) {
+            return null;
+        }
+        synchronized (this) {
+            Entry current = entries.get(name);
+            if (current != null && current.matches(fileSize, lastModified)) {
+                return current.contents.duplicate();
+            }
+            if (current != null) {
+                remove(name);
+            }
+            if (admits(name, fileSize)) {
+                evictTo(capacity - fileSize);
+                entries.put(name, new Entry(contents, lastModified));
+                size += fileSize;
+            }
+        }
+        return contents.duplicate();
+    }
+
+    /**
+     * Drops the file, such as when it is replaced or deleted.
+     */
+    public synchronized void invalidate(String name) {
+        remove(name);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Misses the admission filter turned away.
+     */
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public double getHitRatio() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Whether a file of fileSize may come in, pushing out least recently used
+     * entries if need be. Each of those has to be wanted less than the newcomer.
+     */
+    private boolean admits(String name, long fileSize) {
+        if (fileSize > capacity / MAX_ENTRY_SHARE || fileSize > Integer.MAX_VALUE) {
+            return false;
+        }
+        long excess = size + fileSize - capacity;
+        if (excess <= 0) {
+            return true;
+        }
+        int frequency = sketch.frequency(name);
+        for (Map.Entry<String, Entry> victim : entries.entrySet()) {
+            if (sketch.frequency(victim.getKey()) >= frequency) {
+                return false;
+            }
+            excess -= victim.getValue().contents.capacity();
+            if (excess <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void evictTo(long limit) {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (size > limit && eldest.hasNext()) {
+            size -= eldest.next().contents.capacity();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private void remove(String name) {
+        Entry entry = entries.remove(name);
+        if (entry != null) {
+            size -= entry.contents.capacity();
+        }
+    }
+
+    /**
+     * Reads the whole file into direct memory. Returns null if it is not the
+     * size and age the caller expected, since it changed in the meantime.
+     */
+    private static ByteBuffer load(Path file, long fileSize, long lastModified) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer contents = ByteBuffer.allocateDirect((int) fileSize);
+            while (contents.hasRemaining()) {
+                if (channel.read(contents, contents.position()) < 0) {
+                    return null;
+                }
+            }
+            if (channel.size() != fileSize || Files.getLastModifiedTime(file).toMillis() != lastModified) {
+                return null;
+            }
+            return contents.flip().asReadOnlyBuffer();
+        } catch (IOException | OutOfMemoryError e) {
+            // Direct memory is limited separately from the heap; without room
+            // the file is simply sent from disk.
+            return null;
+        }
+    }
+
+    private static class Entry {
+        private final ByteBuffer contents;
+        private final long lastModified;
+
+        Entry(ByteBuffer contents, long lastModified) {
+            this.contents = contents;
+            this.lastModified = lastModified;
+        }
+
+        boolean matches(long fileSize, long lastModified) {
+            return contents.capacity() == fileSize && this.lastModified == lastModified;
+        }
+    }
+
+    /**
+     * Count-min sketch of how often names are asked for: DEPTH rows of small
+     * saturating counters, the estimate being the least of a name's counters.
+     */
+    private static class FrequencySketch {
+        private static final int WIDTH = 1 << 12;
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int SAMPLE_SIZE = 10 * WIDTH;
+        private static final int[] SEEDS = { 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F };
+
+        private final byte[][] counts = new byte[DEPTH][WIDTH];
+        private int additions;
+
+        void increment(String name) {
+            int hash = name.hashCode();
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int index = index(hash, row);
+                if (counts[row][index] < MAX_COUNT) {
+                    counts[row][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions == SAMPLE_SIZE) {
+                halve();
+            }
+        }
+
+        int frequency(String name) {
+            int hash = name.hashCode();
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counts[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private void halve() {
+            for (byte[] row : counts) {
+                for (int i = 0; i < WIDTH; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+
+        private static int index(int hash, int row) {
+            int mixed = hash * SEEDS[row];
+            return (mixed ^ (mixed >>> 16)) & (WIDTH - 1);
+        }
+    }
+}
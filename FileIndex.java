@@ -0,0 +1,307 @@
+/**
+ * In-memory index of the files in the server's storage directory.
+ *
+ * The directory is scanned once at startup and then kept current by the server
+ * (which calls update() after every store) and by a WatchService that picks up
+ * changes made outside the server. Entries are kept sorted by name, so prefix
+ * lookups and paging do not walk the whole directory. Content hashes (see
+ * ContentHash) are taken from the caller when it already knows them, and are
+ * otherwise computed in the background and null until ready.
+ */
+
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+public class FileIndex {
+
+    public static class Entry {
+        private final String name;
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        Entry(String name, long size, long lastModified, String hash) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Hex ContentHash of the contents, or null if it has not been computed yet.
+         */
+        public String getHash() {
+            return hash;
+        }
+    }
+
+    private final Path directory;
+    private final Consumer<String> log;
+    private final Consumer<String> onRemoved;
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private final ExecutorService hasher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "file-index-hasher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private WatchService watchService;
+
+    public FileIndex(Path directory, Consumer<String> log) {
+        this(directory, log, name -> {
+        });
+    }
+
+    /**
+     * onRemoved is told the name of every indexed file that disappears.
+     */
+    public FileIndex(Path directory, Consumer<String> log, Consumer<String> onRemoved) {
+        this.directory = directory;
+        this.log = log;
+        this.onRemoved = onRemoved;
+        rescan();
+    }
+
+    /**
+     * Starts watching the directory for changes made behind the server's back.
+     */
+    public void startWatching() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            log.accept("File index will not track outside changes: " + e.getMessage());
+            return;
+        }
+
+        Thread watcher = new Thread(this::watch, "file-index-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                    } else {
+                        update(directory.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    log.accept("File index stopped watching " + directory + ".");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down.
+        }
+    }
+
+    public void close() {
+        hasher.shutdownNow();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index from a full directory listing.
+     */
+    public void rescan() {
+        Set<String> seen = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                update(file);
+                seen.add(file.getFileName().toString());
+            }
+        } catch (IOException e) {
+            log.accept("Error scanning " + directory + ": " + e.getMessage());
+            return;
+        }
+        for (String name : entries.keySet()) {
+            if (!seen.contains(name)) {
+                remove(name);
+            }
+        }
+    }
+
+    /**
+     * Brings one file's entry up to date, removing it if the file is gone.
+     */
+    public void update(Path file) {
+        update(file, null);
+    }
+
+    /**
+     * Same as update(Path), with the file's ContentHash when the caller already
+     * has it so the file is not read again.
+     */
+    public void update(Path file, String hash) {
+        String name = file.getFileName().toString();
+        if (name.startsWith(".")) {
+            // In-progress uploads and other hidden files are not listed.
+            return;
+        }
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            remove(name);
+            return;
+        }
+        if (!attributes.isRegularFile()) {
+            return;
+        }
+
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        Entry current = entries.get(name);
+        if (current != null && current.size == size && current.lastModified == lastModified
+                && (hash == null || hash.equals(current.hash))) {
+            return;
+        }
+        entries.put(name, new Entry(name, size, lastModified, hash));
+        if (hash == null) {
+            hashLater(file, name, size, lastModified);
+        }
+    }
+
+    public void remove(String name) {
+        if (entries.remove(name) != null) {
+            onRemoved.accept(name);
+        }
+    }
+
+    private void hashLater(Path file, String name, long size, long lastModified) {
+        try {
+            hasher.execute(() -> {
+                Entry current = entries.get(name);
+                if (current == null || current.size != size || current.lastModified != lastModified) {
+                    return;
+                }
+                try {
+                    String hash = ContentHash.of(file);
+                    // Only publish the hash if the file did not change while it was read.
+                    entries.replace(name, current, new Entry(name, size, lastModified, hash));
+                } catch (IOException e) {
+                    // The file changed or vanished; the next update retries.
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed.
+        }
+    }
+
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Lists entries in name order. A pattern containing glob characters (* ? [ {)
+     * is matched as a glob against the whole name; anything else is a prefix, and
+     * an empty pattern matches everything.
+     */
+    public List<Entry> list(String pattern) {
+        Collection<Entry> candidates;
+        if (pattern.isEmpty()) {
+            candidates = entries.values();
+        } else if (isGlob(pattern)) {
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+            List<Entry> matches = new ArrayList<>();
+            String literalPrefix = literalPrefix(pattern);
+            for (Entry entry : entries.tailMap(literalPrefix).values()) {
+                if (!entry.name.startsWith(literalPrefix)) {
+                    break;
+                }
+                if (matcher.matches(directory.getFileSystem().getPath(entry.name))) {
+                    matches.add(entry);
+                }
+            }
+            return matches;
+        } else {
+            candidates = entries.subMap(pattern, pattern + Character.MAX_VALUE).values();
+        }
+        return new ArrayList<>(candidates);
+    }
+
+    /**
+     * Tests names against a pattern the way list() does, for names that are not
+     * in this index, such as those on other nodes (see Federation).
+     */
+    public static Predicate<String> matcher(String pattern) {
+        if (pattern.isEmpty()) {
+            return name -> true;
+        }
+        if (isGlob(pattern)) {
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+            return name -> matcher.matches(FileSystems.getDefault().getPath(name));
+        }
+        return name -> name.startsWith(pattern);
+    }
+
+    private static boolean isGlob(String pattern) {
+        for (char c : pattern.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == '{' || c == '\\') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The part of a glob before its first special character, used to narrow
+     * the range of names that have to be tested.
+     */
+    private static String literalPrefix(String pattern) {
+        int i = 0;
+        while (i < pattern.length() && "*?[{\\".indexOf(pattern.charAt(i)) < 0) {
+            i++;
+        }
+        return pattern.substring(0, i);
+    }
+}
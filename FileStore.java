@@ -0,0 +1,71 @@
+/**
+ * Storage behind /store, /get and /dir.
+ *
+ * Every stored name is presented as a readable file in getDirectory(), so
+ * downloads and the directory index work the same whatever the store does
+ * underneath. Uploads are written to a hidden temp file from newTempPath() and
+ * handed over with commit() once complete.
+ */
+
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public interface FileStore {
+    Path getDirectory();
+
+    /**
+     * Where the file stored under name can be read, whether or not it exists.
+     */
+    default Path resolve(String name) {
+        return getDirectory().resolve(name);
+    }
+
+    boolean contains(String name);
+
+    /**
+     * A fresh hidden path in the store's directory for an upload in progress.
+     */
+    Path newTempPath(String name);
+
+    /**
+     * True if the store identifies content by ContentHash, in which case
+     * uploads compute it while streaming and pass it to commit().
+     */
+    boolean isContentAddressed();
+
+    /**
+     * Makes a completed temp file visible under name. The hash may be null, and
+     * is ignored by stores that are not content addressed. Fails with
+     * FileAlreadyExistsException if the name is taken.
+     */
+    void commit(String name, Path temp, String hash) throws IOException;
+
+    /**
+     * Like commit(), but puts the temp file in place of whatever is stored under
+     * name, in one atomic step, so readers see either the old contents or the new.
+     */
+    void replace(String name, Path temp, String hash) throws IOException;
+
+    /**
+     * Stores a copy of a file that lives outside the store.
+     */
+    void importFile(Path source, String name) throws IOException;
+
+    /**
+     * The ContentHash of a stored name, or null if the store does not know it.
+     */
+    String getHash(String name);
+
+    /**
+     * Called when a stored name has disappeared from the directory.
+     */
+    void forget(String name);
+
+    /**
+     * Reconciles the store with the directory and frees unreferenced data.
+     */
+    void collectGarbage() throws IOException;
+
+    void close();
+}
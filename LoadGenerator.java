@@ -0,0 +1,891 @@
+/**
+ * A headless load generator for capacity planning. It holds thousands of
+ * sessions open, each a registered handle, sends them a scripted mix of
+ * /register, /broadcast, /unicast, /store and /get at a fixed overall rate, and
+ * reports throughput and p50/p99/p99.9 latency for each command.
+ *
+ * To run open CMD and input    javac *.java
+ *
+ * Afterwards, input            java LoadGenerator [options]
+ * e.g.                         java LoadGenerator --sessions 5000 --rate 10000 --duration 60
+ *
+ * Options:
+ *   --connect <host:port>    load a server that is already running, instead of
+ *                            one started in this process without a GUI
+ *   --mode <io mode>         I/O mode of the local server (default NIO)
+ *   --sessions <count>       concurrent handles (default 1000)
+ *   --rate <per second>      requests per second over all sessions (default 2000)
+ *   --warmup <seconds>       run before measuring starts (default 5)
+ *   --duration <seconds>     measured run (default 30)
+ *   --mix <command=weight,...>
+ *                            default register=2,broadcast=3,unicast=70,store=10,get=15
+ *   --file-size <bytes>      size of each /store, and of the file /get fetches (default 4096)
+ *   --message-size <bytes>   length of /broadcast and /unicast messages (default 64)
+ *   --threads <count>        generator I/O threads (default one per CPU)
+ *   --binary                 use the binary protocol (see WireProtocol) if the server offers it
+ *
+ * Requests go out on a fixed schedule whether or not earlier ones have been
+ * answered, and latency is measured from when a request was due rather than
+ * when it was actually sent. A server that falls behind then shows up as
+ * latency instead of quietly slowing the generator down with it. A /broadcast
+ * counts as answered once the sender gets its own copy back, and a /get once
+ * the whole file has arrived. A /register in the mix moves the session to a
+ * fresh handle on the same connection.
+ *
+ * Every session is a connection, so raise the open file limit (ulimit -n) to
+ * at least twice --sessions when the server runs in this process. A local
+ * server keeps its files in a temporary directory that is removed afterwards.
+ */
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+public class LoadGenerator {
+    private static final int LOCAL_PORT = 23300;
+    private static final long SETUP_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+    private static final Set<String> OPTIONS = Set.of("connect", "mode", "sessions", "rate", "warmup", "duration",
+            "mix", "file-size", "message-size", "threads", "binary");
+
+    private static final byte[] BROADCAST_FROM = "Broadcast from ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MESSAGE_FROM = "Message from ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FILE_HEADER = "/file ".getBytes(StandardCharsets.UTF_8);
+
+    enum Command {
+        REGISTER("/register"),
+        BROADCAST("/broadcast"),
+        UNICAST("/unicast"),
+        STORE("/store"),
+        GET("/get");
+
+        private final String name;
+
+        Command(String name) {
+            this.name = name;
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final int rate;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final boolean binary;
+    private final Command[] schedule;
+    private final String message;
+    private final ByteBuffer fileBody;
+    private final String runId = "load" + Long.toString(System.currentTimeMillis() % 1_000_000_000L, 36);
+    private final String seedFile = runId + "-seed.bin";
+
+    private final Session[] sessions;
+    private final IoThread[] ioThreads;
+    private final Stats setupStats = new Stats();
+    private final Stats warmupStats = new Stats();
+    private final Stats measuredStats = new Stats();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicInteger registered = new AtomicInteger();
+    private final LongAdder broadcastsDelivered = new LongAdder();
+    private final LongAdder unicastsDelivered = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options;
+        try {
+            options = parseOptions(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java LoadGenerator [--connect host:port] [--mode NIO] [--sessions 1000]"
+                    + " [--rate 2000] [--warmup 5] [--duration 30] [--mix command=weight,...]"
+                    + " [--file-size 4096] [--message-size 64] [--threads n] [--binary]");
+            System.exit(1);
+            return;
+        }
+
+        Server server = null;
+        Path storeDirectory = null;
+        InetSocketAddress address;
+        String connect = options.get("connect");
+        if (connect != null) {
+            int colon = connect.lastIndexOf(':');
+            address = new InetSocketAddress(connect.substring(0, colon), Integer.parseInt(connect.substring(colon + 1)));
+        } else {
+            storeDirectory = Files.createTempDirectory("load-generator-");
+            server = new Server(LOCAL_PORT, null, Server.IoMode.valueOf(options.getOrDefault("mode", "NIO")),
+                    new DedupFileStore(storeDirectory, message -> { }));
+            server.start();
+            address = new InetSocketAddress("127.0.0.1", LOCAL_PORT);
+        }
+
+        LoadGenerator generator = new LoadGenerator(address, options);
+        try {
+            generator.run();
+        } finally {
+            generator.close();
+            if (server != null) {
+                server.stop();
+                generator.deleteHandleFolders();
+                deleteRecursively(storeDirectory);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i].startsWith("--") ? args[i].substring(2) : "";
+            if (!OPTIONS.contains(name)) {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+            if (name.equals("binary")) {
+                options.put(name, "true");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+        }
+        return options;
+    }
+
+    LoadGenerator(InetSocketAddress address, Map<String, String> options) {
+        this.address = address;
+        int sessionCount = Integer.parseInt(options.getOrDefault("sessions", "1000"));
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        rate = Integer.parseInt(options.getOrDefault("rate", "2000"));
+        warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "5")));
+        durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "30")));
+        binary = options.containsKey("binary");
+        schedule = parseMix(options.getOrDefault("mix", "register=2,broadcast=3,unicast=70,store=10,get=15"));
+        message = "m".repeat(Integer.parseInt(options.getOrDefault("message-size", "64")));
+
+        byte[] body = new byte[Integer.parseInt(options.getOrDefault("file-size", "4096"))];
+        new Random(1).nextBytes(body);
+        fileBody = ByteBuffer.allocateDirect(body.length).put(body).flip().asReadOnlyBuffer();
+
+        sessions = new Session[sessionCount];
+        ioThreads = new IoThread[Math.max(1, threads)];
+    }
+
+    /**
+     * Expands "command=weight,..." into 100 slots, so picking a command is one
+     * random index.
+     */
+    private static Command[] parseMix(String mix) {
+        Map<Command, Integer> weights = new EnumMap<>(Command.class);
+        int total = 0;
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Mix entries look like command=weight: " + entry);
+            }
+            int weight = Integer.parseInt(parts[1].trim());
+            weights.put(Command.valueOf(parts[0].trim().replace("/", "").toUpperCase()), weight);
+            total += weight;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("The mix has no commands in it.");
+        }
+        List<Command> slots = new ArrayList<>();
+        for (Map.Entry<Command, Integer> entry : weights.entrySet()) {
+            long count = Math.round(100.0 * entry.getValue() / total);
+            for (int i = 0; i < count; i++) {
+                slots.add(entry.getKey());
+            }
+        }
+        return slots.toArray(new Command[0]);
+    }
+
+    private void run() throws IOException, InterruptedException {
+        for (int i = 0; i < ioThreads.length; i++) {
+            ioThreads[i] = new IoThread(i);
+            ioThreads[i].start();
+        }
+
+        long rampStart = System.nanoTime();
+        int opened = 0;
+        try {
+            for (; opened < sessions.length; opened++) {
+                SocketChannel channel = SocketChannel.open(address);
+                IoThread owner = ioThreads[opened % ioThreads.length];
+                Session session = new Session(opened, channel, owner);
+                sessions[opened] = session;
+                owner.execute(session::start);
+            }
+        } catch (IOException e) {
+            System.out.println("Only opened " + opened + " of " + sessions.length + " sessions ("
+                    + e.getMessage() + ")");
+        }
+        if (opened == 0) {
+            return;
+        }
+        if (!awaitRegistered(opened)) {
+            System.out.println("Only " + registered.get() + " of " + opened + " sessions registered.");
+            return;
+        }
+        System.out.printf("Registered %d sessions in %.2f s (%s protocol)%n", opened,
+                (System.nanoTime() - rampStart) / 1e9, sessions[0].binary ? "binary" : "text");
+
+        // The file every /get fetches.
+        Session seeder = sessions[0];
+        seeder.owner.execute(() -> seeder.store(seedFile, System.nanoTime(), setupStats));
+        if (!awaitOutstanding(SETUP_TIMEOUT_NANOS) || setupStats.errors(Command.STORE) > 0) {
+            System.out.println("Could not store " + seedFile + " on the server.");
+            return;
+        }
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        long measureStart = start + warmupNanos;
+        long end = measureStart + durationNanos;
+        for (IoThread thread : ioThreads) {
+            thread.execute(() -> thread.startLoad(start, measureStart, end));
+        }
+
+        sleepUntil(measureStart);
+        long[] before = counters();
+        sleepUntil(end);
+        long[] after = counters();
+        boolean drained = awaitOutstanding(DRAIN_TIMEOUT_NANOS);
+
+        report(before, after, drained);
+    }
+
+    private boolean awaitRegistered(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + SETUP_TIMEOUT_NANOS;
+        while (registered.get() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        return registered.get() >= count;
+    }
+
+    private boolean awaitOutstanding(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        return outstanding.get() == 0;
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    private long[] counters() {
+        return new long[] { broadcastsDelivered.sum(), unicastsDelivered.sum(), bytesIn.sum(), bytesOut.sum() };
+    }
+
+    private void report(long[] before, long[] after, boolean drained) {
+        double seconds = durationNanos / 1e9;
+        System.out.printf("Target %d requests/s for %.0f s after %.0f s warm-up%n", rate, seconds, warmupNanos / 1e9);
+        System.out.printf("%-11s %9s %7s %10s %10s %10s %10s %10s%n",
+                "command", "count", "errors", "per sec", "p50 us", "p99 us", "p99.9 us", "max us");
+        long allErrors = 0;
+        for (Command command : Command.values()) {
+            LatencyHistogram.Snapshot snapshot = measuredStats.latency(command).snapshot();
+            if (snapshot.getCount() == 0) {
+                continue;
+            }
+            long errors = measuredStats.errors(command);
+            allErrors += errors;
+            printRow(command.name, snapshot, errors, seconds);
+        }
+        printRow("all", measuredStats.all().snapshot(), allErrors, seconds);
+
+        System.out.printf("Delivered %.0f broadcasts/s and %.0f unicasts/s; read %.1f MB/s, wrote %.1f MB/s%n",
+                (after[0] - before[0]) / seconds, (after[1] - before[1]) / seconds,
+                (after[2] - before[2]) / seconds / (1 << 20), (after[3] - before[3]) / seconds / (1 << 20));
+        if (!drained || lost.sum() > 0) {
+            System.out.println("Unanswered requests: " + (outstanding.get() + lost.sum()));
+        }
+        if (skipped.sum() > 0) {
+            System.out.println("Requests not sent because their session had closed: " + skipped.sum());
+        }
+    }
+
+    private static void printRow(String name, LatencyHistogram.Snapshot snapshot, long errors, double seconds) {
+        System.out.printf("%-11s %9d %7d %10.0f %10d %10d %10d %10d%n", name, snapshot.getCount(), errors,
+                snapshot.getCount() / seconds, snapshot.getPercentile(50) / 1000, snapshot.getPercentile(99) / 1000,
+                snapshot.getPercentile(99.9) / 1000, snapshot.getMax() / 1000);
+    }
+
+    private void close() throws InterruptedException {
+        for (IoThread thread : ioThreads) {
+            if (thread != null) {
+                thread.execute(thread::shutDown);
+                thread.join();
+            }
+        }
+    }
+
+    /**
+     * The server makes a <handle>_files folder in its working directory for
+     * every handle that registers; a local server shares ours.
+     */
+    private void deleteHandleFolders() throws IOException {
+        for (Session session : sessions) {
+            if (session == null) {
+                continue;
+            }
+            for (int generation = 0; generation <= session.generation; generation++) {
+                Path folder = Paths.get(session.handleName(generation) + "_files");
+                if (Files.isDirectory(folder)) {
+                    deleteRecursively(folder);
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Latency and error counts per command for one phase of the run.
+     */
+    private static class Stats {
+        private final LatencyHistogram[] latencies = new LatencyHistogram[Command.values().length];
+        private final LongAdder[] errors = new LongAdder[Command.values().length];
+        private final LatencyHistogram all = new LatencyHistogram();
+
+        Stats() {
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+                errors[i] = new LongAdder();
+            }
+        }
+
+        void record(Command command, long nanos, boolean error) {
+            latencies[command.ordinal()].record(nanos);
+            all.record(nanos);
+            if (error) {
+                errors[command.ordinal()].increment();
+            }
+        }
+
+        LatencyHistogram latency(Command command) {
+            return latencies[command.ordinal()];
+        }
+
+        long errors(Command command) {
+            return errors[command.ordinal()].sum();
+        }
+
+        LatencyHistogram all() {
+            return all;
+        }
+    }
+
+    /**
+     * A request waiting for its answer.
+     */
+    private static class Request {
+        final Command command;
+        final long due;
+        final Stats stats;
+        // The handle a /register moves to.
+        final String handle;
+
+        Request(Command command, long due, Stats stats, String handle) {
+            this.command = command;
+            this.due = due;
+            this.stats = stats;
+            this.handle = handle;
+        }
+    }
+
+    /**
+     * One connection and handle. Only ever touched by its owning IoThread, apart
+     * from the handle, which other sessions read to pick /unicast targets.
+     */
+    private class Session {
+        final int index;
+        final SocketChannel channel;
+        final IoThread owner;
+        volatile String handle;
+        int generation;
+        int stores;
+        boolean binary;
+        boolean negotiating;
+        SelectionKey key;
+
+        private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+        // Requests answered by a reply line, in the order they were sent.
+        private final Queue<Request> replies = new ArrayDeque<>();
+        // Broadcasts answered by their own copy coming back, which the server
+        // sends from another thread, so these can overtake or trail the replies.
+        private final Queue<Request> broadcasts = new ArrayDeque<>();
+        private ByteBuffer leftover;
+        private long bodyRemaining;
+
+        Session(int index, SocketChannel channel, IoThread owner) {
+            this.index = index;
+            this.channel = channel;
+            this.owner = owner;
+        }
+
+        String handleName(int generation) {
+            return generation == 0 ? runId + "-" + index : runId + "-" + index + "." + generation;
+        }
+
+        void start() {
+            try {
+                channel.configureBlocking(false);
+                key = channel.register(owner.selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            if (LoadGenerator.this.binary) {
+                negotiating = true;
+                write(ByteBuffer.wrap((WireProtocol.NEGOTIATE + "\n").getBytes(StandardCharsets.UTF_8)));
+            } else {
+                register(handleName(0), System.nanoTime(), setupStats);
+            }
+        }
+
+        boolean isOpen() {
+            return channel.isOpen() && handle != null;
+        }
+
+        void register(String newHandle, long due, Stats stats) {
+            send(new Request(Command.REGISTER, due, stats, newHandle), "/register " + newHandle);
+        }
+
+        void broadcast(long due, Stats stats) {
+            Request request = new Request(Command.BROADCAST, due, stats, null);
+            outstanding.incrementAndGet();
+            broadcasts.add(request);
+            write(encode("/broadcast " + message));
+        }
+
+        void unicast(String target, long due, Stats stats) {
+            send(new Request(Command.UNICAST, due, stats, null), "/unicast " + target + " " + message);
+        }
+
+        void store(String filename, long due, Stats stats) {
+            send(new Request(Command.STORE, due, stats, null), "/store " + filename + " " + fileBody.capacity());
+            write(fileBody.duplicate());
+        }
+
+        void get(String filename, long due, Stats stats) {
+            send(new Request(Command.GET, due, stats, null), "/get " + filename + " 0");
+        }
+
+        private void send(Request request, String line) {
+            outstanding.incrementAndGet();
+            replies.add(request);
+            write(encode(line));
+        }
+
+        private ByteBuffer encode(String line) {
+            if (binary) {
+                return WireProtocol.encodeCommand(line);
+            }
+            return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void write(ByteBuffer bytes) {
+            outbound.add(bytes);
+            if (outbound.size() == 1) {
+                flush();
+            }
+        }
+
+        void flush() {
+            try {
+                while (!outbound.isEmpty()) {
+                    ByteBuffer head = outbound.peek();
+                    bytesOut.add(channel.write(head));
+                    if (head.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    outbound.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void read(ByteBuffer buffer) {
+            buffer.clear();
+            if (leftover != null) {
+                buffer.put(leftover);
+                leftover = null;
+            }
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            if (read < 0) {
+                fail(new IOException("Server closed the connection."));
+                return;
+            }
+            bytesIn.add(read);
+            buffer.flip();
+            try {
+                parse(buffer);
+            } catch (RuntimeException e) {
+                fail(new IOException("Unreadable reply: " + e, e));
+                return;
+            }
+            if (buffer.hasRemaining()) {
+                if (buffer.remaining() == buffer.capacity()) {
+                    fail(new IOException("Reply does not fit in " + buffer.capacity() + " bytes."));
+                    return;
+                }
+                leftover = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+            }
+        }
+
+        private void parse(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                if (bodyRemaining > 0) {
+                    int skip = (int) Math.min(bodyRemaining, buffer.remaining());
+                    buffer.position(buffer.position() + skip);
+                    bodyRemaining -= skip;
+                    continue;
+                }
+                if (binary) {
+                    int size = WireProtocol.frameSize(buffer);
+                    if (size < 0 || buffer.remaining() < size) {
+                        return;
+                    }
+                    ByteBuffer frame = buffer.slice();
+                    frame.limit(size).position(WireProtocol.HEADER_LENGTH);
+                    buffer.position(buffer.position() + size);
+                    onFrame(frame);
+                    continue;
+                }
+                int end = indexOf(buffer, (byte) '\n');
+                if (end < 0) {
+                    return;
+                }
+                ByteBuffer line = buffer.slice();
+                line.limit(end > buffer.position() && buffer.get(end - 1) == '\r'
+                        ? end - 1 - buffer.position() : end - buffer.position());
+                buffer.position(end + 1);
+                onLine(line);
+            }
+        }
+
+        private void onLine(ByteBuffer line) {
+            if (startsWith(line, BROADCAST_FROM)) {
+                line.position(BROADCAST_FROM.length);
+                int colon = indexOf(line, (byte) ':');
+                line.limit(Math.max(line.position(), colon));
+                onBroadcast(line);
+            } else if (startsWith(line, MESSAGE_FROM)) {
+                unicastsDelivered.increment();
+            } else if (startsWith(line, FILE_HEADER)) {
+                String[] parts = WireProtocol.decode(line).split(" ");
+                bodyRemaining = Long.parseLong(parts[3]);
+            } else {
+                onReply(WireProtocol.decode(line));
+            }
+        }
+
+        private void onFrame(ByteBuffer frame) {
+            switch (frame.get()) {
+                case WireProtocol.OP_TEXT:
+                    onReply(WireProtocol.getString(frame));
+                    break;
+                case WireProtocol.OP_BROADCAST_FROM:
+                    onBroadcast(WireProtocol.getStringView(frame));
+                    break;
+                case WireProtocol.OP_UNICAST_FROM:
+                    unicastsDelivered.increment();
+                    break;
+                case WireProtocol.OP_FILE:
+                case WireProtocol.OP_FILE_DEFLATE:
+                    WireProtocol.getStringView(frame);
+                    frame.getLong();
+                    bodyRemaining = frame.getLong();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void onBroadcast(ByteBuffer sender) {
+            broadcastsDelivered.increment();
+            Request request = broadcasts.peek();
+            if (request != null && isOwnHandle(WireProtocol.decode(sender))) {
+                broadcasts.poll();
+                complete(request, false);
+            }
+        }
+
+        /**
+         * A /register sent just before a /broadcast takes effect first on the
+         * server, while its reply may not be here yet, so any of this session's
+         * handles counts.
+         */
+        private boolean isOwnHandle(String sender) {
+            String first = handleName(0);
+            return sender.startsWith(first)
+                    && (sender.length() == first.length() || sender.charAt(first.length()) == '.');
+        }
+
+        private void onReply(String line) {
+            if (negotiating) {
+                negotiating = false;
+                binary = WireProtocol.ACCEPTED.equals(line);
+                register(handleName(0), System.nanoTime(), setupStats);
+                return;
+            }
+            Request request = replies.poll();
+            if (request == null) {
+                return;
+            }
+            if (request.command == Command.REGISTER) {
+                boolean welcomed = line.equals("Welcome " + request.handle + "!");
+                if (welcomed) {
+                    if (handle == null) {
+                        registered.incrementAndGet();
+                    }
+                    handle = request.handle;
+                }
+                complete(request, !welcomed);
+                return;
+            }
+            complete(request, line.startsWith("Error"));
+        }
+
+        private void complete(Request request, boolean error) {
+            request.stats.record(request.command, System.nanoTime() - request.due, error);
+            outstanding.decrementAndGet();
+        }
+
+        /**
+         * Closes the session. Whatever it was still waiting for counts as lost.
+         */
+        void fail(IOException e) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            int waiting = replies.size() + broadcasts.size();
+            lost.add(waiting);
+            outstanding.addAndGet(-waiting);
+            replies.clear();
+            broadcasts.clear();
+            outbound.clear();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            if (!owner.stopping) {
+                System.out.println("Session " + index + " closed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs the I/O for a share of the sessions and sends their share of the
+     * requests, each at its scheduled time.
+     */
+    private class IoThread extends Thread {
+        final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final List<Session> owned = new ArrayList<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final long interval;
+        private final long offset;
+        private volatile boolean stopping;
+        private long loadStart;
+        private long measureStart;
+        private long loadEnd;
+        private long sent;
+
+        IoThread(int index) throws IOException {
+            super("load-generator-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+            interval = TimeUnit.SECONDS.toNanos(ioThreads.length) / Math.max(1, rate);
+            // Threads take turns instead of all sending at the same instant.
+            offset = interval * index / ioThreads.length;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void startLoad(long start, long measureStart, long end) {
+            for (Session session : sessions) {
+                if (session != null && session.owner == this) {
+                    owned.add(session);
+                }
+            }
+            this.loadStart = start;
+            this.measureStart = measureStart;
+            this.loadEnd = end;
+        }
+
+        void shutDown() {
+            stopping = true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    if (stopping) {
+                        break;
+                    }
+                    long wait = sendDue();
+                    if (wait < 0) {
+                        selector.select();
+                    } else if (wait >= 1_000_000) {
+                        selector.select(TimeUnit.NANOSECONDS.toMillis(wait));
+                    } else {
+                        // select() cannot wait for less than a millisecond.
+                        selector.selectNow();
+                        if (selector.selectedKeys().isEmpty()) {
+                            Thread.yield();
+                        }
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Session session = (Session) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            session.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.flush();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                System.out.println(getName() + " failed: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Session) key.attachment()).fail(new IOException("Shut down."));
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Sends every request whose time has come. Returns the nanoseconds until
+         * the next one is due, or -1 if there is nothing more to send.
+         */
+        private long sendDue() {
+            if (loadStart == 0 || owned.isEmpty()) {
+                return -1;
+            }
+            long now = System.nanoTime();
+            while (true) {
+                long due = loadStart + offset + sent * interval;
+                if (due >= loadEnd) {
+                    return -1;
+                }
+                if (due > now) {
+                    return due - now;
+                }
+                send(due);
+                sent++;
+            }
+        }
+
+        private void send(long due) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            Session session = owned.get(random.nextInt(owned.size()));
+            if (!session.isOpen()) {
+                skipped.increment();
+                return;
+            }
+            Stats stats = due < measureStart ? warmupStats : measuredStats;
+            switch (schedule[random.nextInt(schedule.length)]) {
+                case REGISTER:
+                    session.register(session.handleName(++session.generation), due, stats);
+                    break;
+                case BROADCAST:
+                    session.broadcast(due, stats);
+                    break;
+                case UNICAST:
+                    Session target = sessions[random.nextInt(sessions.length)];
+                    String handle = target != null ? target.handle : null;
+                    session.unicast(handle != null ? handle : session.handle, due, stats);
+                    break;
+                case STORE:
+                    session.store(runId + "-" + session.index + "-" + session.stores++ + ".bin", due, stats);
+                    break;
+                case GET:
+                    session.get(seedFile, due, stats);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte value) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(ByteBuffer line, byte[] prefix) {
+        if (line.remaining() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line.get(line.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Multiplexed framing shared by Server and Client, so one connection can carry
+ * chat, commands and several file transfers at once.
+ *
+ * A connection starts in the text protocol. A client that sends NEGOTIATE and
+ * gets ACCEPTED back switches to mux frames in both directions for the rest of
+ * the connection; anything else means it stays where it was.
+ *
+ * Frame:   int length | int stream | byte type | payload     (length counts stream + type + payload)
+ *
+ * Stream CONTROL carries the client's commands and the server's replies, and
+ * stream CHAT the broadcasts and unicasts delivered to the client, each DATA
+ * payload being one WireProtocol frame. Any other stream is a file transfer the
+ * client opens with OPEN and a command line:
+ *
+ *     "/get <filename> <offset> [length]"   the server answers with DATA holding an
+ *                                           OP_FILE frame, then the body as DATA,
+ *                                           then an OP_TEXT frame, then END
+ *     "/store <filename> <size>"            the client sends the body as DATA; the
+ *                                           server answers with an OP_TEXT frame and END
+ *
+ * Errors come back as an OP_TEXT frame followed by END. Either side may END a
+ * transfer early to cancel it.
+ *
+ * For /mget the server opens the streams itself, numbered from
+ * FIRST_SERVER_TRANSFER up, with an OPEN holding the "/get <filename> 0" it is
+ * answering; the rest of the stream is the same as if the client had sent it.
+ *
+ * Flow control: on a transfer stream, each side may have at most INITIAL_WINDOW
+ * bytes of body data that the other has not yet acknowledged with WINDOW. The
+ * receiver sends WINDOW as it writes data out, so a slow disk or reader holds
+ * back only its own stream and never the others.
+ */
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class MuxProtocol {
+    public static final int VERSION = 1;
+    public static final String NEGOTIATE = "/protocol mux " + VERSION;
+    public static final String ACCEPTED = "Protocol mux " + VERSION;
+
+    public static final int HEADER_LENGTH = 9;
+    /** Largest DATA payload; bigger bodies are split across frames. */
+    public static final int MAX_DATA_LENGTH = 32 * 1024;
+    public static final int INITIAL_WINDOW = 256 * 1024;
+
+    public static final int CONTROL = 0;
+    public static final int CHAT = 1;
+    /** Transfer streams the client opens are numbered from here up. */
+    public static final int FIRST_TRANSFER = 2;
+    /** Transfer streams the server opens are numbered from here up. */
+    public static final int FIRST_SERVER_TRANSFER = 1 << 30;
+
+    /** [bytes] */
+    public static final byte DATA = 0;
+    /** [command line] */
+    public static final byte OPEN = 1;
+    /** [int increment] */
+    public static final byte WINDOW = 2;
+    /** [] */
+    public static final byte END = 3;
+
+    private MuxProtocol() {
+    }
+
+    /**
+     * Returns the total size of the frame at the buffer's position, including the
+     * length field, or -1 if the header has not fully arrived yet.
+     */
+    public static int frameSize(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return -1;
+        }
+        return 4 + buffer.getInt(buffer.position());
+    }
+
+    /**
+     * The header of a frame whose payload of payloadLength bytes is written
+     * separately, such as file data sent with transferTo.
+     */
+    public static ByteBuffer header(int stream, byte type, int payloadLength) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(HEADER_LENGTH - 4 + payloadLength).putInt(stream).put(type);
+        return header.flip();
+    }
+
+    public static ByteBuffer frame(int stream, byte type, ByteBuffer payload) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.remaining());
+        frame.putInt(HEADER_LENGTH - 4 + payload.remaining()).putInt(stream).put(type).put(payload.duplicate());
+        return frame.flip();
+    }
+
+    public static ByteBuffer openFrame(int stream, String command) {
+        return frame(stream, OPEN, ByteBuffer.wrap(command.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static ByteBuffer windowFrame(int stream, int increment) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + 4);
+        frame.putInt(HEADER_LENGTH).putInt(stream).put(WINDOW).putInt(increment);
+        return frame.flip();
+    }
+
+    public static ByteBuffer endFrame(int stream) {
+        return header(stream, END, 0);
+    }
+}
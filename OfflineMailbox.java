@@ -0,0 +1,448 @@
+/**
+ * Disk-backed queues of /unicast messages for handles that are not connected.
+ *
+ * Every handle that has registered gets a directory, named by the hex of its
+ * UTF-8 bytes, holding numbered segment files of SEGMENT_SIZE bytes. A segment
+ * is memory-mapped and filled as an append-only log of records:
+ *
+ *     int length, int CRC32 of the payload, payload
+ *     payload = int sender length, sender, message body
+ *
+ * Segments start out zero-filled, so a zero length marks where one ends.
+ * Appending is a copy into the mapping and never waits for the disk; a single
+ * committer thread forces dirty segments in groups, so a message is durable
+ * within one commit of being queued, which under load covers many messages at
+ * once. After a crash a mailbox is read up to its first torn or corrupt record,
+ * and everything from there on is cleared.
+ *
+ * Work on one handle must hold lockFor(handle). Server also holds it while it
+ * decides whether the handle is online, so each message is either delivered
+ * or queued, and queued ones are drained before any that arrive later.
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+public class OfflineMailbox {
+    static final int SEGMENT_SIZE = 1024 * 1024;
+    static final long MAX_BYTES_PER_HANDLE = 16L * 1024 * 1024;
+    private static final int HEADER_SIZE = 8;
+    private static final int LOCK_STRIPES = 64;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final Path directory;
+    private final Consumer<String> log;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    // Handles that have registered and may have messages queued for them.
+    private final Set<String> known = ConcurrentHashMap.newKeySet();
+    // Only handles with queued messages have an entry.
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Mailbox> dirty = new LinkedBlockingQueue<>();
+    private final Thread committer;
+
+    public OfflineMailbox(Path directory, Consumer<String> log) throws IOException {
+        this.directory = directory;
+        this.log = log;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        Files.createDirectories(directory);
+        recoverAll();
+        committer = new Thread(this::commitLoop, "offline-mailbox-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * The lock that serializes delivery, queueing and draining for a handle.
+     */
+    public ReentrantLock lockFor(String handle) {
+        int hash = handle.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Remembers a handle, so messages for it are queued once it goes offline.
+     */
+    public void register(String handle) {
+        if (known.add(handle)) {
+            try {
+                Files.createDirectories(directoryFor(handle));
+            } catch (IOException e) {
+                known.remove(handle);
+                log.accept("Error creating the offline mailbox of " + handle + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public boolean isKnown(String handle) {
+        return known.contains(handle);
+    }
+
+    public boolean hasPending(String handle) {
+        return mailboxes.containsKey(handle);
+    }
+
+    /**
+     * Queues a message for handle, with the caller holding lockFor(handle).
+     * Returns false if the handle's mailbox is full.
+     */
+    public boolean append(String handle, byte[] sender, ByteBuffer body) throws IOException {
+        int payload = 4 + sender.length + body.remaining();
+        int size = HEADER_SIZE + payload;
+        Mailbox mailbox = mailboxes.get(handle);
+        if (mailbox == null) {
+            mailbox = new Mailbox(directoryFor(handle));
+            mailbox.recover();
+        }
+        if (size > SEGMENT_SIZE || mailbox.bytes + size > MAX_BYTES_PER_HANDLE) {
+            return false;
+        }
+        ByteBuffer record = mailbox.reserve(size);
+        record.putInt(payload).putInt(0).putInt(sender.length).put(sender).put(body.duplicate());
+        CRC32 crc = new CRC32();
+        crc.update(record.flip().position(HEADER_SIZE));
+        record.putInt(4, (int) crc.getValue());
+        mailbox.bytes += size;
+        mailboxes.put(handle, mailbox);
+        if (mailbox.queued.compareAndSet(false, true)) {
+            dirty.add(mailbox);
+        }
+        return true;
+    }
+
+    /**
+     * Passes every message queued for handle to consumer, oldest first, as the
+     * sender's UTF-8 bytes and the body, then empties the mailbox. The caller
+     * holds lockFor(handle). Returns the number of messages.
+     */
+    public int drain(String handle, BiConsumer<byte[], ByteBuffer> consumer) throws IOException {
+        Mailbox mailbox = mailboxes.get(handle);
+        if (mailbox == null) {
+            return 0;
+        }
+        int[] count = new int[1];
+        for (int index : mailbox.segments) {
+            scan(mailbox.read(index), (sender, body) -> {
+                consumer.accept(sender, body);
+                count[0]++;
+            });
+        }
+        mailboxes.remove(handle);
+        mailbox.discard();
+        return count[0];
+    }
+
+    /**
+     * Forces whatever is still unwritten and stops the committer.
+     */
+    public void close() {
+        committer.interrupt();
+        try {
+            committer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Mailbox mailbox : mailboxes.values()) {
+            mailbox.force();
+        }
+    }
+
+    /**
+     * Group commit: while one batch is being forced, appends pile up for the
+     * next, so a busy mailbox is forced once per batch rather than per message.
+     */
+    private void commitLoop() {
+        List<Mailbox> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(dirty.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            dirty.drainTo(batch);
+            for (Mailbox mailbox : batch) {
+                mailbox.force();
+            }
+            batch.clear();
+        }
+    }
+
+    private void recoverAll() throws IOException {
+        int messages = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String handle = decodeHandle(entry.getFileName().toString());
+                if (handle == null || !Files.isDirectory(entry)) {
+                    continue;
+                }
+                known.add(handle);
+                Mailbox mailbox = new Mailbox(entry);
+                mailbox.recover();
+                if (mailbox.bytes > 0) {
+                    mailboxes.put(handle, mailbox);
+                    messages += mailbox.recovered;
+                }
+            }
+        }
+        if (messages > 0) {
+            log.accept("Recovered " + messages + " offline messages for " + mailboxes.size() + " handles.");
+        }
+    }
+
+    /**
+     * Reads records from position 0 until the end marker or the first one that
+     * is cut short or fails its CRC, and returns where they stop. Consumer may
+     * be null.
+     */
+    private static int scan(ByteBuffer data, BiConsumer<byte[], ByteBuffer> consumer) {
+        CRC32 crc = new CRC32();
+        int position = 0;
+        while (data.limit() - position >= HEADER_SIZE) {
+            int payload = data.getInt(position);
+            if (payload < 4 || payload > data.limit() - position - HEADER_SIZE) {
+                break;
+            }
+            ByteBuffer record = data.duplicate();
+            record.limit(position + HEADER_SIZE + payload).position(position + HEADER_SIZE);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != data.getInt(position + 4)) {
+                break;
+            }
+            int senderLength = record.getInt();
+            if (senderLength < 0 || senderLength > record.remaining()) {
+                break;
+            }
+            if (consumer != null) {
+                byte[] sender = new byte[senderLength];
+                record.get(sender);
+                consumer.accept(sender, record.slice());
+            }
+            position += HEADER_SIZE + payload;
+        }
+        return position;
+    }
+
+    private static boolean isZero(ByteBuffer data, int from) {
+        for (int i = from; i < data.limit(); i++) {
+            if (data.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Path directoryFor(String handle) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : handle.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return directory.resolve(name.toString());
+    }
+
+    private static String decodeHandle(String name) {
+        if (name.isEmpty() || name.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[name.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(name.charAt(2 * i), 16);
+            int low = Character.digit(name.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The segments of one handle. Everything but the committer's fields is
+     * guarded by the handle's lock.
+     */
+    private final class Mailbox {
+        private final Path directory;
+        private final List<Integer> segments = new ArrayList<>();
+        private long bytes;
+        private int recovered;
+        // The last segment: where it ends, and its mapping once written to.
+        private int tailEnd;
+        private volatile MappedByteBuffer tail;
+        // Full segments the committer has not forced yet.
+        private final ConcurrentLinkedQueue<MappedByteBuffer> retired = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean queued = new AtomicBoolean();
+
+        Mailbox(Path directory) {
+            this.directory = directory;
+        }
+
+        private Path segment(int index) {
+            return directory.resolve(String.format("%08d", index) + SEGMENT_SUFFIX);
+        }
+
+        /**
+         * Finds the segments and the end of their records. Anything after a
+         * damaged record is cleared, including later segments, since a crash
+         * can leave a later page on disk without an earlier one.
+         */
+        void recover() throws IOException {
+            Files.createDirectories(directory);
+            List<Integer> found = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    try {
+                        found.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not one of ours.
+                    }
+                }
+            }
+            Collections.sort(found);
+            boolean damaged = false;
+            for (int index : found) {
+                Path path = segment(index);
+                if (damaged) {
+                    Files.delete(path);
+                    continue;
+                }
+                ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+                int end = scan(data, (sender, body) -> recovered++);
+                if (!isZero(data, end)) {
+                    damaged = true;
+                    clear(path, end, data.limit() - end);
+                    log.accept("Offline mailbox " + directory.getFileName() + " was damaged, dropped everything after "
+                            + recovered + " messages.");
+                }
+                if (end == 0) {
+                    try {
+                        Files.delete(path);
+                    } catch (IOException e) {
+                        // Still mapped from before a drain; being empty, it is
+                        // simply written again.
+                    }
+                    continue;
+                }
+                segments.add(index);
+                bytes += end;
+                tailEnd = end;
+            }
+        }
+
+        private void clear(Path path, long position, int length) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                ByteBuffer zeros = ByteBuffer.allocate(length);
+                while (zeros.hasRemaining()) {
+                    channel.write(zeros, position + zeros.position());
+                }
+                channel.force(false);
+            }
+        }
+
+        /**
+         * The next size bytes of the tail, starting a new segment if they do not
+         * fit in the current one.
+         */
+        ByteBuffer reserve(int size) throws IOException {
+            MappedByteBuffer current = tail;
+            if (current == null) {
+                if (segments.isEmpty()) {
+                    segments.add(0);
+                    tailEnd = 0;
+                }
+                current = map(segments.get(segments.size() - 1));
+                current.position(tailEnd);
+            }
+            if (current.remaining() < size) {
+                retired.add(current);
+                int next = segments.get(segments.size() - 1) + 1;
+                segments.add(next);
+                current = map(next);
+            }
+            tail = current;
+            ByteBuffer record = current.slice();
+            record.limit(size);
+            current.position(current.position() + size);
+            tailEnd = current.position();
+            return record;
+        }
+
+        private MappedByteBuffer map(int index) throws IOException {
+            try (FileChannel channel = FileChannel.open(segment(index), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // The mapping outlives the channel.
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            }
+        }
+
+        ByteBuffer read(int index) throws IOException {
+            MappedByteBuffer current = tail;
+            if (current != null && index == segments.get(segments.size() - 1)) {
+                ByteBuffer data = current.duplicate();
+                data.flip();
+                return data;
+            }
+            return ByteBuffer.wrap(Files.readAllBytes(segment(index)));
+        }
+
+        /**
+         * Called by the committer. Clearing queued first means an append that
+         * races with the force queues the mailbox again.
+         */
+        void force() {
+            queued.set(false);
+            MappedByteBuffer full;
+            while ((full = retired.poll()) != null) {
+                full.force();
+            }
+            MappedByteBuffer current = tail;
+            if (current != null) {
+                current.force();
+            }
+        }
+
+        /**
+         * Removes the segments once their messages are delivered. A mapped file
+         * cannot be deleted on some platforms until the mapping is collected, so
+         * such a segment is emptied by zeroing its first record's length.
+         */
+        void discard() {
+            tail = null;
+            retired.clear();
+            for (int index : segments) {
+                Path path = segment(index);
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    try {
+                        clear(path, 0, 4);
+                    } catch (IOException again) {
+                        log.accept("Error emptying offline mailbox segment " + path + ": " + again.getMessage());
+                    }
+                }
+            }
+            segments.clear();
+        }
+    }
+}
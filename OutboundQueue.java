@@ -0,0 +1,233 @@
+/**
+ * Bounded queue of encoded messages waiting to be written to one client.
+ *
+ * Producers (other clients' broadcasts and unicasts) never block: offer() either
+ * queues the message in memory or, once the byte budget is used up, applies the
+ * slow-consumer policy. A single writer at a time drains the queue in batches so
+ * several messages go out in one gathering write.
+ *
+ * With SPILL, overflow is appended to a temp file and read back once the memory
+ * queue has drained, keeping delivery order. Everything offered after a spill
+ * starts goes to the file until it has been read back completely.
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class OutboundQueue {
+    public enum SlowConsumerPolicy {
+        /** Discard messages that do not fit. */
+        DROP,
+        /** Close the client's connection. */
+        DISCONNECT,
+        /** Write messages that do not fit to disk, up to a limit, then disconnect. */
+        SPILL
+    }
+
+    public enum Result {
+        QUEUED,
+        DROPPED,
+        OVERFLOW
+    }
+
+    private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final long capacityBytes;
+    private final long spillLimitBytes;
+    private final SlowConsumerPolicy policy;
+
+    private final ReentrantLock spillLock = new ReentrantLock();
+    private volatile boolean spilling;
+    private FileChannel spillFile;
+    private volatile boolean closed;
+    private long spillReadPosition;
+    private long spillWritePosition;
+
+    public OutboundQueue(long capacityBytes, SlowConsumerPolicy policy, long spillLimitBytes) {
+        this.capacityBytes = capacityBytes;
+        this.policy = policy;
+        this.spillLimitBytes = spillLimitBytes;
+    }
+
+    /**
+     * Queues a message without blocking. The buffer must not be modified
+     * afterwards; pass a duplicate when the same bytes go to several clients.
+     */
+    public Result offer(ByteBuffer message) {
+        if (closed) {
+            return Result.DROPPED;
+        }
+        if (!spilling && reserve(message.remaining())) {
+            queue.add(message);
+            return Result.QUEUED;
+        }
+
+        switch (policy) {
+            case DROP:
+                dropped.incrementAndGet();
+                return Result.DROPPED;
+            case SPILL:
+                return spill(message);
+            default:
+                return Result.OVERFLOW;
+        }
+    }
+
+    private boolean reserve(int bytes) {
+        while (true) {
+            long current = queuedBytes.get();
+            if (current > 0 && current + bytes > capacityBytes) {
+                return false;
+            }
+            if (queuedBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private Result spill(ByteBuffer message) {
+        spillLock.lock();
+        try {
+            // The writer may have emptied the spill file while we waited.
+            if (!spilling && reserve(message.remaining())) {
+                queue.add(message);
+                return Result.QUEUED;
+            }
+            if (spillWritePosition - spillReadPosition + message.remaining() > spillLimitBytes) {
+                return Result.OVERFLOW;
+            }
+            if (closed) {
+                return Result.DROPPED;
+            }
+            if (spillFile == null) {
+                Path spillPath = Files.createTempFile("outbound-", ".spill");
+                spillFile = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            ByteBuffer length = ByteBuffer.allocate(4).putInt(0, message.remaining());
+            spillWritePosition += writeFully(length, spillWritePosition);
+            spillWritePosition += writeFully(message.duplicate(), spillWritePosition);
+            spilling = true;
+            return Result.QUEUED;
+        } catch (IOException e) {
+            return Result.OVERFLOW;
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    private long writeFully(ByteBuffer buffer, long position) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += spillFile.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    /**
+     * Moves up to batch.length messages into the array, memory first and then
+     * anything spilled to disk. Returns how many were moved.
+     */
+    public int drainTo(ByteBuffer[] batch) throws IOException {
+        int count = 0;
+        ByteBuffer message;
+        while (count < batch.length && (message = queue.poll()) != null) {
+            queuedBytes.addAndGet(-message.remaining());
+            batch[count++] = message;
+        }
+        if (count == 0 && spilling) {
+            count = readSpilled(batch);
+        }
+        return count;
+    }
+
+    private int readSpilled(ByteBuffer[] batch) throws IOException {
+        spillLock.lock();
+        try {
+            int count = 0;
+            ByteBuffer length = ByteBuffer.allocate(4);
+            while (count < batch.length && spillReadPosition < spillWritePosition) {
+                length.clear();
+                readFully(length, spillReadPosition);
+                ByteBuffer message = ByteBuffer.allocate(length.getInt(0));
+                readFully(message, spillReadPosition + 4);
+                spillReadPosition += 4 + message.capacity();
+                batch[count++] = message.flip();
+            }
+            if (spillReadPosition == spillWritePosition) {
+                spillFile.truncate(0);
+                spillReadPosition = 0;
+                spillWritePosition = 0;
+                spilling = false;
+            }
+            return count;
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (spillFile.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Spill file is shorter than expected.");
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty() && !spilling;
+    }
+
+    /**
+     * Claims the right to schedule a drain. Returns false if one is already
+     * scheduled or running, in which case that writer will pick the message up.
+     */
+    public boolean trySchedule() {
+        return scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Called by the writer when it finds the queue empty. Returns true if it has
+     * to keep going because a message raced in after the last drain.
+     */
+    public boolean finishDrain() {
+        scheduled.set(false);
+        return !isEmpty() && trySchedule();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public void close() {
+        closed = true;
+        queue.clear();
+        queuedBytes.set(0);
+        spillLock.lock();
+        try {
+            if (spillFile != null) {
+                spillFile.close();
+                spillFile = null;
+            }
+        } catch (IOException ignored) {
+        } finally {
+            spilling = false;
+            spillLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Measures download throughput with 1 to 16 parallel streams (see
+ * RangeDownloader) over a link with artificial latency.
+ *
+ * To run open CMD and input    javac *.java
+ *
+ * Afterwards, input            java ParallelDownloadBenchmark [size MB] [round trip ms] [window KB]
+ *
+ * Streams go through a proxy on loopback that holds every chunk for half the
+ * round trip in each direction and keeps at most one window of bytes in flight
+ * per direction, like a TCP receive window. A single stream can then move about
+ * window / round trip per second, which is the limit parallel streams get around.
+ */
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class ParallelDownloadBenchmark {
+    private static final int SERVER_PORT = 23200;
+    private static final int PROXY_PORT = 23201;
+    private static final String HANDLE = "bench";
+    private static final String FILENAME = "parallel-benchmark.bin";
+    private static final int[] STREAMS = { 1, 2, 4, 8, 16 };
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int roundTripMs = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        int windowKb = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+        Server server = new Server(SERVER_PORT, null, Server.IoMode.NIO);
+        server.setMaxStreamsPerHandle(STREAMS[STREAMS.length - 1]);
+        server.start();
+
+        Path source = Paths.get("server_files", FILENAME);
+        byte[] data = new byte[sizeMb * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        Files.write(source, data);
+        String expected = ContentHash.of(source);
+
+        LatencyProxy proxy = new LatencyProxy(PROXY_PORT, new InetSocketAddress("127.0.0.1", SERVER_PORT),
+                TimeUnit.MILLISECONDS.toNanos(roundTripMs) / 2, windowKb * 1024);
+        proxy.start();
+
+        // The streams attach to this registration.
+        SocketChannel owner = SocketChannel.open(new InetSocketAddress("127.0.0.1", SERVER_PORT));
+        owner.write(ByteBuffer.wrap(("/register " + HANDLE + "\n").getBytes(Charset.defaultCharset())));
+        Thread.sleep(200);
+
+        System.out.printf("%d MB, %d ms round trip, %d KB window%n", sizeMb, roundTripMs, windowKb);
+        System.out.printf("%8s %10s %10s %9s%n", "streams", "seconds", "MB/s", "speedup");
+        RangeDownloader downloader = new RangeDownloader(new InetSocketAddress("127.0.0.1", PROXY_PORT), HANDLE);
+        double baseline = 0;
+        for (int streams : STREAMS) {
+            Path target = Files.createTempFile("parallel-benchmark-", ".part");
+            long start = System.nanoTime();
+            downloader.download(FILENAME, data.length, streams, target);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (!ContentHash.of(target).equals(expected)) {
+                throw new IOException("Download with " + streams + " streams does not match the source.");
+            }
+            Files.delete(target);
+
+            double throughput = sizeMb / seconds;
+            if (baseline == 0) {
+                baseline = throughput;
+            }
+            System.out.printf("%8d %10.2f %10.1f %8.1fx%n", streams, seconds, throughput, throughput / baseline);
+        }
+
+        owner.close();
+        proxy.stop();
+        server.stop();
+        Files.deleteIfExists(source);
+        System.exit(0);
+    }
+
+    /**
+     * Forwards connections to the server, delaying every chunk in both directions.
+     */
+    private static class LatencyProxy {
+        private static final int CHUNK_SIZE = 16 * 1024;
+
+        private final ServerSocket listener;
+        private final InetSocketAddress upstream;
+        private final long delayNanos;
+        private final int windowBytes;
+
+        LatencyProxy(int port, InetSocketAddress upstream, long delayNanos, int windowBytes) throws IOException {
+            this.listener = new ServerSocket(port);
+            this.upstream = upstream;
+            this.delayNanos = delayNanos;
+            this.windowBytes = windowBytes;
+        }
+
+        void start() {
+            Thread acceptor = new Thread(() -> {
+                while (!listener.isClosed()) {
+                    try {
+                        Socket downstream = listener.accept();
+                        Socket server = new Socket(upstream.getAddress(), upstream.getPort());
+                        pipe(downstream, server);
+                        pipe(server, downstream);
+                    } catch (IOException e) {
+                        // Closed.
+                    }
+                }
+            }, "latency-proxy");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        void stop() throws IOException {
+            listener.close();
+        }
+
+        private void pipe(Socket from, Socket to) {
+            BlockingQueue<Chunk> line = new ArrayBlockingQueue<>(Math.max(1, windowBytes / 1024));
+            Semaphore window = new Semaphore(windowBytes);
+
+            Thread reader = new Thread(() -> {
+                try (InputStream in = from.getInputStream()) {
+                    while (true) {
+                        window.acquire(CHUNK_SIZE);
+                        byte[] buffer = new byte[CHUNK_SIZE];
+                        int read = in.read(buffer);
+                        if (read < 0) {
+                            break;
+                        }
+                        window.release(CHUNK_SIZE - read);
+                        line.put(new Chunk(System.nanoTime() + delayNanos, Arrays.copyOf(buffer, read)));
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Connection closed.
+                }
+                try {
+                    line.put(new Chunk(0, null));
+                } catch (InterruptedException ignored) {
+                }
+            });
+
+            Thread writer = new Thread(() -> {
+                try (OutputStream out = to.getOutputStream()) {
+                    while (true) {
+                        Chunk chunk = line.take();
+                        if (chunk.bytes == null) {
+                            break;
+                        }
+                        long wait = chunk.due - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                        out.write(chunk.bytes);
+                        window.release(chunk.bytes.length);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Connection closed.
+                }
+                try {
+                    from.close();
+                    to.close();
+                } catch (IOException ignored) {
+                }
+            });
+
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+    }
+
+    private static class Chunk {
+        private final long due;
+        private final byte[] bytes;
+
+        Chunk(long due, byte[] bytes) {
+            this.due = due;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Stores every upload as its own file, as the server always has.
+ */
+
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+public class PlainFileStore implements FileStore {
+    private final Path directory;
+    private volatile boolean linksUnsupported;
+
+    public PlainFileStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    @Override
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public boolean contains(String name) {
+        return Files.exists(directory.resolve(name));
+    }
+
+    @Override
+    public Path newTempPath(String name) {
+        return directory.resolve("." + name + "-" + System.nanoTime() + ".part");
+    }
+
+    @Override
+    public boolean isContentAddressed() {
+        return false;
+    }
+
+    @Override
+    public void commit(String name, Path temp, String hash) throws IOException {
+        // A rename would silently replace a file committed under the same name
+        // meanwhile; a link fails instead, atomically.
+        Path target = directory.resolve(name);
+        if (!linksUnsupported) {
+            try {
+                Files.createLink(target, temp);
+                Files.delete(temp);
+                return;
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                linksUnsupported = true;
+            }
+        }
+        Files.move(temp, target);
+    }
+
+    @Override
+    public void replace(String name, Path temp, String hash) throws IOException {
+        Files.move(temp, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void importFile(Path source, String name) throws IOException {
+        Files.copy(source, directory.resolve(name));
+    }
+
+    @Override
+    public String getHash(String name) {
+        return null;
+    }
+
+    @Override
+    public void forget(String name) {
+    }
+
+    @Override
+    public void collectGarbage() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
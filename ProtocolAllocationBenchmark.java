@@ -0,0 +1,164 @@
+/**
+ * Measures how much garbage the server creates per chat message with the text
+ * protocol and with the binary protocol from WireProtocol.
+ *
+ * To run open CMD and input    javac *.java
+ *
+ * Afterwards, input            java ProtocolAllocationBenchmark [mode] [messages]
+ *
+ * Allocation is read from the JVM's per-thread counters for every thread except
+ * the benchmark's own client threads. Leave the log area out of the picture by
+ * not starting the GUI.
+ */
+
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class ProtocolAllocationBenchmark {
+    private static final int PORT = 23100;
+    private static final String HANDLE = "bench";
+    private static final String MESSAGE = "the quick brown fox jumps over the lazy dog";
+
+    public static void main(String[] args) throws Exception {
+        Server.IoMode mode = args.length > 0 ? Server.IoMode.valueOf(args[0]) : Server.IoMode.NIO;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        Server server = new Server(PORT, null, mode);
+        server.start();
+
+        System.out.printf("%-10s %-10s %12s %14s%n", "protocol", "command", "messages", "bytes/message");
+        try {
+            for (boolean binary : new boolean[] { false, true }) {
+                for (String command : new String[] { "/broadcast", "/unicast" }) {
+                    // The first pass warms up the JIT and is not reported.
+                    run(binary, command, messages / 10);
+                    long perMessage = run(binary, command, messages);
+                    System.out.printf("%-10s %-10s %12d %14d%n", binary ? "binary" : "text", command, messages, perMessage);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Benchmark failed: " + e.getMessage());
+            server.stop();
+            System.exit(1);
+        }
+        server.stop();
+        System.exit(0);
+    }
+
+    private static long run(boolean binary, String command, int messages) throws Exception {
+        try (SocketChannel connection = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT))) {
+            String handle = HANDLE + System.nanoTime();
+            writeLine(connection, "/register " + handle);
+            readLine(connection);
+            if (binary) {
+                writeLine(connection, WireProtocol.NEGOTIATE);
+                readLine(connection);
+            }
+
+            boolean unicast = command.equals("/unicast");
+            ByteBuffer request;
+            long replyBytes;
+            if (binary) {
+                request = unicast ? WireProtocol.unicastFrame(handle, MESSAGE) : WireProtocol.broadcastFrame(MESSAGE);
+                replyBytes = WireProtocol.deliveryFrame(unicast ? WireProtocol.OP_UNICAST_FROM : WireProtocol.OP_BROADCAST_FROM,
+                        handle.getBytes(StandardCharsets.UTF_8), ByteBuffer.wrap(MESSAGE.getBytes(StandardCharsets.UTF_8))).remaining();
+                if (unicast) {
+                    replyBytes += WireProtocol.stringFrame(WireProtocol.OP_TEXT, "Message sent.").remaining();
+                }
+            } else {
+                String line = unicast ? "/unicast " + handle + " " + MESSAGE : "/broadcast " + MESSAGE;
+                request = ByteBuffer.wrap((line + "\n").getBytes(Charset.defaultCharset()));
+                String reply = (unicast ? "Message from " : "Broadcast from ") + handle + ": " + MESSAGE + System.lineSeparator();
+                if (unicast) {
+                    reply += "Message sent." + System.lineSeparator();
+                }
+                replyBytes = reply.getBytes(Charset.defaultCharset()).length;
+            }
+
+            long[] ignoredThreads = { Thread.currentThread().getId(), -1 };
+            IOException[] writeFailure = new IOException[1];
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        request.rewind();
+                        while (request.hasRemaining()) {
+                            connection.write(request);
+                        }
+                    }
+                } catch (IOException e) {
+                    writeFailure[0] = e;
+                    // Otherwise the reader below waits for replies that never come.
+                    try {
+                        connection.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+            ignoredThreads[1] = writer.getId();
+
+            long before = serverAllocatedBytes(ignoredThreads);
+            writer.start();
+            ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+            long expected = replyBytes * messages;
+            long received = 0;
+            IOException readFailure = null;
+            try {
+                while (received < expected) {
+                    sink.clear();
+                    int read = connection.read(sink);
+                    if (read < 0) {
+                        throw new IOException("Server closed the connection.");
+                    }
+                    received += read;
+                }
+            } catch (IOException e) {
+                readFailure = e;
+            }
+            writer.join();
+            // A partial run's numbers would be meaningless, so it fails instead.
+            if (writeFailure[0] != null) {
+                throw new IOException("Sending the messages failed: " + writeFailure[0].getMessage(), writeFailure[0]);
+            }
+            if (readFailure != null) {
+                throw readFailure;
+            }
+            long after = serverAllocatedBytes(ignoredThreads);
+            return (after - before) / messages;
+        }
+    }
+
+    private static long serverAllocatedBytes(long[] ignoredThreads) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = Arrays.stream(threads.getAllThreadIds())
+                .filter(id -> Arrays.stream(ignoredThreads).noneMatch(ignored -> ignored == id))
+                .toArray();
+        return Arrays.stream(threads.getThreadAllocatedBytes(ids)).filter(bytes -> bytes > 0).sum();
+    }
+
+    private static void writeLine(SocketChannel connection, String line) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(Charset.defaultCharset()));
+        while (bytes.hasRemaining()) {
+            connection.write(bytes);
+        }
+    }
+
+    private static void readLine(SocketChannel connection) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (true) {
+            one.clear();
+            if (connection.read(one) < 0) {
+                throw new IOException("Server closed the connection.");
+            }
+            if (one.get(0) == '\n') {
+                return;
+            }
+        }
+    }
+}
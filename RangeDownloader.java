@@ -0,0 +1,153 @@
+/**
+ * Downloads one server file over several connections at once.
+ *
+ * The file is split into one byte range per stream. Each stream is its own
+ * connection that attaches to an already registered handle with /stream and
+ * fetches its range with "/get <filename> <offset> <length>". Ranges are written
+ * straight to their offsets in a target file preallocated to the full size, so
+ * nothing has to be reassembled afterwards. Streams use the text protocol.
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class RangeDownloader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InetSocketAddress server;
+    private final String handle;
+
+    public RangeDownloader(InetSocketAddress server, String handle) {
+        this.server = server;
+        this.handle = handle;
+    }
+
+    /**
+     * Fetches size bytes of filename into target using up to streams connections.
+     * Fails with the first stream's error; the target then holds whatever ranges
+     * did arrive, which the /sums check on resume sorts out.
+     */
+    public void download(String filename, long size, int streams, Path target) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(target.toFile(), "rw")) {
+            file.setLength(size);
+        }
+
+        int count = (int) Math.max(1, Math.min(streams, size / BUFFER_SIZE));
+        long rangeSize = (size + count - 1) / count;
+        ExecutorService pool = Executors.newFixedThreadPool(count);
+        try (FileChannel file = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            List<Future<Void>> ranges = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                long offset = i * rangeSize;
+                long length = Math.min(rangeSize, size - offset);
+                ranges.add(pool.submit(() -> {
+                    fetchRange(filename, offset, length, file);
+                    return null;
+                }));
+            }
+            for (Future<Void> range : ranges) {
+                range.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted.");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void fetchRange(String filename, long offset, long length, FileChannel file) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(server)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.flip();
+
+            writeLine(channel, "/stream " + handle);
+            String reply = readLine(channel, buffer);
+            if (!reply.startsWith("Stream attached")) {
+                throw new IOException(reply);
+            }
+
+            writeLine(channel, "/get " + filename + " " + offset + " " + length);
+            String header = readLine(channel, buffer);
+            String[] parts = header.split(" ");
+            if (!header.startsWith("/file ") || parts.length != 4
+                    || Long.parseLong(parts[2]) != offset || Long.parseLong(parts[3]) != length) {
+                throw new IOException(header);
+            }
+
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("Connection closed during file transfer.");
+                    }
+                    buffer.flip();
+                }
+                // Bytes already buffered behind the header are written first.
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), end - position));
+                while (buffer.hasRemaining()) {
+                    position += file.write(buffer, position);
+                }
+                buffer.limit(limit);
+            }
+        }
+    }
+
+    private static void writeLine(SocketChannel channel, String line) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(Charset.defaultCharset()));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * Reads one reply line, leaving anything after it in the buffer.
+     */
+    private static String readLine(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Server closed the connection.");
+                }
+                buffer.flip();
+            }
+            byte b = buffer.get();
+            if (b == '\n') {
+                break;
+            }
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, Charset.defaultCharset());
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Contention benchmark for ClientRegistry against the plain HashMap the server
+ * used to share between connection threads (guarded here by a lock, since
+ * without one it loses entries and throws ConcurrentModificationException).
+ *
+ * To run open CMD and input    javac *.java
+ *
+ * Afterwards, input            java RegistryBenchmark [handles] [threads] [seconds]
+ */
+
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class RegistryBenchmark {
+
+    /**
+     * The operations the server performs on its client map.
+     */
+    private interface Registry {
+        boolean claim(String handle, Object client);
+
+        boolean release(String handle, Object client);
+
+        Object get(String handle);
+
+        int fanOut();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int handles = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 2;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.println("Claim race: " + claimRace(new ClientRegistry<>(), threads)
+                + " winner(s) for one handle across " + threads + " threads");
+        System.out.printf("%-16s %8s %8s %14s %14s%n", "registry", "handles", "threads", "ops/s", "fan-outs/s");
+        run("ClientRegistry", concurrentRegistry(handles), handles, threads, seconds);
+        run("locked HashMap", lockedHashMap(), handles, threads, seconds);
+    }
+
+    private static int claimRace(ClientRegistry<Object> registry, int threads) throws InterruptedException {
+        AtomicInteger winners = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] racers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            racers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (registry.claim("alice", new Object())) {
+                    winners.incrementAndGet();
+                }
+            });
+            racers[i].start();
+        }
+        start.countDown();
+        for (Thread racer : racers) {
+            racer.join();
+        }
+        return winners.get();
+    }
+
+    /**
+     * Every thread mixes the server's traffic: mostly unicast lookups, some
+     * register/disconnect churn, and the occasional broadcast over all handles.
+     */
+    private static void run(String name, Registry registry, int handles, int threads, int seconds)
+            throws InterruptedException {
+        String[] names = new String[handles];
+        for (int i = 0; i < handles; i++) {
+            names[i] = "user" + i;
+            registry.claim(names[i], new Object());
+        }
+
+        LongAdder operations = new LongAdder();
+        LongAdder fanOuts = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                Object self = new Object();
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 1000; i++) {
+                        String handle = names[random.nextInt(handles)];
+                        int roll = random.nextInt(10_000);
+                        if (roll == 0) {
+                            registry.fanOut();
+                            fanOuts.increment();
+                        } else if (roll < 1000) {
+                            Object previous = registry.get(handle);
+                            if (previous != null && registry.release(handle, previous)) {
+                                registry.claim(handle, self);
+                            }
+                        } else {
+                            registry.get(handle);
+                        }
+                    }
+                    operations.add(1000);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        System.out.printf("%-16s %8d %8d %14d %14d%n", name, handles, threads,
+                operations.sum() / seconds, fanOuts.sum() / seconds);
+    }
+
+    private static Registry concurrentRegistry(int handles) {
+        ClientRegistry<Object> clients = new ClientRegistry<>(handles);
+        return new Registry() {
+            public boolean claim(String handle, Object client) {
+                return clients.claim(handle, client);
+            }
+
+            public boolean release(String handle, Object client) {
+                return clients.release(handle, client);
+            }
+
+            public Object get(String handle) {
+                return clients.get(handle);
+            }
+
+            public int fanOut() {
+                return count(clients.values());
+            }
+        };
+    }
+
+    private static Registry lockedHashMap() {
+        Map<String, Object> clients = new HashMap<>();
+        return new Registry() {
+            public synchronized boolean claim(String handle, Object client) {
+                return clients.putIfAbsent(handle, client) == null;
+            }
+
+            public synchronized boolean release(String handle, Object client) {
+                return clients.remove(handle, client);
+            }
+
+            public synchronized Object get(String handle) {
+                return clients.get(handle);
+            }
+
+            public synchronized int fanOut() {
+                return count(clients.values());
+            }
+        };
+    }
+
+    private static int count(Collection<Object> clients) {
+        int count = 0;
+        for (Object client : clients) {
+            if (client != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
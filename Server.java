@@ -5,121 +5,3124 @@
  */
 
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.io.Writer;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 import javax.swing.JTextArea;
 
 public class Server {
-    private ServerSocket serverSocket;
-    private Map<String, ClientHandler> clients = new HashMap<>();
+    /**
+     * How accepted connections are serviced. THREAD_PER_CLIENT is the original
+     * blocking model, VIRTUAL_THREADS runs the same blocking handlers on virtual
+     * threads (Java 21+), and NIO multiplexes every connection over a few
+     * selector threads.
+     */
+    public enum IoMode {
+        THREAD_PER_CLIENT,
+        VIRTUAL_THREADS,
+        NIO
+    }
+
+    private static final int EVENT_LOOP_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    // The most file data one connection sends before the event loop serves
+    // everything else that is ready; see EventLoop.
+    private static final int TRANSFER_QUANTUM = 256 * 1024;
+    // A connection out of bandwidth waits for at least this much to build up,
+    // and at least this long, so a low limit does not mean tiny writes.
+    private static final int MIN_TRANSFER_GRANT = 8 * 1024;
+    private static final long MIN_THROTTLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // What ClientHandler.writePending() reports.
+    private static final int WRITTEN = 0;
+    private static final int SOCKET_FULL = 1;
+    private static final int PAUSED = 2;
+    // Transfer streams one mux connection may have open at once.
+    private static final int MAX_MUX_TRANSFERS = 64;
+    // Files one /mget may send, and how many of them run at once on a mux connection.
+    private static final int MAX_MGET_FILES = 256;
+    private static final int MGET_CONCURRENCY = 4;
+    private static final int MAX_TAG_LENGTH = 32;
+    private static final int OUTBOUND_BATCH = 64;
+    private static final int DIR_PAGE_SIZE = 100;
+    private static final long DEFAULT_FILE_CACHE_SIZE = 64 * 1024 * 1024;
+    private static final int DISK_THREADS = 4;
+    // Upload data received but not yet written by the disk threads, per upload,
+    // beyond which the server stops reading that upload until the disk catches up.
+    private static final long MAX_UNWRITTEN_BYTES = 1024 * 1024;
+    private static final String LOG_FILE = "server.log";
+    private static final String STATS_FILE = "server-stats.txt";
+    private static final long STATS_INTERVAL_SECONDS = 60;
+    /** Commands that get their own latency histogram; see ServerMetrics. */
+    private static final String[] COMMANDS = { "/join", "/leave", "/register", "/store", "/dir", "/get", "/sums",
+            "/stat", "/stream", "/broadcast", "/unicast", "/?", "/protocol", "/compress", "/stats", "/session",
+            "/resume", "/mget", "/signature", "/patch" };
+    private static final int SESSION_TOKEN_BYTES = 16;
+    private static final String SESSION_EXPIRED = "Error: Session expired.";
+    private static final ByteBuffer MESSAGE_SENT_FRAME = WireProtocol.stringFrame(WireProtocol.OP_TEXT, "Message sent.");
+    private static final ByteBuffer TARGET_NOT_FOUND_FRAME =
+            WireProtocol.stringFrame(WireProtocol.OP_TEXT, "Error: Target handle not found.");
+    private static final String MUX_NEEDS_STREAM = "Error: File transfers need a stream of their own.";
+    private static final String MESSAGE_QUEUED = "Message queued, the target handle is offline.";
+    private static final String MESSAGE_NOT_QUEUED = "Error: The target handle is offline and its mailbox is full.";
+    private static final ByteBuffer MESSAGE_QUEUED_FRAME = WireProtocol.stringFrame(WireProtocol.OP_TEXT, MESSAGE_QUEUED);
+    private static final ByteBuffer MESSAGE_NOT_QUEUED_FRAME =
+            WireProtocol.stringFrame(WireProtocol.OP_TEXT, MESSAGE_NOT_QUEUED);
+    /** Where OfflineMailbox keeps its segments, hidden inside the file store. */
+    private static final String OFFLINE_DIRECTORY = ".offline";
+
+    private enum UnicastResult {
+        SENT,
+        QUEUED,
+        NOT_FOUND,
+        NOT_QUEUED
+    }
+
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] eventLoops;
+    private final ClientRegistry<ClientHandler> clients = new ClientRegistry<>();
+    private Executor clientExecutor;
+    private Executor writerExecutor;
+    private final ThreadPoolExecutor fanOutExecutor;
+    private OutboundQueue.SlowConsumerPolicy slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.SPILL;
+    private long outboundQueueCapacity = 1024 * 1024;
+    private long outboundSpillLimit = 64 * 1024 * 1024;
+    private volatile int maxStreamsPerHandle = 8;
+    private volatile long sessionGraceMillis = 30_000;
+    // Shared by every transfer on the server; each handle also has its own.
+    private final TokenBucket serverBandwidth = new TokenBucket(TokenBucket.UNLIMITED);
+    private volatile long handleBandwidthLimit = TokenBucket.UNLIMITED;
+    private final ConcurrentHashMap<String, Long> handleBandwidthLimits = new ConcurrentHashMap<>();
+    // Session token to the handler that currently owns it, connected or not.
+    private final ConcurrentHashMap<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final SecureRandom tokenRandom = new SecureRandom();
     private final String fileStoragePath = "server_files";
-    private JTextArea logArea;
+    private final FileStore fileStore;
+    private final FileIndex fileIndex;
+    private final FileCache fileCache = new FileCache(DEFAULT_FILE_CACHE_SIZE);
+    // Uploads are written and committed here, off the connection threads.
+    private final DiskIo diskIo;
+    private final OfflineMailbox offline;
+    // Other Server processes this one shares handles, chat and /dir with, once
+    // federate() has been called.
+    private final Federation federation;
+    private final IoMode ioMode;
+    private final ServerLog log;
+    private final ServerMetrics metrics;
     private volatile boolean running = true;
 
-    public Server(int port, JTextArea logArea) throws IOException {
-        serverSocket = new ServerSocket(port);
-        this.logArea = logArea;
-        new File(fileStoragePath).mkdir();
-        appendLog("Server started on port " + port);
-    }
+    public Server(int port, JTextArea logArea) throws IOException {
+        this(port, logArea, IoMode.THREAD_PER_CLIENT);
+    }
+
+    public Server(int port, JTextArea logArea, IoMode ioMode) throws IOException {
+        this(port, logArea, ioMode, null);
+    }
+
+    /**
+     * Uses the given store for server files, or a DedupFileStore in server_files
+     * if fileStore is null.
+     */
+    public Server(int port, JTextArea logArea, IoMode ioMode, FileStore fileStore) throws IOException {
+        this.ioMode = ioMode;
+        // Blocking modes accept through a channel as well, so every connection
+        // has a SocketChannel that FileChannel.transferTo can send into.
+        serverChannel = ServerSocketChannel.open();
+        // ServerSocket turns this on by default; the channel does not, and without
+        // it the server cannot be restarted while old connections sit in TIME_WAIT.
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port));
+        // Only the GUI server keeps a log file; headless servers (the benchmarks)
+        // get a disabled log that costs nothing.
+        this.log = new ServerLog(logArea, logArea != null ? Paths.get(LOG_FILE) : null);
+        diskIo = new DiskIo(DISK_THREADS, this::appendLog);
+        if (ioMode == IoMode.VIRTUAL_THREADS) {
+            clientExecutor = newVirtualThreadExecutor();
+            writerExecutor = newVirtualThreadExecutor();
+        } else {
+            clientExecutor = command -> new Thread(command).start();
+            // A writer blocked on a slow socket must not hold up the others, so the
+            // pool grows instead of queueing.
+            writerExecutor = Executors.newCachedThreadPool();
+        }
+        // One thread keeps broadcasts in the order they were sent.
+        fanOutExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "broadcast-fanout"));
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "server-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics = new ServerMetrics(COMMANDS, clients::size, () -> fanOutExecutor.getQueue().size(),
+                this::outboundQueuedBytes, fileCache, diskIo, this::appendLog);
+        metrics.register(port);
+        if (logArea != null) {
+            metrics.startSnapshots(Paths.get(STATS_FILE), STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        this.fileStore = fileStore != null ? fileStore : new DedupFileStore(Paths.get(fileStoragePath), this::appendLog);
+        removeStaleUploads();
+        fileIndex = new FileIndex(this.fileStore.getDirectory(), this::appendLog, name -> {
+            this.fileStore.forget(name);
+            fileCache.invalidate(name);
+        });
+        fileIndex.startWatching();
+        offline = new OfflineMailbox(this.fileStore.getDirectory().resolve(OFFLINE_DIRECTORY), this::appendLog);
+        federation = new Federation(new FederatedNode(), this::appendLog);
+        appendLog("Server started on port " + port + " (" + ioMode + ")");
+    }
+
+    /**
+     * Deletes the temp files of uploads that were cut off by a crash. Nothing
+     * else is written to the store yet, so every one of them is stale.
+     */
+    private void removeStaleUploads() {
+        int removed = 0;
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(fileStore.getDirectory(), ".*.part")) {
+            for (Path temp : temps) {
+                Files.deleteIfExists(temp);
+                removed++;
+            }
+        } catch (IOException e) {
+            appendLog("Error removing unfinished uploads: " + e.getMessage());
+        }
+        if (removed > 0) {
+            appendLog("Removed " + removed + " unfinished upload(s).");
+        }
+    }
+
+    /**
+     * What went wrong in a future, without the CompletionException or
+     * ExecutionException wrapped around it.
+     */
+    private static String causeMessage(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e.getMessage();
+    }
+
+    public void start() {
+        if (ioMode == IoMode.NIO) {
+            startEventLoops();
+            return;
+        }
+        new Thread(() -> {
+            while (running) {
+                try {
+                    SocketChannel clientChannel = serverChannel.accept();
+                    clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    ClientHandler clientHandler = new ClientHandler(clientChannel);
+                    clientExecutor.execute(clientHandler);
+                } catch (IOException e) {
+                    if (running) {
+                        appendLog("Error accepting client connection: " + e.getMessage());
+                    }
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Replaces the executor that runs each blocking ClientHandler. Has no effect
+     * in NIO mode, where connections are driven by the event loops instead.
+     */
+    public void setClientExecutor(Executor clientExecutor) {
+        this.clientExecutor = clientExecutor;
+    }
+
+    /**
+     * Looks the virtual thread factory up reflectively so the server still
+     * compiles and runs on JDKs older than 21, falling back to platform threads.
+     */
+    private Executor newVirtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            appendLog("Virtual threads are not available on this JVM, using platform threads.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * What to do with a client whose outbound queue is full because it reads
+     * slower than messages arrive. Applies to connections accepted afterwards.
+     */
+    public void setSlowConsumerPolicy(OutboundQueue.SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    /**
+     * Bytes of undelivered messages held in memory per client before the slow
+     * consumer policy kicks in.
+     */
+    public void setOutboundQueueCapacity(long outboundQueueCapacity) {
+        this.outboundQueueCapacity = outboundQueueCapacity;
+    }
+
+    /**
+     * How many extra download connections (see /stream) one registered handle
+     * may have open at a time.
+     */
+    public void setMaxStreamsPerHandle(int maxStreamsPerHandle) {
+        this.maxStreamsPerHandle = maxStreamsPerHandle;
+    }
+
+    /**
+     * How long a client that asked for a session (see /session) keeps its handle
+     * after its connection drops. Messages sent to it meanwhile are held and
+     * delivered when it comes back with /resume. Zero turns this off.
+     */
+    public void setSessionGraceSeconds(int seconds) {
+        this.sessionGraceMillis = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    /**
+     * Total bytes per second of file data the server sends and receives across
+     * all clients, or TokenBucket.UNLIMITED. Takes effect immediately, as do the
+     * per-handle limits below. Chat and replies are never limited.
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        serverBandwidth.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Bytes per second of file data for each handle, counting its download
+     * streams together, unless the handle has a limit of its own.
+     */
+    public void setHandleBandwidthLimit(long bytesPerSecond) {
+        handleBandwidthLimit = bytesPerSecond;
+        for (ClientHandler handler : clients.values()) {
+            handler.bandwidth.setRate(bandwidthLimitFor(handler.handle));
+        }
+    }
+
+    /**
+     * Overrides the limit for one handle. A negative rate goes back to the
+     * limit every handle gets.
+     */
+    public void setHandleBandwidthLimit(String handle, long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            handleBandwidthLimits.remove(handle);
+        } else {
+            handleBandwidthLimits.put(handle, bytesPerSecond);
+        }
+        ClientHandler handler = clients.get(handle);
+        if (handler != null) {
+            handler.bandwidth.setRate(bandwidthLimitFor(handle));
+        }
+    }
+
+    /**
+     * Bytes of hot file contents kept in direct memory for downloads (see
+     * FileCache), or FileCache.DISABLED.
+     */
+    public void setFileCacheSize(long bytes) {
+        fileCache.setCapacity(bytes);
+    }
+
+    /**
+     * Joins this server to a cluster as nodeName, taking links from other nodes
+     * on peerPort and dialling the given peers (see Federation). Names must be
+     * unique within the cluster.
+     */
+    public void federate(String nodeName, int peerPort, List<InetSocketAddress> peers) throws IOException {
+        federation.start(nodeName, peerPort, peers);
+    }
+
+    /**
+     * The file's contents from the cache, loading them if they are worth
+     * keeping, or null if it is to be read from disk.
+     */
+    private ByteBuffer cachedContents(String filename) {
+        FileIndex.Entry entry = fileIndex.get(filename);
+        if (entry == null) {
+            return null;
+        }
+        return fileCache.get(filename, fileStore.resolve(filename), entry.getSize(), entry.getLastModified());
+    }
+
+    private static ByteBuffer slice(ByteBuffer contents, long offset, long length) {
+        ByteBuffer slice = contents.duplicate();
+        slice.position((int) offset).limit((int) (offset + length));
+        return slice.slice();
+    }
+
+    private long bandwidthLimitFor(String handle) {
+        Long limit = handle != null ? handleBandwidthLimits.get(handle) : null;
+        return limit != null ? limit : handleBandwidthLimit;
+    }
+
+    private void startEventLoops() {
+        try {
+            eventLoops = new EventLoop[EVENT_LOOP_THREADS];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop();
+                new Thread(eventLoops[i], "nio-loop-" + i).start();
+            }
+        } catch (IOException e) {
+            appendLog("Error opening selector: " + e.getMessage());
+            return;
+        }
+
+        new Thread(() -> {
+            int next = 0;
+            while (running) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    channel.configureBlocking(false);
+                    eventLoops[next++ % eventLoops.length].register(channel);
+                } catch (IOException e) {
+                    if (running) {
+                        appendLog("Error accepting client connection: " + e.getMessage());
+                    }
+                }
+            }
+        }, "nio-acceptor").start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            appendLog("Error closing server socket: " + e.getMessage());
+        }
+        if (eventLoops != null) {
+            for (EventLoop loop : eventLoops) {
+                loop.wakeup();
+            }
+        }
+        if (clientExecutor instanceof ExecutorService) {
+            ((ExecutorService) clientExecutor).shutdown();
+        }
+        if (writerExecutor instanceof ExecutorService) {
+            ((ExecutorService) writerExecutor).shutdown();
+        }
+        federation.close();
+        fanOutExecutor.shutdown();
+        timer.shutdownNow();
+        // Commits still queued finish first; they need the store.
+        diskIo.close();
+        fileIndex.close();
+        fileStore.close();
+        offline.close();
+        try {
+            // The registry is concurrent, so no monitor is held here that could pin
+            // a virtual thread's carrier.
+            for (ClientHandler handler : clients.values()) {
+                try {
+                    handler.getClientSocket().close(); 
+                } catch (IOException e) {
+                    appendLog("Error closing client socket: " + e.getMessage());
+                }
+            }
+            clients.clear(); 
+            appendLog("Server stopped.");
+        } catch (Exception e) {
+            appendLog("Error stopping server: " + e.getMessage());
+        }
+        metrics.close();
+        log.close();
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Bytes of chat messages queued for registered clients and not yet written.
+     */
+    private long outboundQueuedBytes() {
+        long total = 0;
+        for (ClientHandler handler : clients.values()) {
+            total += handler.outbound.getQueuedBytes();
+        }
+        return total;
+    }
+
+    private String newSessionToken() {
+        byte[] bytes = new byte[SESSION_TOKEN_BYTES];
+        tokenRandom.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Delivers a unicast to target, forwards it to the node target is connected
+     * to if that is another one and route is set, or queues it in the offline
+     * mailbox if the handle has registered here before but is not connected now.
+     * A handle whose mailbox is still being drained takes the locked path too,
+     * so the new message lands after the queued ones.
+     */
+    private UnicastResult sendUnicast(String target, ChatMessage message, boolean route) {
+        ClientHandler targetClient = clients.get(target);
+        if (targetClient != null && !offline.hasPending(target)) {
+            targetClient.deliver(message);
+            return UnicastResult.SENT;
+        }
+        if (route && targetClient == null && federation.unicast(target, message.senderBytes, message.body)) {
+            return UnicastResult.SENT;
+        }
+        ReentrantLock lock = offline.lockFor(target);
+        lock.lock();
+        try {
+            targetClient = clients.get(target);
+            // A connection still waiting for the other nodes to grant target
+            // drains the mailbox once they have; what is already in it goes first.
+            if (targetClient != null && !(target.equals(targetClient.claiming) && offline.hasPending(target))) {
+                targetClient.deliver(message);
+                return UnicastResult.SENT;
+            }
+            if (targetClient == null && !offline.isKnown(target)) {
+                return UnicastResult.NOT_FOUND;
+            }
+            return queueOffline(target, message) ? UnicastResult.QUEUED : UnicastResult.NOT_QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands a broadcast to the fan-out thread for this node's clients. The
+     * sender only pays for one enqueue, however many clients are registered.
+     */
+    private void fanOutLocally(ChatMessage chatMessage) {
+        try {
+            fanOutExecutor.execute(() -> {
+                for (ClientHandler client : clients.values()) {
+                    client.deliver(chatMessage);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The server is stopping.
+        }
+    }
+
+    /**
+     * This server as the other nodes of a federation see it.
+     */
+    private class FederatedNode implements Federation.LocalNode {
+        @Override
+        public boolean hasHandle(String handle) {
+            return clients.contains(handle);
+        }
+
+        @Override
+        public Collection<String> handles() {
+            return clients.handles();
+        }
+
+        @Override
+        public List<String> files() {
+            List<String> names = new ArrayList<>();
+            for (FileIndex.Entry file : fileIndex.list("")) {
+                names.add(file.getName());
+            }
+            return names;
+        }
+
+        @Override
+        public void deliverUnicast(byte[] sender, String target, ByteBuffer message) {
+            ChatMessage chatMessage = new ChatMessage(WireProtocol.OP_UNICAST_FROM,
+                    new String(sender, StandardCharsets.UTF_8), sender, message);
+            // Not routed on again: the sending node thought target was here, and
+            // if it has just left, this node's mailbox is the place for it.
+            if (sendUnicast(target, chatMessage, false) == UnicastResult.NOT_FOUND) {
+                appendLog("Dropped a message from another node for " + target + ", who is not here.");
+            }
+        }
+
+        @Override
+        public void deliverBroadcast(byte[] sender, ByteBuffer message) {
+            fanOutLocally(new ChatMessage(WireProtocol.OP_BROADCAST_FROM, new String(sender, StandardCharsets.UTF_8),
+                    sender, message));
+        }
+    }
+
+    /**
+     * Called with the target's mailbox lock held.
+     */
+    private boolean queueOffline(String target, ChatMessage message) {
+        try {
+            return offline.append(target, message.senderBytes, message.body);
+        } catch (IOException e) {
+            appendLog("Error queueing a message for " + target + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Safe to call from any thread and never blocks; see ServerLog.
+     */
+    private void appendLog(String message) {
+        log.log(message);
+    }
+    
+    /**
+     * Filenames arrive from remote clients, so anything that could escape
+     * server_files or collide with an in-progress upload is refused.
+     */
+    private static boolean isValidFilename(String filename) {
+        return !filename.isEmpty()
+                && !filename.startsWith(".")
+                && filename.indexOf('/') < 0
+                && filename.indexOf('\\') < 0;
+    }
+
+    /**
+     * What a /patch upload's body rebuilds: the delta is applied to the stored
+     * file with blocks of blockSize, giving size bytes whose ContentHash is hash.
+     */
+    private static class Patch {
+        private final int blockSize;
+        private final long size;
+        private final String hash;
+
+        Patch(int blockSize, long size, String hash) {
+            this.blockSize = blockSize;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * A /broadcast or /unicast payload, encoded once per wire format no matter
+     * how many recipients it has. Normally only the broadcast fan-out thread or
+     * the unicast sender encodes it, but a message held for a disconnected
+     * session (see /resume) may be replayed from another thread at the same
+     * time. Encoding is idempotent, so at worst it happens twice; the fields are
+     * volatile so a buffer is never seen half built.
+     */
+    private static class ChatMessage {
+        private final byte opcode;
+        private final String sender;
+        private final byte[] senderBytes;
+        private final ByteBuffer body;
+        private volatile ByteBuffer frame;
+        private volatile ByteBuffer textLine;
+        private volatile ByteBuffer muxFrame;
+
+        ChatMessage(byte opcode, String sender, byte[] senderBytes, ByteBuffer body) {
+            this.opcode = opcode;
+            this.sender = sender;
+            this.senderBytes = senderBytes;
+            // The body may be a view into the sender's read buffer, which is reused
+            // as soon as the command returns.
+            this.body = ByteBuffer.allocate(body.remaining()).put(body.duplicate()).flip();
+        }
+
+        ByteBuffer frame() {
+            ByteBuffer encoded = frame;
+            if (encoded == null) {
+                encoded = WireProtocol.deliveryFrame(opcode, senderBytes, body);
+                frame = encoded;
+            }
+            return encoded.duplicate();
+        }
+
+        /**
+         * The binary frame as DATA on the mux CHAT stream.
+         */
+        ByteBuffer muxFrame() {
+            ByteBuffer encoded = muxFrame;
+            if (encoded == null) {
+                encoded = MuxProtocol.frame(MuxProtocol.CHAT, MuxProtocol.DATA, frame());
+                muxFrame = encoded;
+            }
+            return encoded.duplicate();
+        }
+
+        ByteBuffer textLine() {
+            ByteBuffer encoded = textLine;
+            if (encoded == null) {
+                String prefix = opcode == WireProtocol.OP_BROADCAST_FROM ? "Broadcast from " : "Message from ";
+                String line = prefix + sender + ": " + WireProtocol.decode(body) + System.lineSeparator();
+                encoded = ByteBuffer.wrap(line.getBytes(Charset.defaultCharset()));
+                textLine = encoded;
+            }
+            return encoded.duplicate();
+        }
+
+        int size() {
+            return senderBytes.length + body.remaining();
+        }
+    }
+
+    /**
+     * File data waiting on a connection's write queue, written a piece at a time
+     * whenever the socket is writable.
+     */
+    private interface Region {
+        /**
+         * Writes at most limit bytes and returns how many were written, which is
+         * fewer than limit only if the target filled up or the region is done.
+         */
+        long transferTo(WritableByteChannel target, long limit) throws IOException;
+
+        boolean isComplete();
+
+        void close();
+    }
+
+    /**
+     * A slice of a file sent with transferTo.
+     */
+    private class FileRegion implements Region {
+        private final FileChannel file;
+        private final long started = System.nanoTime();
+        private long position;
+        private final long end;
+        private final long length;
+
+        FileRegion(FileChannel file, long position, long length) {
+            this.file = file;
+            this.position = position;
+            this.end = position + length;
+            this.length = length;
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target, long limit) throws IOException {
+            long sent = 0;
+            while (position < end && sent < limit) {
+                long written = file.transferTo(position, Math.min(end - position, limit - sent), target);
+                if (written == 0) {
+                    if (position >= file.size()) {
+                        throw new IOException("File was truncated during transfer.");
+                    }
+                    return sent;
+                }
+                position += written;
+                sent += written;
+            }
+            if (position == end) {
+                finished();
+            }
+            return sent;
+        }
+
+        void finished() {
+            close();
+            metrics.downloadFinished(started, length, length);
+        }
+
+        @Override
+        public boolean isComplete() {
+            return position == end;
+        }
+
+        @Override
+        public void close() {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * A slice of a cached file (see FileCache), written from its direct buffer.
+     * Mux chunks are not whole downloads, so they are not counted as finished.
+     */
+    private class BufferRegion implements Region {
+        private final ByteBuffer contents;
+        private final boolean whole;
+        private final long started = System.nanoTime();
+
+        BufferRegion(ByteBuffer contents, boolean whole) {
+            this.contents = contents;
+            this.whole = whole;
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target, long limit) throws IOException {
+            int end = contents.limit();
+            contents.limit((int) Math.min(end, contents.position() + limit));
+            long sent = 0;
+            try {
+                while (contents.hasRemaining()) {
+                    int written = target.write(contents);
+                    if (written == 0) {
+                        break;
+                    }
+                    sent += written;
+                }
+            } finally {
+                contents.limit(end);
+            }
+            if (whole && sent > 0 && !contents.hasRemaining()) {
+                metrics.downloadFinished(started, contents.capacity(), contents.capacity());
+            }
+            return sent;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return !contents.hasRemaining();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * The body of one mux DATA frame. The file stays open for the next chunk,
+     * unless this is the last one.
+     */
+    private class ChunkRegion extends FileRegion {
+        private final boolean last;
+
+        ChunkRegion(FileChannel file, long position, long length, boolean last) {
+            super(file, position, length);
+            this.last = last;
+        }
+
+        @Override
+        void finished() {
+            if (last) {
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (last) {
+                super.close();
+            }
+        }
+    }
+
+    /**
+     * A slice of a file sent compressed (see TransferCompression). Raw blocks are
+     * read and compressed one at a time as the socket takes them, so memory use
+     * stays at one block whatever the file size.
+     */
+    private class DeflatedRegion implements Region {
+        private final FileChannel file;
+        private final String description;
+        private final TransferCompression.Encoder encoder = TransferCompression.Encoder.acquire();
+        private final ByteBuffer raw = ByteBuffer.allocate(TransferCompression.BLOCK_SIZE);
+        private final long started = System.nanoTime();
+        private ByteBuffer block;
+        private long position;
+        private final long end;
+        private boolean closed;
+
+        DeflatedRegion(FileChannel file, long position, long length, String description) {
+            this.file = file;
+            this.position = position;
+            this.end = position + length;
+            this.description = description;
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target, long limit) throws IOException {
+            long sent = 0;
+            while (true) {
+                if (block != null && block.hasRemaining()) {
+                    int blockLimit = block.limit();
+                    block.limit((int) Math.min(blockLimit, block.position() + limit - sent));
+                    try {
+                        sent += target.write(block);
+                    } finally {
+                        block.limit(blockLimit);
+                    }
+                    if (block.hasRemaining()) {
+                        return sent;
+                    }
+                }
+                if (position == end) {
+                    if (!closed) {
+                        TransferCompression.TransferStats stats = encoder.getStats();
+                        appendLog("Sent " + description + " compressed: " + stats);
+                        metrics.downloadFinished(started, stats.getRawBytes(), stats.getWireBytes());
+                        close();
+                    }
+                    return sent;
+                }
+                raw.clear();
+                raw.limit(TransferCompression.blockLength(end - position));
+                while (raw.hasRemaining()) {
+                    if (file.read(raw, position + raw.position()) < 0) {
+                        throw new IOException("File was truncated during transfer.");
+                    }
+                }
+                position += raw.flip().remaining();
+                block = encoder.encode(raw);
+            }
+        }
+
+        @Override
+        public boolean isComplete() {
+            return position == end && (block == null || !block.hasRemaining());
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            encoder.release();
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * A selector thread that owns a subset of the NIO connections. All reads,
+     * command processing and socket writes for its connections happen here.
+     *
+     * File data goes out at most TRANSFER_QUANTUM bytes per connection per turn.
+     * A connection with more to send waits in bulk until the turn's tasks, reads
+     * and other writes are done, so chat and replies never queue behind a big
+     * download, and downloads share the loop round-robin.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Only touched by the loop thread.
+        private final Queue<ClientHandler> bulk = new ArrayDeque<>();
+        private Thread thread;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new ClientHandler(channel, this, key));
+                } catch (IOException e) {
+                    appendLog("Error registering client connection: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void wakeup() {
+            selector.wakeup();
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Called from the loop thread by a connection that used up its quantum.
+         */
+        void yieldBulk(ClientHandler handler) {
+            if (!handler.inBulk) {
+                handler.inBulk = true;
+                bulk.add(handler);
+            }
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (running) {
+                try {
+                    if (bulk.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                } catch (IOException e) {
+                    appendLog("Error in event loop: " + e.getMessage());
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ClientHandler handler = (ClientHandler) key.attachment();
+                    if (handler == null) {
+                        continue;
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        handler.flushPending();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        handler.onReadable();
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                // Only the connections queued before this point get a turn now;
+                // those that yield again wait for the next pass.
+                for (int i = bulk.size(); i > 0; i--) {
+                    ClientHandler handler = bulk.poll();
+                    handler.inBulk = false;
+                    handler.flushPending();
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Package-private, like processCommand(), so the JMH benchmarks in
+    // benchmarks/ can drive a handler directly.
+    class ClientHandler implements Runnable {
+        private Socket clientSocket;
+        private SocketChannel channel;
+        private PrintWriter out;
+        private String handle;
+        private byte[] handleBytes;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        private volatile boolean binary;
+        private volatile boolean compress;
+        // Set once the client negotiates MuxProtocol. binary is set as well,
+        // since what the mux streams carry are WireProtocol frames.
+        private volatile boolean mux;
+        // Open mux transfer streams by id, and the downloads among them in the
+        // order they next get to send. Guarded by sendLock.
+        private final Map<Integer, MuxTransfer> transfers = new HashMap<>();
+        private final ArrayDeque<MuxTransfer> downloads = new ArrayDeque<>();
+        // Blocking modes: a writer task is sending download data.
+        private boolean pumping;
+        // /mget commands still sending files on streams the server opened, and
+        // the id for the next such stream. Guarded by sendLock.
+        private final ArrayDeque<MgetBatch> batches = new ArrayDeque<>();
+        private int nextServerStream = MuxProtocol.FIRST_SERVER_TRANSFER;
+        // The correlation tag of the command being handled, with its trailing
+        // space; every line of its reply starts with it.
+        private String replyTag;
+        // The last unicast target, so repeated messages to the same handle do not
+        // decode a new String each time.
+        private ByteBuffer lastTarget;
+        private String lastTargetHandle;
+        private Upload upload;
+        // Set in NIO mode while input is held back for a reply the disk threads
+        // or the other nodes are still working on; see whenDone().
+        private boolean awaitingReply;
+        // The handle this connection has taken locally while the other nodes are
+        // asked for it; read by the senders of unicasts.
+        private volatile String claiming;
+        private volatile boolean closed;
+        // Set on a download stream: the client it fetches for. streams counts the
+        // download streams attached to this client.
+        private ClientHandler streamOwner;
+        private final AtomicInteger streams = new AtomicInteger();
+        // When the command being processed started: when its bytes were read, or
+        // when the command before it in the same read finished.
+        private long commandStart;
+
+        // Set once the client asks for a session (see /session). While detached,
+        // the connection is gone but the handle is kept for sessionGraceMillis and
+        // messages for it wait in missed; a /resume from a new connection makes
+        // that handler the successor, which gets them all. Guarded by sessionLock.
+        private volatile String sessionToken;
+        private volatile boolean detached;
+        private boolean leaving;
+        private final ReentrantLock sessionLock = new ReentrantLock();
+        private List<ChatMessage> missed;
+        private long missedBytes;
+        private ClientHandler successor;
+        private boolean expired;
+        private ScheduledFuture<?> expiry;
+
+        // Serializes writes from other handlers with a file being streamed to this
+        // client in the blocking modes, so a broadcast never lands inside file data.
+        private final ReentrantLock sendLock = new ReentrantLock();
+        private final OutboundQueue outbound =
+                new OutboundQueue(outboundQueueCapacity, slowConsumerPolicy, outboundSpillLimit);
+        private final ByteBuffer[] drainBatch = new ByteBuffer[OUTBOUND_BATCH];
+
+        // Limits this handle's file transfers, together with serverBandwidth.
+        // Download streams use their owner's.
+        private final TokenBucket bandwidth = new TokenBucket(handleBandwidthLimit);
+
+        // Only used in NIO mode.
+        private EventLoop eventLoop;
+        private SelectionKey key;
+        private final Queue<Object> pendingWrites = new ArrayDeque<>();
+        // Waiting in the event loop's bulk queue, or for the bandwidth limit.
+        private boolean inBulk;
+        private boolean writeThrottled;
+        // Download data queued since this connection last yielded to the others.
+        private long pumpedBytes;
+
+        public ClientHandler(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.clientSocket = channel.socket();
+            out = new PrintWriter(new ChannelWriter(), true);
+            metrics.connectionOpened();
+        }
+
+        public ClientHandler(SocketChannel channel, EventLoop eventLoop, SelectionKey key) {
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+            this.key = key;
+            this.clientSocket = channel.socket();
+            this.out = new PrintWriter(new ChannelWriter(), true);
+            metrics.connectionOpened();
+        }
+
+        public Socket getClientSocket() {
+            return clientSocket;
+        }
+
+        @Override
+        public void run() {
+            // The channel is in blocking mode here, so each onReadable() waits for data.
+            while (!closed) {
+                onReadable();
+            }
+        }
+
+        private void release() {
+            metrics.connectionClosed();
+            outbound.close();
+            if (streamOwner != null) {
+                streamOwner.streams.decrementAndGet();
+                streamOwner = null;
+            }
+            try {
+                if (handle != null && !holdSession() && clients.release(handle, this)) {
+                    federation.released(handle);
+                }
+                clientSocket.close();
+            } catch (IOException e) {
+                appendLog("Error closing client socket: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Called as the connection closes. Keeps the handle registered for the
+         * grace period if the client has a session and did not /leave, and
+         * returns whether it did.
+         */
+        private boolean holdSession() {
+            sessionLock.lock();
+            try {
+                if (successor != null) {
+                    // Already taken over by a newer connection.
+                    return true;
+                }
+                if (sessionToken == null) {
+                    return false;
+                }
+                if (leaving || !running || sessionGraceMillis <= 0) {
+                    sessions.remove(sessionToken, this);
+                    return false;
+                }
+                missed = new ArrayList<>();
+                detached = true;
+                try {
+                    expiry = timer.schedule(this::expireSession, sessionGraceMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // The server is stopping.
+                }
+            } finally {
+                sessionLock.unlock();
+            }
+            appendLog(handle + " disconnected, holding the handle for " + sessionGraceMillis / 1000 + " s.");
+            return true;
+        }
+
+        /**
+         * Ends a held session that was not resumed in time, or whose missed
+         * messages outgrew what one connection may queue.
+         */
+        private void expireSession() {
+            List<ChatMessage> held;
+            int queued = 0;
+            // Unicasts that were held move to the offline mailbox, ahead of any
+            // sent once the handle is released.
+            ReentrantLock offlineLock = offline.lockFor(handle);
+            offlineLock.lock();
+            try {
+                sessionLock.lock();
+                try {
+                    if (successor != null || expired) {
+                        return;
+                    }
+                    expired = true;
+                    held = missed;
+                    missed = null;
+                } finally {
+                    sessionLock.unlock();
+                }
+                sessions.remove(sessionToken, this);
+                if (clients.release(handle, this)) {
+                    federation.released(handle);
+                }
+                if (held != null) {
+                    for (ChatMessage message : held) {
+                        if (message.opcode == WireProtocol.OP_UNICAST_FROM && queueOffline(handle, message)) {
+                            queued++;
+                        }
+                    }
+                }
+            } finally {
+                offlineLock.unlock();
+            }
+            appendLog(handle + " did not come back, the handle is free again"
+                    + (queued > 0 ? ", " + queued + " messages were queued for it." : "."));
+        }
+
+        /**
+         * Delivery to a detached handler: the message waits for /resume, or goes
+         * to the successor if the session has already been taken over.
+         */
+        private void holdForResume(ChatMessage message) {
+            ClientHandler next;
+            boolean ended;
+            boolean overflow = false;
+            sessionLock.lock();
+            try {
+                next = successor;
+                ended = expired;
+                if (next == null && !ended) {
+                    missed.add(message);
+                    missedBytes += message.size();
+                    overflow = missedBytes > outboundQueueCapacity;
+                }
+            } finally {
+                sessionLock.unlock();
+            }
+            if (next != null) {
+                next.deliver(message);
+            } else if (ended) {
+                // Raced with expiry, which has released the handle by now.
+                if (message.opcode == WireProtocol.OP_UNICAST_FROM) {
+                    sendUnicast(handle, message, true);
+                }
+            } else if (overflow) {
+                expireSession();
+            }
+        }
+
+        /**
+         * Hands this session's handle and held messages to a new connection.
+         * Returns false if the session has already ended. The messages are
+         * replayed before the handle points at the new connection, and anything
+         * still delivered here afterwards is forwarded, so nothing arrives out of
+         * order or twice.
+         */
+        private boolean takeOver(ClientHandler next) {
+            boolean wasConnected;
+            sessionLock.lock();
+            try {
+                if (expired || successor != null) {
+                    return false;
+                }
+                if (missed != null) {
+                    for (ChatMessage message : missed) {
+                        next.deliver(message);
+                    }
+                }
+                missed = null;
+                successor = next;
+                wasConnected = !detached;
+                detached = true;
+            } finally {
+                sessionLock.unlock();
+            }
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+            next.handle = handle;
+            next.handleBytes = handleBytes;
+            next.bandwidth.setRate(bandwidth.getRate());
+            next.sessionToken = sessionToken;
+            clients.replace(handle, this, next);
+            sessions.replace(sessionToken, this, next);
+            if (wasConnected) {
+                // The client noticed the broken connection before we did.
+                closeConnection();
+            }
+            return true;
+        }
+
+        /**
+         * Reads whatever is available on the channel and processes every complete
+         * line. Partial lines stay in the read buffer until the rest arrives. While
+         * an upload is in progress the raw bytes go to its file instead.
+         */
+        private void onReadable() {
+            try {
+                if (awaitingReply) {
+                    // Level-triggered: the rest waits until the reply is out.
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+                if (upload != null && waitForDisk()) {
+                    return;
+                }
+                if (upload != null && !upload.isDeflated() && readBuffer.position() == 0) {
+                    long allowance = acquireUploadBandwidth(TRANSFER_BUFFER_SIZE);
+                    if (allowance == 0) {
+                        return;
+                    }
+                    int read = upload.readFrom(channel, allowance);
+                    giveBackBandwidth(allowance - Math.max(read, 0));
+                    if (read < 0) {
+                        close();
+                        return;
+                    }
+                    if (upload.isComplete()) {
+                        finishUpload();
+                    }
+                    return;
+                }
+
+                int read;
+                if (upload != null) {
+                    long allowance = acquireUploadBandwidth(readBuffer.remaining());
+                    if (allowance == 0) {
+                        return;
+                    }
+                    int limit = readBuffer.limit();
+                    readBuffer.limit((int) Math.min(limit, readBuffer.position() + allowance));
+                    try {
+                        read = channel.read(readBuffer);
+                    } finally {
+                        readBuffer.limit(limit);
+                    }
+                    giveBackBandwidth(allowance - Math.max(read, 0));
+                } else {
+                    read = channel.read(readBuffer);
+                }
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                metrics.bytesRead(read);
+                commandStart = System.nanoTime();
+
+                readBuffer.flip();
+                processInput();
+                if (closed || !channel.isOpen()) {
+                    close();
+                    return;
+                }
+                readBuffer.compact();
+
+                if (!readBuffer.hasRemaining() && !awaitingReply) {
+                    if (readBuffer.capacity() >= MAX_LINE_LENGTH) {
+                        appendLog("Closing connection: command line too long.");
+                        close();
+                        return;
+                    }
+                    ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                    readBuffer.flip();
+                    larger.put(readBuffer);
+                    readBuffer = larger;
+                }
+            } catch (IOException e) {
+                if (handle != null) {
+                    appendLog(handle + " has disconnected from the server.");
+                } else {
+                    appendLog("A client has disconnected from the server.");
+                }
+                close();
+            }
+        }
+
+        /**
+         * Stops reading while the upload has more than MAX_UNWRITTEN_BYTES waiting
+         * for the disk threads, so a slow disk pushes back on the client the way
+         * the bandwidth limit does. Returns true if reading stopped; a blocking
+         * handler waits instead.
+         */
+        private boolean waitForDisk() throws IOException {
+            Upload waiting = upload;
+            if (!waiting.isBacklogged()) {
+                return false;
+            }
+            if (eventLoop == null) {
+                waiting.awaitWritten();
+                return false;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            Runnable resume = () -> {
+                if (!closed && key.isValid() && upload == waiting && !waiting.isBacklogged()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            };
+            waiting.onWritten = () -> {
+                if (!waiting.isBacklogged()) {
+                    waiting.onWritten = null;
+                    eventLoop.execute(resume);
+                }
+            };
+            // In case the writes all finished before the listener was in place.
+            resume.run();
+            return true;
+        }
+
+        /**
+         * Sends the reply to a command whose disk work was handed to the disk
+         * threads once it is ready. Until then nothing more is read from a text or
+         * binary connection, so replies keep their order; a blocking handler
+         * simply waits. On a mux connection other streams carry on meanwhile.
+         */
+        private void replyWhenDone(CompletableFuture<String> reply) {
+            whenDone(reply, !mux, (text, e) -> {
+                if (!closed) {
+                    out.println(text != null ? text : "Error: " + causeMessage(e));
+                }
+            });
+        }
+
+        /**
+         * Runs then with the outcome of result on this connection's own thread,
+         * the event loop or the blocking handler, with the command's reply tag in
+         * place. With holdInput set no further commands are read until then has
+         * run. It runs even if the connection has closed meanwhile, so it can
+         * undo whatever the command had taken.
+         */
+        private <T> void whenDone(CompletableFuture<T> result, boolean holdInput,
+                BiConsumer<? super T, ? super Throwable> then) {
+            if (eventLoop == null) {
+                T value = null;
+                Throwable failure = null;
+                try {
+                    value = result.get();
+                } catch (ExecutionException e) {
+                    failure = e;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new IOException("Interrupted.");
+                }
+                then.accept(value, failure);
+                // Commands pipelined behind it start now, not when they were read.
+                commandStart = System.nanoTime();
+                return;
+            }
+            String tag = replyTag;
+            if (holdInput) {
+                awaitingReply = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            result.whenComplete((value, e) -> eventLoop.execute(() -> {
+                replyTag = tag;
+                try {
+                    then.accept(value, e);
+                } finally {
+                    replyTag = null;
+                }
+                if (awaitingReply && !closed) {
+                    awaitingReply = false;
+                    commandStart = System.nanoTime();
+                    resumeInput();
+                }
+            }));
+        }
+
+        /**
+         * Goes on with the input held back by whenDone().
+         */
+        private void resumeInput() {
+            if (!key.isValid()) {
+                return;
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            try {
+                readBuffer.flip();
+                processInput();
+                if (closed || !channel.isOpen()) {
+                    close();
+                    return;
+                }
+                readBuffer.compact();
+            } catch (IOException e) {
+                appendLog((handle != null ? handle : "A client") + " has disconnected from the server.");
+                close();
+            }
+        }
+
+        private void processInput() throws IOException {
+            while (readBuffer.hasRemaining() && !closed && channel.isOpen() && !awaitingReply) {
+                if (upload != null) {
+                    upload.consume(readBuffer);
+                    if (upload.isComplete()) {
+                        finishUpload();
+                    }
+                    continue;
+                }
+
+                if (mux) {
+                    if (!processMuxFrame()) {
+                        return;
+                    }
+                    continue;
+                }
+
+                if (binary) {
+                    if (!processFrame()) {
+                        return;
+                    }
+                    continue;
+                }
+
+                int lineStart = readBuffer.position();
+                int newline = -1;
+                for (int i = lineStart; i < readBuffer.limit(); i++) {
+                    if (readBuffer.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline < 0) {
+                    return;
+                }
+
+                int end = newline;
+                if (end > lineStart && readBuffer.get(end - 1) == '\r') {
+                    end--;
+                }
+                byte[] line = new byte[end - lineStart];
+                readBuffer.get(line);
+                readBuffer.position(newline + 1);
+                processCommand(new String(line, Charset.defaultCharset()));
+            }
+        }
+
+        /**
+         * Dispatches the next binary frame in the read buffer. Returns false if the
+         * frame has not fully arrived yet. Chat frames are handled straight from the
+         * buffer; other commands fall back to the text handlers.
+         */
+        private boolean processFrame() throws IOException {
+            int size = WireProtocol.frameSize(readBuffer);
+            if (size == -1) {
+                return false;
+            }
+            if (size <= WireProtocol.HEADER_LENGTH || size > WireProtocol.MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length " + size + ".");
+            }
+            if (size > readBuffer.remaining()) {
+                return false;
+            }
+
+            int frameEnd = readBuffer.position() + size;
+            int limit = readBuffer.limit();
+            readBuffer.position(readBuffer.position() + WireProtocol.HEADER_LENGTH);
+            readBuffer.limit(frameEnd);
+            try {
+                byte opcode = readBuffer.get();
+                switch (opcode) {
+                    case WireProtocol.OP_BROADCAST:
+                        handleBroadcast(WireProtocol.getStringView(readBuffer));
+                        commandFinished("/broadcast");
+                        break;
+                    case WireProtocol.OP_UNICAST:
+                        ByteBuffer target = WireProtocol.getStringView(readBuffer);
+                        handleUnicast(target, WireProtocol.getStringView(readBuffer));
+                        commandFinished("/unicast");
+                        break;
+                    case WireProtocol.OP_COMMAND:
+                        processCommand(WireProtocol.getString(readBuffer));
+                        break;
+                    default:
+                        out.println("Error: Command not found.");
+                        break;
+                }
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                throw new IOException("Malformed frame: " + e.getMessage());
+            } finally {
+                readBuffer.limit(limit);
+                readBuffer.position(frameEnd);
+            }
+            return true;
+        }
+
+        /**
+         * Dispatches the next mux frame in the read buffer. Returns false if the
+         * frame has not fully arrived yet. The control stream carries WireProtocol
+         * frames, handled as on a binary connection; other streams are transfers.
+         */
+        private boolean processMuxFrame() throws IOException {
+            int size = MuxProtocol.frameSize(readBuffer);
+            if (size == -1) {
+                return false;
+            }
+            if (size < MuxProtocol.HEADER_LENGTH || size > MAX_LINE_LENGTH) {
+                throw new IOException("Invalid frame length " + size + ".");
+            }
+            if (size > readBuffer.remaining()) {
+                return false;
+            }
+
+            int frameEnd = readBuffer.position() + size;
+            int limit = readBuffer.limit();
+            readBuffer.position(readBuffer.position() + 4);
+            readBuffer.limit(frameEnd);
+            try {
+                int stream = readBuffer.getInt();
+                byte type = readBuffer.get();
+                if (stream == MuxProtocol.CONTROL && type == MuxProtocol.DATA) {
+                    while (readBuffer.hasRemaining() && !closed) {
+                        if (!processFrame()) {
+                            throw new IOException("Truncated frame on the control stream.");
+                        }
+                    }
+                } else if (stream >= MuxProtocol.FIRST_TRANSFER) {
+                    if (size > MuxProtocol.HEADER_LENGTH + MuxProtocol.MAX_DATA_LENGTH) {
+                        throw new IOException("Invalid frame length " + size + ".");
+                    }
+                    onTransferFrame(stream, type);
+                } else {
+                    throw new IOException("Unexpected frame type " + type + " on stream " + stream + ".");
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Malformed frame.");
+            } finally {
+                readBuffer.limit(limit);
+                readBuffer.position(frameEnd);
+            }
+            return true;
+        }
+
+        private void onTransferFrame(int stream, byte type) throws IOException {
+            sendLock.lock();
+            try {
+                MuxTransfer transfer = transfers.get(stream);
+                switch (type) {
+                    case MuxProtocol.OPEN:
+                        if (transfer != null || stream >= MuxProtocol.FIRST_SERVER_TRANSFER) {
+                            throw new IOException("Stream " + stream + " cannot be opened.");
+                        }
+                        openTransfer(stream, StandardCharsets.UTF_8.decode(readBuffer).toString());
+                        break;
+                    case MuxProtocol.DATA:
+                        // Data on a stream that was just ended crossed the END on the wire.
+                        if (transfer != null) {
+                            if (transfer.upload == null) {
+                                throw new IOException("Data sent on download stream " + stream + ".");
+                            }
+                            receive(transfer);
+                        }
+                        break;
+                    case MuxProtocol.WINDOW:
+                        int increment = readBuffer.getInt();
+                        if (increment <= 0) {
+                            throw new IOException("Invalid window increment " + increment + ".");
+                        }
+                        if (transfer != null && transfer.upload == null) {
+                            transfer.window += increment;
+                            pumpDownloads();
+                        }
+                        break;
+                    case MuxProtocol.END:
+                        if (transfer == null) {
+                            break;
+                        }
+                        if (transfer.upload != null) {
+                            transfers.remove(stream);
+                            transfer.close();
+                            writeFrames(MuxProtocol.endFrame(stream));
+                        } else {
+                            transfer.cancelled = true;
+                            pumpDownloads();
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unknown frame type " + type + " on stream " + stream + ".");
+                }
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        /**
+         * Starts a transfer from an OPEN frame's command line. Anything wrong with
+         * it is answered on the stream itself, which the reply then ends.
+         */
+        private void openTransfer(int stream, String command) throws IOException {
+            String[] parts = command.split(" ");
+            if (transfers.size() >= MAX_MUX_TRANSFERS) {
+                endTransfer(stream, "Error: Too many transfers, the limit is " + MAX_MUX_TRANSFERS + ".");
+            } else if (parts[0].equals("/get") && (parts.length == 3 || parts.length == 4)) {
+                openDownload(stream, parts[1], parts[2], parts.length == 4 ? parts[3] : null, null);
+            } else if (parts[0].equals("/store") && parts.length == 3) {
+                long size = parseSize(parts[2]);
+                if (size < 0) {
+                    endTransfer(stream, "Error: Command parameters do not match or is not allowed.");
+                } else {
+                    openUpload(stream, newUpload(parts[1], size, false));
+                }
+            } else if (parts[0].equals("/patch") && parts.length == 6) {
+                Upload patch = newPatch(parts);
+                if (patch == null) {
+                    endTransfer(stream, "Error: Command parameters do not match or is not allowed.");
+                } else {
+                    openUpload(stream, patch);
+                }
+            } else {
+                endTransfer(stream, "Error: Command parameters do not match or is not allowed.");
+            }
+        }
+
+        /**
+         * Starts sending a file on the stream, as part of batch if that is not
+         * null. Returns false, having replied with the reason, if it cannot be sent.
+         */
+        private boolean openDownload(int stream, String filename, String offsetText, String lengthText,
+                MgetBatch batch) {
+            long offset;
+            long length;
+            try {
+                offset = Long.parseLong(offsetText);
+                length = lengthText != null ? Long.parseLong(lengthText) : Long.MAX_VALUE;
+            } catch (NumberFormatException e) {
+                offset = -1;
+                length = -1;
+            }
+            if (offset < 0 || length < 0) {
+                endTransfer(stream, "Error: Command parameters do not match or is not allowed.");
+                return false;
+            }
+            if (handle == null) {
+                endTransfer(stream, "Error: You must register before using this command.");
+                return false;
+            }
+            Path source = fileStore.resolve(filename);
+            if (!isValidFilename(filename) || !Files.isRegularFile(source)) {
+                endTransfer(stream, "Error: File not found in the server.");
+                return false;
+            }
+
+            ByteBuffer cached = cachedContents(filename);
+            FileChannel file = null;
+            try {
+                if (cached != null) {
+                    length = Math.min(length, Math.max(0, cached.capacity() - offset));
+                } else {
+                    file = FileChannel.open(source, StandardOpenOption.READ);
+                    length = Math.min(length, Math.max(0, file.size() - offset));
+                }
+            } catch (IOException e) {
+                if (file != null) {
+                    try {
+                        file.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                endTransfer(stream, "Error: Unable to send file. " + e.getMessage());
+                return false;
+            }
+            MuxTransfer download = new MuxTransfer(stream, filename, file, cached, offset, length);
+            if (batch != null) {
+                // Before any of it is sent: a small file may be done right away.
+                download.batch = batch;
+                batch.active++;
+            }
+            transfers.put(stream, download);
+            downloads.add(download);
+            writeFrames(MuxProtocol.frame(stream, MuxProtocol.DATA,
+                    WireProtocol.fileFrame(WireProtocol.OP_FILE, filename, offset, length)));
+            pumpDownloads();
+            return true;
+        }
+
+        private void openUpload(int stream, Upload upload) throws IOException {
+            if (upload.file == null) {
+                // Nothing to keep, so there is no point in taking the body.
+                endTransfer(stream, upload.rejection);
+                return;
+            }
+            MuxTransfer transfer = new MuxTransfer(stream, upload);
+            upload.onWritten = () -> {
+                if (transfer.awaitingDisk) {
+                    transfer.awaitingDisk = false;
+                    retryCredit(transfer);
+                }
+            };
+            if (upload.isComplete()) {
+                finishTransfer(transfer);
+                return;
+            }
+            transfers.put(stream, transfer);
+        }
+
+        /**
+         * Takes an upload's DATA frame. The client may have INITIAL_WINDOW bytes in
+         * flight; they are acknowledged with WINDOW once a quarter of that has been
+         * written out, as the bandwidth limits allow.
+         */
+        private void receive(MuxTransfer transfer) throws IOException {
+            int count = readBuffer.remaining();
+            if (count > transfer.upload.remaining) {
+                throw new IOException("Stream " + transfer.stream + " sent more than its file.");
+            }
+            transfer.owed += count;
+            if (transfer.owed > MuxProtocol.INITIAL_WINDOW) {
+                throw new IOException("Stream " + transfer.stream + " overran its window.");
+            }
+            transfer.upload.consume(readBuffer);
+            if (transfer.upload.isComplete()) {
+                transfers.remove(transfer.stream);
+                finishTransfer(transfer);
+            } else if (transfer.owed >= MuxProtocol.INITIAL_WINDOW / 4) {
+                creditUpload(transfer);
+            }
+        }
+
+        private void finishTransfer(MuxTransfer transfer) {
+            commitUpload(transfer.upload).thenAccept(reply -> endTransfer(transfer.stream, reply));
+        }
+
+        /**
+         * Acknowledges the upload bytes that have been written to disk, as the
+         * bandwidth limits allow. Bytes still on their way to disk are not, so a
+         * slow disk slows the client down instead of filling memory.
+         */
+        private void creditUpload(MuxTransfer transfer) {
+            if (transfer.crediting) {
+                return;
+            }
+            long unwritten = transfer.upload.unwrittenBytes();
+            long written = transfer.owed - unwritten;
+            long granted = written > 0 ? takeBandwidth(written) : 0;
+            if (granted > 0) {
+                transfer.owed -= granted;
+                writeFrames(MuxProtocol.windowFrame(transfer.stream, (int) granted));
+            }
+            if (transfer.owed < MuxProtocol.INITIAL_WINDOW / 4) {
+                // The client still has most of its window and will send more.
+                return;
+            }
+            if (written <= granted) {
+                // Waiting on the disk, and the upload calls back as writes finish;
+                // unless they all did just now.
+                transfer.awaitingDisk = true;
+                if (transfer.upload.unwrittenBytes() < unwritten) {
+                    transfer.awaitingDisk = false;
+                    creditUpload(transfer);
+                }
+                return;
+            }
+            transfer.crediting = true;
+            Runnable retry = () -> {
+                sendLock.lock();
+                try {
+                    transfer.crediting = false;
+                    if (transfers.get(transfer.stream) == transfer) {
+                        creditUpload(transfer);
+                    }
+                } finally {
+                    sendLock.unlock();
+                }
+            };
+            if (eventLoop != null) {
+                resumeLater(transfer.owed, retry);
+                return;
+            }
+            try {
+                timer.schedule(retry, bandwidthDelay(transfer.owed), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // The server is stopping.
+            }
+        }
+
+        /**
+         * creditUpload() again, called from a disk thread once more of the
+         * upload has been written.
+         */
+        private void retryCredit(MuxTransfer transfer) {
+            Runnable retry = () -> {
+                sendLock.lock();
+                try {
+                    if (transfers.get(transfer.stream) == transfer) {
+                        creditUpload(transfer);
+                    }
+                } finally {
+                    sendLock.unlock();
+                }
+            };
+            try {
+                if (eventLoop != null) {
+                    eventLoop.execute(retry);
+                } else {
+                    timer.execute(retry);
+                }
+            } catch (RejectedExecutionException e) {
+                // The server is stopping.
+            }
+        }
+
+        /**
+         * Replies on a transfer stream with one line of text and ends it.
+         */
+        private void endTransfer(int stream, String text) {
+            writeFrames(MuxProtocol.frame(stream, MuxProtocol.DATA, WireProtocol.stringFrame(WireProtocol.OP_TEXT, text)),
+                    MuxProtocol.endFrame(stream));
+        }
+
+        /**
+         * Gets the downloads going again after a new one or more window. In NIO
+         * mode they are sent from flushPending whenever chat has been written;
+         * otherwise by a writer task that takes the send lock for one frame at a time.
+         */
+        private void pumpDownloads() {
+            if (eventLoop != null) {
+                flushPending();
+                return;
+            }
+            if (pumping || closed) {
+                return;
+            }
+            pumping = true;
+            try {
+                writerExecutor.execute(this::pumpBlocking);
+            } catch (RejectedExecutionException e) {
+                pumping = false;
+            }
+        }
+
+        /**
+         * The next download with something to send, taking them in turn. One that
+         * is done or cancelled leaves the stream table as its last frames go out.
+         * Guarded by sendLock.
+         */
+        private MuxTransfer nextReadyDownload() {
+            for (int i = downloads.size(); i > 0; i--) {
+                MuxTransfer download = downloads.poll();
+                if (download.isFinished()) {
+                    transfers.remove(download.stream);
+                    if (download.batch != null) {
+                        download.batch.active--;
+                        if (!download.cancelled) {
+                            download.batch.sent++;
+                        }
+                        startBatchesLater();
+                    }
+                    return download;
+                }
+                downloads.add(download);
+                if (download.window > 0) {
+                    return download;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * NIO mode: queues the next frame of a download, once the socket has taken
+         * everything else. Returns false if no download can send now.
+         */
+        private boolean queueChunk() {
+            sendLock.lock();
+            try {
+                MuxTransfer download = nextReadyDownload();
+                if (download == null) {
+                    return false;
+                }
+                long before = download.position;
+                pendingWrites.addAll(Arrays.asList(download.next(MuxProtocol.MAX_DATA_LENGTH)));
+                pumpedBytes += download.position - before;
+                return true;
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        /**
+         * Blocking modes: sends download frames until none can send, then stops
+         * until pumpDownloads() is called again. Chat gets the send lock between
+         * frames, and other writers the thread after each quantum.
+         */
+        private void pumpBlocking() {
+            long sent = 0;
+            try {
+                while (sent < TRANSFER_QUANTUM) {
+                    long granted = awaitBandwidth(MuxProtocol.MAX_DATA_LENGTH);
+                    sendLock.lock();
+                    try {
+                        MuxTransfer download = nextReadyDownload();
+                        if (download == null) {
+                            giveBackBandwidth(granted);
+                            pumping = false;
+                            return;
+                        }
+                        long before = download.position;
+                        for (Object write : download.next(granted)) {
+                            writeBlocking(write);
+                        }
+                        giveBackBandwidth(granted - (download.position - before));
+                        sent += download.position - before;
+                    } finally {
+                        sendLock.unlock();
+                    }
+                }
+                writerExecutor.execute(this::pumpBlocking);
+            } catch (IOException | RejectedExecutionException e) {
+                sendLock.lock();
+                try {
+                    pumping = false;
+                } finally {
+                    sendLock.unlock();
+                }
+                if (e instanceof IOException) {
+                    try {
+                        // A frame may have gone out in part, so the stream is out of sync.
+                        clientSocket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void writeBlocking(Object write) throws IOException {
+            if (write instanceof Region) {
+                Region region = (Region) write;
+                do {
+                    region.transferTo(channel, Long.MAX_VALUE);
+                } while (!region.isComplete());
+                return;
+            }
+            ByteBuffer buffer = (ByteBuffer) write;
+            while (buffer.hasRemaining()) {
+                metrics.bytesWritten(channel.write(buffer));
+            }
+        }
+
+        private void closeTransfers() {
+            sendLock.lock();
+            try {
+                for (MuxTransfer transfer : transfers.values()) {
+                    transfer.close();
+                }
+                transfers.clear();
+                downloads.clear();
+                batches.clear();
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        /**
+         * Hands a chat message to this client's outbound queue, in whichever
+         * encoding this connection negotiated. Never blocks the caller; the bytes
+         * are written later by this client's writer.
+         */
+        private void deliver(ChatMessage message) {
+            if (detached) {
+                holdForResume(message);
+                return;
+            }
+            OutboundQueue.Result result =
+                    outbound.offer(mux ? message.muxFrame() : binary ? message.frame() : message.textLine());
+            if (result == OutboundQueue.Result.OVERFLOW) {
+                appendLog("Disconnecting " + (handle != null ? handle : "a client") + ": not reading messages fast enough.");
+                closeConnection();
+            } else if (result == OutboundQueue.Result.QUEUED && outbound.trySchedule()) {
+                if (eventLoop != null) {
+                    eventLoop.execute(this::flushPending);
+                } else {
+                    writerExecutor.execute(this::drainOutbound);
+                }
+            }
+        }
+
+        private void closeConnection() {
+            if (eventLoop != null) {
+                eventLoop.execute(this::close);
+                return;
+            }
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                appendLog("Error closing client socket: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Writer task for the blocking modes. Sends queued messages in batches,
+         * one gathering write per batch, until the queue is empty.
+         */
+        private void drainOutbound() {
+            try {
+                while (true) {
+                    int count = outbound.drainTo(drainBatch);
+                    if (count == 0) {
+                        if (outbound.finishDrain()) {
+                            continue;
+                        }
+                        return;
+                    }
+                    sendLock.lock();
+                    try {
+                        long remaining = 0;
+                        for (int i = 0; i < count; i++) {
+                            remaining += drainBatch[i].remaining();
+                        }
+                        while (remaining > 0) {
+                            long written = channel.write(drainBatch, 0, count);
+                            metrics.bytesWritten(written);
+                            remaining -= written;
+                        }
+                    } finally {
+                        sendLock.unlock();
+                        Arrays.fill(drainBatch, null);
+                    }
+                }
+            } catch (IOException e) {
+                // The reader side notices the broken connection and cleans up.
+                outbound.close();
+            }
+        }
+
+        /**
+         * Writes already encoded bytes: queued in NIO mode, written in place under
+         * the send lock otherwise.
+         */
+        private void writeBuffer(ByteBuffer buffer) {
+            if (mux) {
+                writeFrames(MuxProtocol.header(MuxProtocol.CONTROL, MuxProtocol.DATA, buffer.remaining()), buffer);
+                return;
+            }
+            if (eventLoop != null) {
+                enqueue(buffer);
+                return;
+            }
+            sendLock.lock();
+            try {
+                while (buffer.hasRemaining()) {
+                    metrics.bytesWritten(channel.write(buffer));
+                }
+            } catch (IOException e) {
+                // The reader side notices the broken connection and cleans up.
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        /**
+         * Streams part of a file to the client after a "/file" header line. The bytes
+         * go from the page cache straight to the socket with transferTo (sendfile on
+         * Linux) and are never copied onto the heap, unless the client negotiated
+         * compression and the data turns out to compress.
+         */
+        private void sendFile(File file, long offset, long maxLength) throws IOException {
+            ByteBuffer cached = cachedContents(file.getName());
+            if (cached != null) {
+                long length = Math.min(maxLength, Math.max(0, cached.capacity() - offset));
+                ByteBuffer contents = slice(cached, Math.min(offset, cached.capacity()), length);
+                // Compressing goes through the file; the cache only saves reading it.
+                if (!compress || !worthCompressing(contents)) {
+                    sendRegion(file.getName(), offset, length, false, new BufferRegion(contents, true));
+                    return;
+                }
+            }
+
+            FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            long length = Math.min(maxLength, Math.max(0, fileChannel.size() - offset));
+            boolean deflate = compress && worthCompressing(fileChannel, offset, length);
+            Region region = deflate
+                    ? new DeflatedRegion(fileChannel, offset, length, file.getName() + " to " + handle)
+                    : new FileRegion(fileChannel, offset, length);
+            sendRegion(file.getName(), offset, length, deflate, region);
+        }
+
+        /**
+         * Sends the header for a file body and then the body itself.
+         */
+        private void sendRegion(String filename, long offset, long length, boolean deflate, Region region)
+                throws IOException {
+            String header = "/file " + filename + " " + offset + " " + length
+                    + (deflate ? " " + TransferCompression.ENCODING : "");
+
+            if (eventLoop != null) {
+                // Header and body are queued together: flushing the header on its
+                // own would also drain waiting chat messages in ahead of the body.
+                enqueue(headerBytes(header, filename, offset, length, deflate), region);
+                return;
+            }
+
+            sendLock.lock();
+            try {
+                sendHeader(header, filename, offset, length, deflate);
+                // The channel blocks, so each slice is written in full. Yielding
+                // between slices lets other clients' writers in.
+                do {
+                    long granted = region.isComplete() ? 0 : awaitBandwidth(TRANSFER_QUANTUM);
+                    giveBackBandwidth(granted - region.transferTo(channel, granted));
+                    Thread.yield();
+                } while (!region.isComplete());
+            } catch (IOException e) {
+                region.close();
+                // The client is expecting the rest of the file, so the connection
+                // cannot be reused after a partial send.
+                clientSocket.close();
+                throw e;
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        /**
+         * Compresses the first block of the range as a sample (see TransferCompression).
+         */
+        private boolean worthCompressing(FileChannel file, long offset, long length) throws IOException {
+            if (length == 0) {
+                return false;
+            }
+            ByteBuffer sample = ByteBuffer.allocate(TransferCompression.blockLength(length));
+            while (sample.hasRemaining()) {
+                if (file.read(sample, offset + sample.position()) < 0) {
+                    break;
+                }
+            }
+            return TransferCompression.worthCompressing(sample.flip());
+        }
+
+        private boolean worthCompressing(ByteBuffer contents) {
+            if (!contents.hasRemaining()) {
+                return false;
+            }
+            ByteBuffer sample = contents.duplicate();
+            sample.limit(TransferCompression.blockLength(contents.remaining()));
+            return TransferCompression.worthCompressing(sample);
+        }
+
+        private ByteBuffer headerBytes(String header, String filename, long offset, long length, boolean deflate) {
+            if (binary) {
+                byte opcode = deflate ? WireProtocol.OP_FILE_DEFLATE : WireProtocol.OP_FILE;
+                return WireProtocol.fileFrame(opcode, filename, offset, length);
+            }
+            String tag = replyTag != null ? replyTag : "";
+            return ByteBuffer.wrap((tag + header + System.lineSeparator()).getBytes(Charset.defaultCharset()));
+        }
+
+        private void sendHeader(String header, String filename, long offset, long length, boolean deflate) {
+            if (binary) {
+                byte opcode = deflate ? WireProtocol.OP_FILE_DEFLATE : WireProtocol.OP_FILE;
+                writeBuffer(WireProtocol.fileFrame(opcode, filename, offset, length));
+            } else {
+                out.println(header);
+            }
+        }
+
+        private void finishUpload() {
+            Upload finished = upload;
+            upload = null;
+            replyWhenDone(commitUpload(finished));
+        }
 
-    public void start() {
-        new Thread(() -> {
-            while (running) {
+        /**
+         * Hands a completely received upload to the file store once the disk
+         * threads have written all of it, and completes with the reply for the
+         * client. The store only sees it after it has been forced to disk with the
+         * rest of its group commit (see DiskIo).
+         */
+        private CompletableFuture<String> commitUpload(Upload finished) {
+            finished.finishDecoding();
+            if (finished.file == null) {
+                return CompletableFuture.completedFuture(finished.rejection);
+            }
+            if (finished.patch != null) {
+                return finished.flushed().thenCompose(ignored -> commitPatch(finished));
+            }
+            String owner = handle;
+            String name = finished.target.getFileName().toString();
+            return finished.flushed()
+                    .thenCompose(ignored -> diskIo.commit(finished.file, fileStore.getDirectory(), () -> {
+                        fileStore.commit(name, finished.temp, finished.hasher == null ? null : finished.hasher.finish());
+                        return null;
+                    }))
+                    .handle((ignored, e) -> {
+                        if (e != null) {
+                            finished.discard();
+                            return "Error: Unable to store file. " + causeMessage(e);
+                        }
+                        fileCache.invalidate(name);
+                        fileIndex.update(finished.target, fileStore.getHash(name));
+                        metrics.record(ServerMetrics.UPLOAD, System.nanoTime() - finished.started);
+                        return owner + "<" + new Date() + ">: Uploaded " + name;
+                    });
+        }
+
+        /**
+         * Rebuilds the file from a /patch upload's delta and the stored version,
+         * next to it, and swaps it in once its hash shows it came out as the client
+         * has it. The stored file is never written in place: readers may have it
+         * open, and under dedup its blob may be shared by other names.
+         */
+        private CompletableFuture<String> commitPatch(Upload finished) {
+            String owner = handle;
+            String name = finished.target.getFileName().toString();
+            Path rebuilt = fileStore.newTempPath(name);
+            return diskIo.submit(() -> {
+                finished.file.close();
+                Path base = Files.isRegularFile(finished.target) ? finished.target : null;
                 try {
-                    Socket clientSocket = serverSocket.accept();
-                    ClientHandler clientHandler = new ClientHandler(clientSocket);
-                    new Thread(clientHandler).start();
+                    return DeltaSync.apply(finished.temp, base, finished.patch.blockSize, finished.patch.size,
+                            rebuilt);
                 } catch (IOException e) {
-                    if (running) {
-                        appendLog("Error accepting client connection: " + e.getMessage());
+                    // A delta worked out against a version since replaced need
+                    // not fit the current one at all.
+                    appendLog("Rejected sync of " + name + " from " + owner + ": " + e.getMessage());
+                    return null;
+                }
+            }).thenCompose(result -> {
+                if (result == null || !result.hash.equals(finished.patch.hash)) {
+                    return CompletableFuture.completedFuture(
+                            "Error: The file changed on the server during the sync, please try again.");
+                }
+                return diskIo.commit(rebuilt, fileStore.getDirectory(), () -> {
+                    fileStore.replace(name, rebuilt, result.hash);
+                    return null;
+                }).thenApply(ignored -> {
+                    fileCache.invalidate(name);
+                    fileIndex.update(finished.target, fileStore.getHash(name));
+                    metrics.record(ServerMetrics.UPLOAD, System.nanoTime() - finished.started);
+                    return owner + "<" + new Date() + ">: Synced " + name + ", " + finished.size + " of "
+                            + finished.patch.size + " bytes were sent";
+                });
+            }).handle((reply, e) -> {
+                try {
+                    Files.deleteIfExists(finished.temp);
+                    Files.deleteIfExists(rebuilt);
+                } catch (IOException cleanup) {
+                    appendLog("Error removing sync files: " + cleanup.getMessage());
+                }
+                return e != null ? "Error: Unable to store file. " + causeMessage(e) : reply;
+            });
+        }
+
+        /**
+         * Queues writes that must go out back to back, such as a header and its
+         * body, in one step so nothing from another thread lands between them.
+         */
+        private void enqueue(Object... writes) {
+            if (eventLoop.inEventLoop()) {
+                pendingWrites.addAll(Arrays.asList(writes));
+                flushPending();
+            } else {
+                eventLoop.execute(() -> {
+                    pendingWrites.addAll(Arrays.asList(writes));
+                    flushPending();
+                });
+            }
+        }
+
+        /**
+         * Writes complete frames back to back: queued in NIO mode, written in
+         * place under the send lock otherwise.
+         */
+        private void writeFrames(ByteBuffer... frames) {
+            if (eventLoop != null) {
+                enqueue((Object[]) frames);
+                return;
+            }
+            sendLock.lock();
+            try {
+                long remaining = 0;
+                for (ByteBuffer frame : frames) {
+                    remaining += frame.remaining();
+                }
+                while (remaining > 0) {
+                    long written = channel.write(frames);
+                    metrics.bytesWritten(written);
+                    remaining -= written;
+                }
+            } catch (IOException e) {
+                // The reader side notices the broken connection and cleans up.
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        /**
+         * Writes as much queued output as the socket accepts. Anything left over
+         * waits for OP_WRITE instead of blocking the event loop.
+         */
+        private void flushPending() {
+            if (closed) {
+                return;
+            }
+            try {
+                while (true) {
+                    int state = writePending();
+                    if (state == SOCKET_FULL) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    if (state == PAUSED) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        return;
                     }
+                    // Only take more from the outbound queue once the socket has
+                    // caught up, so a slow reader backs up into the bounded queue.
+                    int count = outbound.drainTo(drainBatch);
+                    if (count == 0) {
+                        if (outbound.finishDrain()) {
+                            continue;
+                        }
+                        // Download data only goes out once chat has.
+                        if (mux && pumpedBytes >= TRANSFER_QUANTUM) {
+                            pumpedBytes = 0;
+                            eventLoop.yieldBulk(this);
+                        } else if (mux && queueChunk()) {
+                            continue;
+                        }
+                        break;
+                    }
+                    metrics.bytesWritten(channel.write(drainBatch, 0, count));
+                    for (int i = 0; i < count; i++) {
+                        if (drainBatch[i].hasRemaining()) {
+                            pendingWrites.add(drainBatch[i]);
+                        }
+                    }
+                    Arrays.fill(drainBatch, null);
                 }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                close();
             }
-        }).start();
-    }
+        }
 
-    public void stop() {
-        running = false;
-        try {
-            synchronized (clients) {
-                for (ClientHandler handler : clients.values()) {
-                    try {
-                        handler.getClientSocket().close(); 
-                    } catch (IOException e) {
-                        appendLog("Error closing client socket: " + e.getMessage());
+        /**
+         * Writes queued replies and file regions. Returns WRITTEN once they are
+         * all sent, SOCKET_FULL if the socket filled up first, or PAUSED if a file
+         * used up its quantum or its bandwidth; the event loop or the timer
+         * carries on with it later.
+         */
+        private int writePending() throws IOException {
+            Object write;
+            while ((write = pendingWrites.peek()) != null) {
+                if (write instanceof Region) {
+                    Region region = (Region) write;
+                    long granted = region.isComplete() ? 0 : takeBandwidth(TRANSFER_QUANTUM);
+                    if (granted == 0 && !region.isComplete()) {
+                        if (!writeThrottled) {
+                            writeThrottled = true;
+                            resumeLater(TRANSFER_QUANTUM, () -> {
+                                writeThrottled = false;
+                                flushPending();
+                            });
+                        }
+                        return PAUSED;
+                    }
+                    long written = region.transferTo(channel, granted);
+                    giveBackBandwidth(granted - written);
+                    if (!region.isComplete()) {
+                        if (written < granted) {
+                            return SOCKET_FULL;
+                        }
+                        eventLoop.yieldBulk(this);
+                        return PAUSED;
+                    }
+                } else {
+                    ByteBuffer buffer = (ByteBuffer) write;
+                    metrics.bytesWritten(channel.write(buffer));
+                    if (buffer.hasRemaining()) {
+                        return SOCKET_FULL;
                     }
                 }
-                clients.clear(); 
+                pendingWrites.poll();
             }
-            appendLog("Server stopped.");
-        } catch (Exception e) {
-            appendLog("Error stopping server: " + e.getMessage());
+            return WRITTEN;
         }
-    }
 
-    private void appendLog(String message) {
-        if (logArea != null) {
-            logArea.append(message + "\n");
+        private TokenBucket transferBandwidth() {
+            ClientHandler owner = streamOwner;
+            return owner != null ? owner.bandwidth : bandwidth;
         }
-    }
-    
-    private class ClientHandler implements Runnable {
-        private Socket clientSocket;
-        private BufferedReader in;
-        private PrintWriter out;
-        private String handle;
 
-        public ClientHandler(Socket socket) throws IOException {
-            this.clientSocket = socket;
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
+        private long takeBandwidth(long wanted) {
+            return TokenBucket.take(transferBandwidth(), serverBandwidth, wanted);
         }
 
-        public Socket getClientSocket() {
-            return clientSocket;
+        private void giveBackBandwidth(long unused) {
+            TokenBucket.giveBack(transferBandwidth(), serverBandwidth, unused);
         }
 
-        @Override
-        public void run() {
+        /**
+         * Waits until some of wanted may be transferred, in the blocking modes.
+         */
+        private long awaitBandwidth(long wanted) throws IOException {
+            long granted;
+            while ((granted = takeBandwidth(wanted)) == 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(bandwidthDelay(wanted));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for bandwidth.");
+                }
+            }
+            return granted;
+        }
+
+        /**
+         * Bandwidth for reading upload data. In NIO mode this does not wait:
+         * if none is left it stops reading from the socket, which pushes back on
+         * the client, until the limit allows more.
+         */
+        private long acquireUploadBandwidth(long wanted) throws IOException {
+            if (eventLoop == null) {
+                return awaitBandwidth(wanted);
+            }
+            long granted = takeBandwidth(wanted);
+            if (granted == 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                resumeLater(wanted, () -> {
+                    if (!closed && key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    }
+                });
+            }
+            return granted;
+        }
+
+        /**
+         * Runs task on the event loop once enough bandwidth has built up for a
+         * worthwhile piece of wanted.
+         */
+        private void resumeLater(long wanted, Runnable task) {
             try {
-                String message;
-                while ((message = in.readLine()) != null) {
-                    processCommand(message);
+                timer.schedule(() -> eventLoop.execute(task), bandwidthDelay(wanted), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // The server is stopping.
+            }
+        }
+
+        private long bandwidthDelay(long wanted) {
+            return Math.max(MIN_THROTTLE_NANOS,
+                    TokenBucket.delayNanos(transferBandwidth(), serverBandwidth, Math.min(wanted, MIN_TRANSFER_GRANT)));
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            if (upload != null) {
+                upload.abort();
+                upload = null;
+            }
+            closeTransfers();
+            for (Object write : pendingWrites) {
+                if (write instanceof Region) {
+                    ((Region) write).close();
                 }
-            } catch (IOException e) {
-                if (handle != null) {
-                    appendLog(handle + " has disconnected from the server.");
+            }
+            pendingWrites.clear();
+            release();
+        }
+
+        /**
+         * Lets the command handlers keep using a PrintWriter whatever the I/O mode
+         * and protocol. Each flush (println with autoflush) becomes one write, and
+         * on binary connections one OP_TEXT frame per line.
+         */
+        private class ChannelWriter extends Writer {
+            private final StringBuilder buffer = new StringBuilder();
+
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+                buffer.append(cbuf, off, len);
+            }
+
+            @Override
+            public void flush() {
+                if (buffer.length() == 0) {
+                    return;
+                }
+                String text = buffer.toString();
+                buffer.setLength(0);
+                if (replyTag != null) {
+                    text = tagLines(text);
+                }
+                ByteBuffer bytes;
+                if (binary) {
+                    bytes = textFrames(text);
                 } else {
-                    appendLog("A client has disconnected from the server.");
+                    bytes = ByteBuffer.wrap(text.getBytes(Charset.defaultCharset()));
+                }
+                writeBuffer(bytes);
+            }
+
+            /**
+             * Encodes each buffered line as its own OP_TEXT frame, all in one buffer
+             * so a multi-line reply still goes out in a single write.
+             */
+            private ByteBuffer textFrames(String text) {
+                List<ByteBuffer> frames = new ArrayList<>();
+                int size = 0;
+                int start = 0;
+                while (start < text.length()) {
+                    int end = text.indexOf('\n', start);
+                    int next = end < 0 ? text.length() : end + 1;
+                    if (end < 0) {
+                        end = text.length();
+                    }
+                    if (end > start && text.charAt(end - 1) == '\r') {
+                        end--;
+                    }
+                    ByteBuffer frame = WireProtocol.stringFrame(WireProtocol.OP_TEXT, text.substring(start, end));
+                    size += frame.remaining();
+                    frames.add(frame);
+                    start = next;
+                }
+                if (frames.size() == 1) {
+                    return frames.get(0);
+                }
+                ByteBuffer bytes = ByteBuffer.allocate(size);
+                for (ByteBuffer frame : frames) {
+                    bytes.put(frame);
+                }
+                return bytes.flip();
+            }
+
+            private String tagLines(String text) {
+                StringBuilder tagged = new StringBuilder(text.length() + replyTag.length());
+                int start = 0;
+                while (start < text.length()) {
+                    int next = text.indexOf('\n', start);
+                    next = next < 0 ? text.length() : next + 1;
+                    tagged.append(replyTag).append(text, start, next);
+                    start = next;
+                }
+                return tagged.toString();
+            }
+
+            @Override
+            public void close() {
+                flush();
+            }
+        }
+
+        /**
+         * A mux transfer stream: an upload being received, or a download sent a
+         * DATA frame at a time as the client's window allows. Guarded by sendLock.
+         */
+        private class MuxTransfer {
+            private final int stream;
+            private final Upload upload;
+            // Upload bytes received and not yet acknowledged, and whether a
+            // WINDOW for them is waiting on the bandwidth limit.
+            private long owed;
+            private boolean crediting;
+            // Set when the rest of owed is waiting on the disk threads.
+            private volatile boolean awaitingDisk;
+            private final String filename;
+            // Where a download's data comes from: the file, or its cached contents.
+            private final FileChannel file;
+            private final ByteBuffer cached;
+            private final long started = System.nanoTime();
+            private final long length;
+            private final long end;
+            private long position;
+            private long window = MuxProtocol.INITIAL_WINDOW;
+            private boolean cancelled;
+            // The /mget this download is part of, if any.
+            private MgetBatch batch;
+
+            MuxTransfer(int stream, Upload upload) {
+                this.stream = stream;
+                this.upload = upload;
+                this.filename = null;
+                this.file = null;
+                this.cached = null;
+                this.length = 0;
+                this.end = 0;
+            }
+
+            MuxTransfer(int stream, String filename, FileChannel file, ByteBuffer cached, long offset, long length) {
+                this.stream = stream;
+                this.upload = null;
+                this.filename = filename;
+                this.file = file;
+                this.cached = cached;
+                this.position = offset;
+                this.length = length;
+                this.end = offset + length;
+            }
+
+            boolean isFinished() {
+                return cancelled || position == end;
+            }
+
+            /**
+             * The writes for this download's next frame, at most limit bytes of
+             * the file. Once it is done, the closing reply and END instead.
+             */
+            Object[] next(long limit) {
+                if (isFinished()) {
+                    List<Object> writes = new ArrayList<>(3);
+                    if (!cancelled) {
+                        metrics.downloadFinished(started, length, length);
+                        writes.add(MuxProtocol.frame(stream, MuxProtocol.DATA,
+                                WireProtocol.stringFrame(WireProtocol.OP_TEXT, "File received from Server: " + filename)));
+                    }
+                    writes.add(MuxProtocol.endFrame(stream));
+                    if (file != null) {
+                        // Queued behind any chunks still waiting, so the file is
+                        // closed only once they are written.
+                        writes.add(new ChunkRegion(file, position, 0, true));
+                    }
+                    return writes.toArray();
+                }
+                int count = (int) Math.min(Math.min(limit, window), end - position);
+                Region chunk = file != null
+                        ? new ChunkRegion(file, position, count, false)
+                        : new BufferRegion(slice(cached, position, count), false);
+                position += count;
+                window -= count;
+                return new Object[] {MuxProtocol.header(stream, MuxProtocol.DATA, count), chunk};
+            }
+
+            void close() {
+                if (upload != null) {
+                    upload.abort();
+                    return;
+                }
+                if (file == null) {
+                    return;
                 }
-            } finally {
                 try {
-                    if (handle != null) {
-                        clients.remove(handle);
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * An /mget on a mux connection: the files still to be opened, and how many
+         * are being or have been sent. Guarded by sendLock.
+         */
+        private class MgetBatch {
+            private final String tag;
+            private final String pattern;
+            private final ArrayDeque<String> names;
+            private int active;
+            private int sent;
+
+            MgetBatch(String tag, String pattern, ArrayDeque<String> names) {
+                this.tag = tag;
+                this.pattern = pattern;
+                this.names = names;
+            }
+        }
+
+        /**
+         * An incoming file body of a known size. Bytes are written to a hidden temp
+         * file in server_files and handed to the file store once all have arrived,
+         * so a half-received upload is never visible under its real name. When the
+         * upload was rejected up front, the body is read and discarded to keep the
+         * connection in sync.
+         *
+         * The writes themselves run on the disk threads: each piece of the body is
+         * handed over in a buffer of its own, and the connection goes on reading.
+         * isBacklogged() tells when too much is still waiting for the disk.
+         */
+        private class Upload {
+            private final Path target;
+            private final Path temp;
+            private final AsynchronousFileChannel file;
+            private final ContentHash.Builder hasher;
+            private final TransferCompression.Decoder decoder;
+            private final String rejection;
+            /** Set if the body is a delta for /patch rather than the file itself. */
+            private final Patch patch;
+            private final long size;
+            private final long started = System.nanoTime();
+            private long remaining;
+            // Where in the temp file the next piece goes.
+            private long position;
+            // Buffers whose writes are done, to be filled again.
+            private final Queue<ByteBuffer> spare = new ConcurrentLinkedQueue<>();
+            // Guarded by writeLock: bytes handed to the disk threads and not
+            // written yet, the first write that failed, and a flushed() still
+            // waiting. A lock rather than a monitor, so a virtual thread waiting
+            // in awaitWritten() does not pin its carrier.
+            private final ReentrantLock writeLock = new ReentrantLock();
+            private final Condition drained = writeLock.newCondition();
+            private long unwritten;
+            private IOException failure;
+            private CompletableFuture<Void> flushed;
+            // Run on a disk thread after each write completes.
+            private volatile Runnable onWritten;
+
+            Upload(Path target, long size, boolean deflated, Patch patch) throws IOException {
+                this.target = target;
+                this.temp = fileStore.newTempPath(target.getFileName().toString());
+                this.file = diskIo.create(temp);
+                // Hashing as the bytes stream in means the store does not have to
+                // read the file back before it can deduplicate it. A delta is
+                // hashed when it is applied instead.
+                this.hasher = fileStore.isContentAddressed() && patch == null ? new ContentHash.Builder() : null;
+                this.decoder = deflated ? TransferCompression.Decoder.acquire(size, false) : null;
+                this.rejection = null;
+                this.patch = patch;
+                this.size = size;
+                this.remaining = size;
+            }
+
+            Upload(String rejection, long size, boolean deflated) {
+                this.target = null;
+                this.temp = null;
+                this.file = null;
+                this.hasher = null;
+                this.decoder = deflated ? TransferCompression.Decoder.acquire(size, true) : null;
+                this.rejection = rejection;
+                this.patch = null;
+                this.size = size;
+                this.remaining = size;
+            }
+
+            boolean isComplete() {
+                return decoder != null ? decoder.isComplete() : remaining == 0;
+            }
+
+            /**
+             * A compressed body's length on the wire is not known up front, so it
+             * is only ever read through the connection's buffer; see consume().
+             */
+            boolean isDeflated() {
+                return decoder != null;
+            }
+
+            void consume(ByteBuffer source) throws IOException {
+                if (decoder != null) {
+                    decoder.feed(source, this::write);
+                    return;
+                }
+                int count = (int) Math.min(remaining, source.remaining());
+                ByteBuffer slice = source.slice();
+                slice.limit(count);
+                write(slice);
+                source.position(source.position() + count);
+            }
+
+            /**
+             * Reads the next chunk of the body, at most limit bytes, straight from
+             * the socket into a buffer that then goes to the disk threads as it is.
+             * Returns how many bytes were read, or -1 if the client went away before
+             * sending all of it.
+             */
+            int readFrom(SocketChannel source, long limit) throws IOException {
+                ByteBuffer buffer = takeBuffer(remaining);
+                buffer.limit((int) Math.min(Math.min(buffer.capacity(), remaining), limit));
+                int read = source.read(buffer);
+                if (read <= 0) {
+                    spare.add(buffer.clear());
+                    return read;
+                }
+                metrics.bytesRead(read);
+                accept(buffer.flip());
+                return read;
+            }
+
+            /**
+             * Takes bytes the caller keeps, such as the connection's read buffer,
+             * by copying them.
+             */
+            private void write(ByteBuffer bytes) throws IOException {
+                while (bytes.hasRemaining()) {
+                    ByteBuffer copy = takeBuffer(remaining);
+                    ByteBuffer piece = bytes.slice();
+                    piece.limit(Math.min(piece.remaining(), copy.remaining()));
+                    copy.put(piece);
+                    bytes.position(bytes.position() + piece.limit());
+                    accept(copy.flip());
+                }
+            }
+
+            /**
+             * Takes a buffer of body bytes over and starts writing it out.
+             */
+            private void accept(ByteBuffer buffer) throws IOException {
+                int count = buffer.remaining();
+                metrics.fileBytesReceived(count);
+                remaining -= count;
+                if (file == null) {
+                    spare.add(buffer.clear());
+                    return;
+                }
+                if (hasher != null) {
+                    hasher.update(buffer.duplicate());
+                }
+                writeLock.lock();
+                try {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    unwritten += count;
+                } finally {
+                    writeLock.unlock();
+                }
+                long at = position;
+                position += count;
+                file.write(buffer, at, null, new CompletionHandler<Integer, Void>() {
+                    @Override
+                    public void completed(Integer written, Void attachment) {
+                        if (buffer.hasRemaining()) {
+                            file.write(buffer, at + buffer.position(), null, this);
+                            return;
+                        }
+                        written(buffer, count, null);
+                    }
+
+                    @Override
+                    public void failed(Throwable e, Void attachment) {
+                        written(buffer, count, e instanceof IOException ? (IOException) e : new IOException(e));
+                    }
+                });
+            }
+
+            private void written(ByteBuffer buffer, int count, IOException error) {
+                spare.add(buffer.clear());
+                CompletableFuture<Void> done = null;
+                IOException failed;
+                writeLock.lock();
+                try {
+                    unwritten -= count;
+                    if (error != null && failure == null) {
+                        failure = error;
+                    }
+                    failed = failure;
+                    if (unwritten == 0 && flushed != null) {
+                        done = flushed;
+                        flushed = null;
+                    }
+                    drained.signalAll();
+                } finally {
+                    writeLock.unlock();
+                }
+                if (done != null) {
+                    if (failed != null) {
+                        done.completeExceptionally(failed);
+                    } else {
+                        done.complete(null);
+                    }
+                }
+                Runnable listener = onWritten;
+                if (listener != null) {
+                    listener.run();
+                }
+            }
+
+            /**
+             * A buffer for up to wanted bytes: a spare one if there is one, so an
+             * upload never holds more than its backlog allows.
+             */
+            private ByteBuffer takeBuffer(long wanted) {
+                ByteBuffer buffer = spare.poll();
+                if (buffer != null) {
+                    return buffer;
+                }
+                return ByteBuffer.allocateDirect((int) Math.max(1, Math.min(TRANSFER_BUFFER_SIZE, wanted)));
+            }
+
+            long unwrittenBytes() {
+                writeLock.lock();
+                try {
+                    return unwritten;
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+
+            boolean isBacklogged() {
+                return unwrittenBytes() >= MAX_UNWRITTEN_BYTES;
+            }
+
+            /**
+             * Waits until the upload is no longer backlogged. For blocking handlers.
+             */
+            void awaitWritten() throws IOException {
+                writeLock.lock();
+                try {
+                    while (unwritten >= MAX_UNWRITTEN_BYTES) {
+                        drained.await();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the disk.");
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+
+            /**
+             * Completes once every byte handed over so far has been written, or
+             * failed to be.
+             */
+            CompletableFuture<Void> flushed() {
+                writeLock.lock();
+                try {
+                    if (unwritten > 0) {
+                        if (flushed == null) {
+                            flushed = new CompletableFuture<>();
+                        }
+                        return flushed;
+                    }
+                    CompletableFuture<Void> done = new CompletableFuture<>();
+                    if (failure != null) {
+                        done.completeExceptionally(failure);
+                    } else {
+                        done.complete(null);
+                    }
+                    return done;
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+
+            /**
+             * Returns the decoder to its pool, logging how the compression did.
+             */
+            void finishDecoding() {
+                if (decoder != null) {
+                    if (file != null && decoder.isComplete()) {
+                        appendLog("Received " + target.getFileName() + " from " + handle + " compressed: "
+                                + decoder.getStats());
                     }
-                    clientSocket.close();
+                    decoder.release();
+                }
+            }
+
+            void abort() {
+                finishDecoding();
+                discard();
+            }
+
+            /**
+             * Closes and deletes the temp file. Writes still running fail.
+             */
+            void discard() {
+                if (file == null) {
+                    return;
+                }
+                try {
+                    file.close();
+                    Files.deleteIfExists(temp);
                 } catch (IOException e) {
-                    appendLog("Error closing client socket: " + e.getMessage());
+                    appendLog("Error removing partial upload: " + e.getMessage());
                 }
             }
         }
 
-        private void processCommand(String message) {
+        /**
+         * Runs one command line. A line may start with a correlation tag, "#<id> ",
+         * which is then put in front of every line of the reply so a client with
+         * many commands outstanding can tell which reply is whose.
+         */
+        void processCommand(String message) {
+            if (message.startsWith("#")) {
+                int space = message.indexOf(' ');
+                if (space < 2 || space > MAX_TAG_LENGTH) {
+                    out.println("Error: Invalid tag.");
+                    commandFinished("#");
+                    return;
+                }
+                replyTag = message.substring(0, space + 1);
+                message = message.substring(space + 1);
+            }
             String[] parts = message.split(" ");
             String command = parts[0];
+            try {
+                dispatch(command, parts);
+            } finally {
+                replyTag = null;
+                commandFinished(command);
+            }
+        }
+
+        /**
+         * Records how long the command that just finished took. One command's end
+         * is the next one's start, so each command in a read costs one clock read.
+         */
+        private void commandFinished(String command) {
+            long now = System.nanoTime();
+            metrics.record(command, now - commandStart);
+            commandStart = now;
+        }
+
+        private void dispatch(String command, String[] parts) {
             switch (command) {
                 case "/join":
                     handleJoin(parts);
@@ -134,11 +3137,29 @@ public class Server {
                     handleStore(parts);
                     break;
                 case "/dir":
-                    handleDir();
+                    handleDir(parts);
                     break;
                 case "/get":
                     handleGet(parts);
                     break;
+                case "/mget":
+                    handleMget(parts);
+                    break;
+                case "/sums":
+                    handleSums(parts);
+                    break;
+                case "/signature":
+                    handleSignature(parts);
+                    break;
+                case "/patch":
+                    handlePatch(parts);
+                    break;
+                case "/stat":
+                    handleStat(parts);
+                    break;
+                case "/stream":
+                    handleStream(parts);
+                    break;
                 case "/broadcast":
                     handleBroadcast(parts);
                     break;
@@ -148,12 +3169,114 @@ public class Server {
                 case "/?":
                     handleHelp();
                     break;
+                case "/protocol":
+                    handleProtocol(parts);
+                    break;
+                case "/compress":
+                    handleCompress(parts);
+                    break;
+                case "/stats":
+                    handleStats();
+                    break;
+                case "/session":
+                    handleSession();
+                    break;
+                case "/resume":
+                    handleResume(parts);
+                    break;
                 default:
                     out.println("Error: Command not found.");
                     break;
             }
         }
 
+        /**
+         * Replies with the server's metrics (see ServerMetrics) in one write.
+         */
+        private void handleStats() {
+            out.print(metrics.getSnapshot());
+            out.flush();
+        }
+
+        /**
+         * Lets file bodies on this connection be compressed (see TransferCompression).
+         */
+        private void handleCompress(String[] parts) {
+            if (parts.length == 2 && parts[1].equals(TransferCompression.ENCODING)) {
+                out.println(TransferCompression.ACCEPTED);
+                compress = true;
+            } else {
+                out.println("Error: Unsupported compression.");
+            }
+        }
+
+        /**
+         * Switches the connection to binary frames (see WireProtocol), or to mux
+         * frames (see MuxProtocol) if it is still on text. The reply is still a
+         * text line; everything after it is framed.
+         */
+        private void handleProtocol(String[] parts) {
+            if (parts.length == 3 && parts[1].equals("binary") && parts[2].equals(String.valueOf(WireProtocol.VERSION))) {
+                out.println(WireProtocol.ACCEPTED);
+                binary = true;
+            } else if (parts.length == 3 && parts[1].equals("mux") && parts[2].equals(String.valueOf(MuxProtocol.VERSION))
+                    && !binary) {
+                // Accepted in the protocol the client asked in.
+                out.println(MuxProtocol.ACCEPTED);
+                binary = true;
+                mux = true;
+            } else {
+                out.println("Error: Unsupported protocol.");
+            }
+        }
+
+        /**
+         * /session gives a registered client a token to get its handle back with
+         * after a dropped connection: "/session <token> <grace seconds>".
+         */
+        private void handleSession() {
+            if (handle == null) {
+                out.println("Error: You must register before using this command.");
+                return;
+            }
+            if (sessionToken == null) {
+                sessionToken = newSessionToken();
+                sessions.put(sessionToken, this);
+            }
+            out.println("/session " + sessionToken + " " + sessionGraceMillis / 1000);
+        }
+
+        /**
+         * /resume <handle> <token> registers this connection under a handle whose
+         * previous connection dropped less than the grace period ago, and then
+         * delivers whatever was sent to it meanwhile.
+         */
+        private void handleResume(String[] parts) {
+            if (parts.length != 3) {
+                out.println("Error: Command parameters do not match or is not allowed.");
+                return;
+            }
+            ClientHandler previous = sessions.get(parts[2]);
+            if (handle != null || previous == null || previous == this || !parts[1].equals(previous.handle)) {
+                out.println(SESSION_EXPIRED);
+                return;
+            }
+            // Replayed messages are written by the writer task, which needs
+            // sendLock, or in NIO mode by this event loop once this returns, so
+            // the welcome still goes out ahead of them.
+            sendLock.lock();
+            try {
+                if (!previous.takeOver(this)) {
+                    out.println(SESSION_EXPIRED);
+                    return;
+                }
+                out.println("Welcome " + handle + "!");
+            } finally {
+                sendLock.unlock();
+            }
+            appendLog(handle + " resumed its session.");
+        }
+
         private void handleJoin(String[] parts) {
             if (parts.length == 3) {
                 out.println("Connection to the File Exchange Server is successful!");
@@ -163,6 +3286,7 @@ public class Server {
         }
 
         private void handleLeave() {
+            leaving = true;
             out.println("Connection closed. Thank you!");
             try {
                 clientSocket.close();
@@ -173,25 +3297,81 @@ public class Server {
 
         private void handleRegister(String[] parts) {
             if (parts.length == 2) {
-                handle = parts[1];
-                if (clients.containsKey(handle)) {
+                String name = parts[1];
+                // Only take the handle once the claim succeeds; otherwise this
+                // connection would release the real owner's entry when it closes.
+                if (!clients.claim(name, this)) {
                     out.println("Error: Registration failed. Handle or alias already exists.");
-                } else {
-                    clients.put(handle, this);
-                    out.println("Welcome " + handle + "!");
-                    File folder = new File(handle + "_files");
-                    folder.mkdirs();
+                    return;
                 }
+                // Then on the other nodes, if any. Their answers take a round trip
+                // on the peer links, so the rest waits for them without holding up
+                // the thread; until then unicasts to name that would overtake its
+                // offline mailbox are queued behind it (see sendUnicast()).
+                claiming = name;
+                whenDone(federation.claim(name), true, (granted, e) -> finishRegister(name, Boolean.TRUE.equals(granted)));
             } else {
                 out.println("Error: Command parameters do not match or is not allowed.");
             }
         }
 
+        private void finishRegister(String name, boolean granted) {
+            // Held until the offline mailbox is drained, so unicasts sent
+            // meanwhile queue up behind the stored ones.
+            ReentrantLock offlineLock = offline.lockFor(name);
+            offlineLock.lock();
+            try {
+                claiming = null;
+                if (!granted || closed) {
+                    clients.release(name, this);
+                    if (granted) {
+                        federation.released(name);
+                    } else {
+                        out.println("Error: Registration failed. Handle or alias already exists.");
+                    }
+                    return;
+                }
+                if (handle != null && clients.release(handle, this)) {
+                    federation.released(handle);
+                }
+                handle = name;
+                handleBytes = handle.getBytes(StandardCharsets.UTF_8);
+                bandwidth.setRate(bandwidthLimitFor(handle));
+                out.println("Welcome " + handle + "!");
+                File folder = new File(handle + "_files");
+                folder.mkdirs();
+                offline.register(handle);
+                deliverOffline();
+            } finally {
+                offlineLock.unlock();
+            }
+        }
+
+        /**
+         * Delivers the unicasts queued while this handle was offline, with its
+         * mailbox lock held.
+         */
+        private void deliverOffline() {
+            try {
+                int count = offline.drain(handle, (sender, body) -> deliver(new ChatMessage(
+                        WireProtocol.OP_UNICAST_FROM, new String(sender, StandardCharsets.UTF_8), sender, body)));
+                if (count > 0) {
+                    appendLog("Delivered " + count + " offline messages to " + handle + ".");
+                }
+            } catch (IOException e) {
+                appendLog("Error reading the offline mailbox of " + handle + ": " + e.getMessage());
+            }
+        }
+
         private void handleStore(String[] parts) {
+            if (parts.length == 3 || (parts.length == 4 && parts[3].equals(TransferCompression.ENCODING))) {
+                handleUpload(parts[1], parts[2], parts.length == 4);
+                return;
+            }
             if (parts.length == 2) {
                 String filename = parts[1];
                 File sourceFile = new File(handle + "_files/" + filename);
-                File destinationFile = new File(fileStoragePath + "/" + filename);
+                File destinationFile = fileStore.resolve(filename).toFile();
 
                 if (handle == null) {
                     out.println("Error: You must register before using this command.");
@@ -203,43 +3383,289 @@ public class Server {
                     return;
                 }
 
-                try {
-                    if (destinationFile.exists()) {
-                        out.println("Error: File already exists on the server.");
-                    } else {
-                        copyFile(sourceFile, destinationFile);
-                        out.println(handle + "<" + new Date() + ">: Uploaded " + filename);
-                    }
-                } catch (IOException e) {
-                    out.println("Error: Unable to copy file. " + e.getMessage());
+                if (destinationFile.exists()) {
+                    out.println("Error: File already exists on the server.");
+                    return;
                 }
+                String owner = handle;
+                replyWhenDone(importFile(sourceFile.toPath(), filename).handle((ignored, e) -> {
+                    if (e != null) {
+                        return "Error: Unable to copy file. " + causeMessage(e);
+                    }
+                    fileIndex.update(destinationFile.toPath(), fileStore.getHash(filename));
+                    return owner + "<" + new Date() + ">: Uploaded " + filename;
+                }));
             } else {
                 out.println("Error: Command parameters do not match or is not allowed.");
             }
         }
 
-        private void handleDir() {
-            File folder = new File(fileStoragePath);
-            File[] listOfFiles = folder.listFiles();
+        /**
+         * Copies a file into the store on the disk threads, through a temp file
+         * and group commit the same as an upload.
+         */
+        private CompletableFuture<Void> importFile(Path source, String name) {
+            Path temp = fileStore.newTempPath(name);
+            return diskIo.submit(() -> {
+                Files.copy(source, temp);
+                return fileStore.isContentAddressed() ? ContentHash.of(temp) : null;
+            }).thenCompose(hash -> diskIo.commit(temp, fileStore.getDirectory(), () -> {
+                fileStore.commit(name, temp, hash);
+                return (Void) null;
+            })).whenComplete((ignored, e) -> {
+                if (e != null) {
+                    try {
+                        Files.deleteIfExists(temp);
+                    } catch (IOException cleanup) {
+                        appendLog("Error removing partial upload: " + cleanup.getMessage());
+                    }
+                }
+            });
+        }
+
+        /**
+         * /store <filename> <size> is followed by exactly size bytes of file data
+         * on the same connection. With "/store <filename> <size> deflate" the body
+         * is compressed instead and size is the length once inflated.
+         */
+        private void handleUpload(String filename, String sizeText, boolean deflated) {
+            long size = parseSize(sizeText);
+            if (size < 0) {
+                out.println("Error: Command parameters do not match or is not allowed.");
+                return;
+            }
+
+            if (mux) {
+                out.println(MUX_NEEDS_STREAM);
+                return;
+            }
+
+            upload = newUpload(filename, size, deflated);
+            if (upload.isComplete()) {
+                finishUpload();
+            }
+        }
+
+        /**
+         * An upload into the store, or one that reads and discards the body if
+         * the file cannot be stored, with the reason as its rejection.
+         */
+        private Upload newUpload(String filename, long size, boolean deflated) {
+            if (handle == null) {
+                return new Upload("Error: You must register before using this command.", size, deflated);
+            } else if (!isValidFilename(filename)) {
+                return new Upload("Error: Invalid filename.", size, deflated);
+            } else if (fileStore.contains(filename)) {
+                return new Upload("Error: File already exists on the server.", size, deflated);
+            }
+            try {
+                return new Upload(fileStore.resolve(filename), size, deflated, null);
+            } catch (IOException e) {
+                return new Upload("Error: Unable to store file. " + e.getMessage(), size, deflated);
+            }
+        }
+
+        /**
+         * /patch <filename> <block size> <size> <hash> <delta length> is followed
+         * by a DeltaSync delta of delta length bytes, worked out against the
+         * /signature of the file. The server rebuilds the file from it and keeps
+         * the result if its ContentHash is hash. A name the server does not have
+         * yet is created from a delta of literals only.
+         */
+        private void handlePatch(String[] parts) {
+            if (parts.length != 6) {
+                out.println("Error: Command parameters do not match or is not allowed.");
+                return;
+            }
+            Upload patch = newPatch(parts);
+            if (patch == null) {
+                out.println("Error: Command parameters do not match or is not allowed.");
+                return;
+            }
+            if (mux) {
+                patch.abort();
+                out.println(MUX_NEEDS_STREAM);
+                return;
+            }
+
+            upload = patch;
+            if (upload.isComplete()) {
+                finishUpload();
+            }
+        }
+
+        /**
+         * The upload for a /patch command line, or null if its numbers make no
+         * sense, in which case the body cannot be skipped either.
+         */
+        private Upload newPatch(String[] parts) {
+            String filename = parts[1];
+            long deltaLength = parseSize(parts[5]);
+            long size = parseSize(parts[3]);
+            int blockSize = (int) Math.min(parseSize(parts[2]), Integer.MAX_VALUE);
+            if (deltaLength < 0 || size < 0 || blockSize < DeltaSync.MIN_BLOCK_SIZE
+                    || blockSize > DeltaSync.MAX_BLOCK_SIZE) {
+                return null;
+            }
+            if (handle == null) {
+                return new Upload("Error: You must register before using this command.", deltaLength, false);
+            } else if (!isValidFilename(filename)) {
+                return new Upload("Error: Invalid filename.", deltaLength, false);
+            }
+            try {
+                return new Upload(fileStore.resolve(filename), deltaLength, false,
+                        new Patch(blockSize, size, parts[4]));
+            } catch (IOException e) {
+                return new Upload("Error: Unable to store file. " + e.getMessage(), deltaLength, false);
+            }
+        }
+
+        /**
+         * /signature <filename> replies with the DeltaSync signature of the file
+         * for /sync: a "/signature <filename> <size> <block size> <count> <hash>"
+         * line followed by one line of checksums per block. A file the server does
+         * not have gets an empty signature with "-" for its hash, so the client
+         * can send it whole the same way.
+         */
+        private void handleSignature(String[] parts) {
+            if (parts.length != 2) {
+                out.println("Error: Command parameters do not match or is not allowed.");
+                return;
+            }
+            if (handle == null) {
+                out.println("Error: You must register before using this command.");
+                return;
+            }
+
+            String filename = parts[1];
+            if (!isValidFilename(filename)) {
+                out.println("Error: Invalid filename.");
+                return;
+            }
+
+            try {
+                DeltaSync.Signature signature = DeltaSync.Signature.of(fileStore.resolve(filename));
+                String newline = System.lineSeparator();
+                StringBuilder reply = new StringBuilder("/signature ").append(filename).append(' ')
+                        .append(signature.size).append(' ').append(signature.blockSize).append(' ')
+                        .append(signature.blockCount()).append(' ')
+                        .append(signature.hash != null ? signature.hash : "-").append(newline);
+                for (int i = 0; i < signature.blockCount(); i++) {
+                    reply.append(signature.line(i)).append(newline);
+                }
+                out.print(reply);
+                out.flush();
+            } catch (IOException e) {
+                out.println("Error: Unable to read file. " + e.getMessage());
+            }
+        }
+
+        private long parseSize(String text) {
+            try {
+                return Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * /dir [pattern] [page] lists server_files from the in-memory index. The
+         * pattern is a name prefix or a glob such as *.txt; with a page number the
+         * listing is cut into pages of DIR_PAGE_SIZE names. On a federated server
+         * the files only other nodes have are listed too, as "name (on node)".
+         * The whole reply is built first and sent as a single write.
+         */
+        private void handleDir(String[] parts) {
             if (handle == null) {
                 out.println("Error: You must register before using this command.");
                 return;
             }
+            if (parts.length > 3) {
+                out.println("Error: Command parameters do not match or is not allowed.");
+                return;
+            }
 
-            if (listOfFiles != null && listOfFiles.length > 0) {
-                out.println("Server Directory");
-                for (File file : listOfFiles) {
-                    out.println(file.getName());
+            String pattern = parts.length > 1 ? parts[1] : "";
+            int page = 0;
+            if (parts.length > 2) {
+                try {
+                    page = Integer.parseInt(parts[2]);
+                } catch (NumberFormatException e) {
+                    page = -1;
                 }
-            } else {
+                if (page < 1) {
+                    out.println("Error: Command parameters do not match or is not allowed.");
+                    return;
+                }
+            }
+
+            List<String> files = new ArrayList<>();
+            try {
+                for (FileIndex.Entry file : fileIndex.list(pattern)) {
+                    files.add(file.getName());
+                }
+                addRemoteFiles(files, pattern);
+            } catch (IllegalArgumentException e) {
+                out.println("Error: Invalid pattern. " + e.getMessage());
+                return;
+            }
+            if (files.isEmpty()) {
                 out.println("Error: No files found.");
+                return;
+            }
+
+            int from = 0;
+            int to = files.size();
+            int pages = (files.size() + DIR_PAGE_SIZE - 1) / DIR_PAGE_SIZE;
+            if (page > 0) {
+                if (page > pages) {
+                    out.println("Error: Page " + page + " does not exist, there are " + pages + ".");
+                    return;
+                }
+                from = (page - 1) * DIR_PAGE_SIZE;
+                to = Math.min(files.size(), from + DIR_PAGE_SIZE);
+            }
+
+            String newline = System.lineSeparator();
+            StringBuilder listing = new StringBuilder("Server Directory").append(newline);
+            for (String file : files.subList(from, to)) {
+                listing.append(file).append(newline);
+            }
+            if (page > 0) {
+                listing.append("Page ").append(page).append(" of ").append(pages).append(newline);
+            }
+            out.print(listing);
+            out.flush();
+        }
+
+        /**
+         * Adds the matching files that are on other nodes but not on this one,
+         * keeping the list in name order.
+         */
+        private void addRemoteFiles(List<String> files, String pattern) {
+            Map<String, List<String>> remote = federation.files();
+            if (remote.isEmpty()) {
+                return;
+            }
+            Predicate<String> matcher = FileIndex.matcher(pattern);
+            for (Map.Entry<String, List<String>> node : remote.entrySet()) {
+                for (String name : node.getValue()) {
+                    if (matcher.test(name) && fileIndex.get(name) == null) {
+                        files.add(name + " (on " + node.getKey() + ")");
+                    }
+                }
             }
+            files.sort(null);
         }
 
         private void handleGet(String[] parts) {
+            if (parts.length == 3 || parts.length == 4) {
+                handleDownload(parts[1], parts[2], parts.length == 4 ? parts[3] : null);
+                return;
+            }
             if (parts.length == 2) {
                 String filename = parts[1];
-                File sourceFile = new File(fileStoragePath + "/" + filename);
+                File sourceFile = fileStore.resolve(filename).toFile();
                 File destinationFile = new File(handle + "_files/" + filename);
 
                 if (handle == null) {
@@ -248,12 +3674,10 @@ public class Server {
                 }
 
                 if (sourceFile.exists()) {
-                    try {
+                    replyWhenDone(diskIo.submit(() -> {
                         copyFile(sourceFile, destinationFile);
-                        out.println("File received from Server: " + filename);
-                    } catch (IOException e) {
-                        out.println("Error: Unable to receive file. " + e.getMessage());
-                    }
+                        return "File received from Server: " + filename;
+                    }).exceptionally(e -> "Error: Unable to receive file. " + causeMessage(e)));
                 } else {
                     out.println("Error: File not found in the server.");
                 }
@@ -262,14 +3686,294 @@ public class Server {
             }
         }
 
+        /**
+         * /get <filename> <offset> [length] streams the file back over the
+         * connection, starting at offset, instead of copying it into the handle's
+         * folder. Without a length it runs to the end of the file.
+         */
+        private void handleDownload(String filename, String offsetText, String lengthText) {
+            long offset;
+            long length;
+            try {
+                offset = Long.parseLong(offsetText);
+                length = lengthText != null ? Long.parseLong(lengthText) : Long.MAX_VALUE;
+            } catch (NumberFormatException e) {
+                offset = -1;
+                length = -1;
+            }
+            if (offset < 0 || length < 0) {
+                out.println("Error: Command parameters do not match or is not allowed.");
+                return;
+            }
+
+            if (mux) {
+                out.println(MUX_NEEDS_STREAM);
+                return;
+            }
+
+            if (handle == null && streamOwner == null) {
+                out.println("Error: You must register before using this command.");
+                return;
+            }
+
+            File sourceFile = fileStore.resolve(filename).toFile();
+            if (!isValidFilename(filename) || !sourceFile.isFile()) {
+                out.println("Error: File not found in the server.");
+                return;
+            }
+
+            try {
+                sendFile(sourceFile, offset, length);
+                out.println("File received from Server: " + filename);
+            } catch (IOException e) {
+                out.println("Error: Unable to send file. " + e.getMessage());
+            }
+        }
+
+        /**
+         * /mget <pattern> sends every file whose name matches, as /dir matches
+         * them, each as "/get <filename> 0" would, and then "/mget <pattern>
+         * <count>" once they are all sent. On a mux connection the server opens
+         * a stream per file and runs up to MGET_CONCURRENCY of them at a time.
+         */
+        private void handleMget(String[] parts) {
+            if (handle == null) {
+                out.println("Error: You must register before using this command.");
+                return;
+            }
+            if (parts.length != 2) {
+                out.println("Error: Command parameters do not match or is not allowed.");
+                return;
+            }
+
+            List<FileIndex.Entry> files;
+            try {
+                files = fileIndex.list(parts[1]);
+            } catch (IllegalArgumentException e) {
+                out.println("Error: Invalid pattern. " + e.getMessage());
+                return;
+            }
+            if (files.isEmpty()) {
+                out.println("Error: No files found.");
+                return;
+            }
+            if (files.size() > MAX_MGET_FILES) {
+                out.println("Error: " + files.size() + " files match, the limit for one /mget is " + MAX_MGET_FILES + ".");
+                return;
+            }
+
+            if (mux) {
+                ArrayDeque<String> names = new ArrayDeque<>();
+                for (FileIndex.Entry entry : files) {
+                    names.add(entry.getName());
+                }
+                sendLock.lock();
+                try {
+                    batches.add(new MgetBatch(replyTag, parts[1], names));
+                    startBatchDownloads();
+                } finally {
+                    sendLock.unlock();
+                }
+                return;
+            }
+
+            // One stream, so the files go one after another; in NIO mode they are
+            // all queued now and the event loop works through them.
+            int sent = 0;
+            for (FileIndex.Entry entry : files) {
+                File sourceFile = fileStore.resolve(entry.getName()).toFile();
+                if (!sourceFile.isFile()) {
+                    // Removed since it was listed.
+                    continue;
+                }
+                try {
+                    sendFile(sourceFile, 0, Long.MAX_VALUE);
+                    out.println("File received from Server: " + entry.getName());
+                    sent++;
+                } catch (IOException e) {
+                    out.println("Error: Unable to send file. " + e.getMessage());
+                }
+            }
+            out.println("/mget " + parts[1] + " " + sent);
+        }
+
+        /**
+         * Opens streams for waiting /mget files while their batch and the
+         * connection have room, and reports each batch that is done. Guarded by
+         * sendLock.
+         */
+        private void startBatchDownloads() {
+            Iterator<MgetBatch> pending = batches.iterator();
+            while (pending.hasNext()) {
+                MgetBatch batch = pending.next();
+                while (batch.active < MGET_CONCURRENCY && !batch.names.isEmpty()
+                        && transfers.size() < MAX_MUX_TRANSFERS) {
+                    String name = batch.names.poll();
+                    int stream = nextServerStream++;
+                    writeFrames(MuxProtocol.openFrame(stream, "/get " + name + " 0"));
+                    openDownload(stream, name, "0", null, batch);
+                }
+                if (batch.active == 0 && batch.names.isEmpty()) {
+                    pending.remove();
+                    String tag = batch.tag != null ? batch.tag : "";
+                    writeBuffer(WireProtocol.stringFrame(WireProtocol.OP_TEXT,
+                            tag + "/mget " + batch.pattern + " " + batch.sent));
+                }
+            }
+        }
+
+        /**
+         * Called as an /mget download leaves the stream table, from inside the
+         * writers, so the next ones are opened from a fresh task.
+         */
+        private void startBatchesLater() {
+            Runnable start = () -> {
+                sendLock.lock();
+                try {
+                    if (!closed) {
+                        startBatchDownloads();
+                    }
+                } finally {
+                    sendLock.unlock();
+                }
+            };
+            if (eventLoop != null) {
+                eventLoop.execute(start);
+                return;
+            }
+            try {
+                writerExecutor.execute(start);
+            } catch (RejectedExecutionException e) {
+                // The server is stopping.
+            }
+        }
+
+        /**
+         * /stream <handle> turns this connection into an extra download stream for
+         * a registered client, so one large file can be fetched as several ranges
+         * in parallel. A stream can only use ranged /get, and each handle may have
+         * at most maxStreamsPerHandle of them.
+         */
+        private void handleStream(String[] parts) {
+            if (parts.length != 2) {
+                out.println("Error: Command parameters do not match or is not allowed.");
+                return;
+            }
+            if (handle != null || streamOwner != null) {
+                out.println("Error: This connection is already in use.");
+                return;
+            }
+            ClientHandler owner = clients.get(parts[1]);
+            if (owner == null) {
+                out.println("Error: Target handle not found.");
+                return;
+            }
+            if (owner.streams.incrementAndGet() > maxStreamsPerHandle) {
+                owner.streams.decrementAndGet();
+                out.println("Error: Too many streams for " + parts[1] + ", the limit is " + maxStreamsPerHandle + ".");
+                return;
+            }
+            streamOwner = owner;
+            out.println("Stream attached to " + parts[1] + ".");
+        }
+
+        /**
+         * /stat <filename> replies "/stat <filename> <size> <last modified>" from
+         * the directory index, without touching the file's contents.
+         */
+        private void handleStat(String[] parts) {
+            if (parts.length != 2) {
+                out.println("Error: Command parameters do not match or is not allowed.");
+                return;
+            }
+            if (handle == null) {
+                out.println("Error: You must register before using this command.");
+                return;
+            }
+            FileIndex.Entry entry = isValidFilename(parts[1]) ? fileIndex.get(parts[1]) : null;
+            if (entry == null) {
+                out.println("Error: File not found in the server.");
+                return;
+            }
+            out.println("/stat " + entry.getName() + " " + entry.getSize() + " " + entry.getLastModified());
+        }
+
+        /**
+         * /sums <filename> replies with the file's per-chunk checksums, the same
+         * chunks ContentHash uses: a "/sums <filename> <size> <chunk size> <count>"
+         * line followed by one hex SHA-256 per chunk. A client holding part of the
+         * file compares them with what it has and asks /get for the rest only.
+         */
+        private void handleSums(String[] parts) {
+            if (parts.length != 2) {
+                out.println("Error: Command parameters do not match or is not allowed.");
+                return;
+            }
+            if (handle == null) {
+                out.println("Error: You must register before using this command.");
+                return;
+            }
+
+            String filename = parts[1];
+            Path file = fileStore.resolve(filename);
+            if (!isValidFilename(filename) || !Files.isRegularFile(file)) {
+                out.println("Error: File not found in the server.");
+                return;
+            }
+
+            try {
+                long size = Files.size(file);
+                List<String> sums = ContentHash.chunkDigests(file);
+                String newline = System.lineSeparator();
+                StringBuilder reply = new StringBuilder("/sums ").append(filename).append(' ').append(size)
+                        .append(' ').append(ContentHash.CHUNK_SIZE).append(' ').append(sums.size()).append(newline);
+                for (String sum : sums) {
+                    reply.append(sum).append(newline);
+                }
+                out.print(reply);
+                out.flush();
+            } catch (IOException e) {
+                out.println("Error: Unable to read file. " + e.getMessage());
+            }
+        }
+
+        /**
+         * Copies a stored file into a handle's folder. Runs on a disk thread, and
+         * writes a temp file that is renamed over the destination once complete,
+         * so a copy cut short never passes for the whole file.
+         */
         private void copyFile(File sourceFile, File destinationFile) throws IOException {
             if (!destinationFile.getParentFile().exists()) {
                 destinationFile.getParentFile().mkdirs();
             }
+            File temp = new File(destinationFile.getParentFile(), "." + destinationFile.getName() + ".part");
 
-            try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
-                FileChannel destChannel = new FileOutputStream(destinationFile).getChannel()) {
-                destChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
+            try {
+                ByteBuffer cached = cachedContents(sourceFile.getName());
+                if (cached != null) {
+                    try (FileChannel destChannel = new FileOutputStream(temp).getChannel()) {
+                        while (cached.hasRemaining()) {
+                            destChannel.write(cached);
+                        }
+                    }
+                } else {
+                    try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
+                        FileChannel destChannel = new FileOutputStream(temp).getChannel()) {
+                        long size = sourceChannel.size();
+                        long position = 0;
+                        while (position < size) {
+                            long copied = destChannel.transferFrom(sourceChannel, position, size - position);
+                            if (copied == 0) {
+                                throw new IOException("File shrank while it was being copied.");
+                            }
+                            position += copied;
+                        }
+                    }
+                }
+                Files.move(temp.toPath(), destinationFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp.toPath());
             }
         }
 
@@ -293,10 +3997,29 @@ public class Server {
             }
             String message = messageBuilder.toString();
         
-            for (ClientHandler client : clients.values()) {
-                client.out.println("Broadcast from " + handle + ": " + message);
+            ChatMessage chatMessage = new ChatMessage(WireProtocol.OP_BROADCAST_FROM, handle, handleBytes,
+                    ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+            fanOut(chatMessage);
+            if (log.isEnabled()) {
+                appendLog("Broadcast from " + handle + ": " + message);
+            }
+        }
+
+        /**
+         * Binary form of /broadcast. The message bytes are copied once into the
+         * outgoing frame; no String is built unless a text client or the log needs it.
+         */
+        private void handleBroadcast(ByteBuffer message) {
+            if (handle == null) {
+                out.println("Error: You must register before using this command.");
+                return;
+            }
+
+            ChatMessage chatMessage = new ChatMessage(WireProtocol.OP_BROADCAST_FROM, handle, handleBytes, message);
+            fanOut(chatMessage);
+            if (log.isEnabled()) {
+                appendLog("Broadcast from " + handle + ": " + WireProtocol.decode(message));
             }
-            appendLog("Broadcast from " + handle + ": " + message);
         }
         
         
@@ -324,25 +4047,77 @@ public class Server {
             String message = messageBuilder.toString();
         
         
-            ClientHandler targetClient = clients.get(targetHandle);
+            UnicastResult result = sendUnicast(targetHandle, new ChatMessage(WireProtocol.OP_UNICAST_FROM, handle,
+                    handleBytes, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8))), true);
         
-            if (targetClient != null) {
-                targetClient.out.println("Message from " + handle + ": " + message);
+            if (result == UnicastResult.SENT) {
                 out.println("Message sent.");
-                appendLog("Message sent to " + targetHandle + ": " + message);
+                if (log.isEnabled()) {
+                    appendLog("Message sent to " + targetHandle + ": " + message);
+                }
+            } else if (result == UnicastResult.QUEUED) {
+                out.println(MESSAGE_QUEUED);
+            } else if (result == UnicastResult.NOT_QUEUED) {
+                out.println(MESSAGE_NOT_QUEUED);
             } else {
                 out.println("Error: Target handle not found.");
             }
         }
         
 
+        /**
+         * Binary form of /unicast. Replies to binary clients are constant frames.
+         */
+        private void handleUnicast(ByteBuffer target, ByteBuffer message) {
+            if (handle == null) {
+                out.println("Error: You must register before using this command.");
+                return;
+            }
+
+            if (!target.equals(lastTarget)) {
+                ByteBuffer copy = ByteBuffer.allocate(target.remaining());
+                copy.put(target.duplicate()).flip();
+                lastTarget = copy;
+                lastTargetHandle = WireProtocol.decode(copy);
+            }
+
+            UnicastResult result = sendUnicast(lastTargetHandle,
+                    new ChatMessage(WireProtocol.OP_UNICAST_FROM, handle, handleBytes, message), true);
+            if (result == UnicastResult.SENT) {
+                writeBuffer(MESSAGE_SENT_FRAME.duplicate());
+                if (log.isEnabled()) {
+                    appendLog("Message sent to " + lastTargetHandle + ": " + WireProtocol.decode(message));
+                }
+            } else if (result == UnicastResult.QUEUED) {
+                writeBuffer(MESSAGE_QUEUED_FRAME.duplicate());
+            } else if (result == UnicastResult.NOT_QUEUED) {
+                writeBuffer(MESSAGE_NOT_QUEUED_FRAME.duplicate());
+            } else {
+                writeBuffer(TARGET_NOT_FOUND_FRAME.duplicate());
+            }
+        }
+
+        /**
+         * Sends a broadcast to this node's clients, and once to each other node
+         * for theirs.
+         */
+        private void fanOut(ChatMessage chatMessage) {
+            fanOutLocally(chatMessage);
+            federation.broadcast(chatMessage.senderBytes, chatMessage.body);
+        }
+
         private void handleHelp() {
             out.println("/join <server_ip> <port>");
             out.println("/leave");
             out.println("/register <handle>");
             out.println("/store <filename>");
-            out.println("/dir");
-            out.println("/get <filename>");
+            out.println("/dir [pattern] [page]");
+            out.println("/get <filename> [offset] [length]");
+            out.println("/mget <pattern>");
+            out.println("/sums <filename>");
+            out.println("/sync [pattern]");
+            out.println("/stat <filename>");
+            out.println("/stats");
             out.println("/broadcast <message>");
             out.println("/unicast <handle> <message>");
             out.println("/?");
@@ -2,6 +2,12 @@
  * To run open CMD and input    javac Server.java ServerGUI.java
  * 
  * Afterwards, input            java  ServerGUI.java
+ *
+ * To run several servers as one cluster (see Federation), give each a client
+ * port, a node name, a port for the other nodes and any nodes already running:
+ *
+ *     java ServerGUI 12345 a 7001
+ *     java ServerGUI 12346 b 7002 localhost:7001
  */
 
 
@@ -10,23 +16,52 @@ import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
 import javax.swing.JTextArea;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingUtilities;
 
 public class ServerGUI extends JFrame {
+    private static final int DEFAULT_PORT = 12345;
+
+    private final int port;
+    // Null unless the server joins a cluster.
+    private final String nodeName;
+    private final int peerPort;
+    private final List<InetSocketAddress> peers;
     private Server server;
     private JTextArea logArea;
     private JButton startButton;
     private JButton stopButton;
+    private JComboBox<Server.IoMode> modeBox;
+    // File transfer limits in KB/s, 0 for none. They apply as soon as they
+    // change, while the server runs.
+    private JSpinner serverLimit;
+    private JSpinner handleLimit;
+    // Memory for caching hot files in MB, 0 for no cache.
+    private JSpinner cacheSize;
 
     public ServerGUI() {
-        setTitle("Server Control Panel");
-        setSize(600, 400);
+        this(DEFAULT_PORT, null, 0, new ArrayList<>());
+    }
+
+    public ServerGUI(int port, String nodeName, int peerPort, List<InetSocketAddress> peers) {
+        this.port = port;
+        this.nodeName = nodeName;
+        this.peerPort = peerPort;
+        this.peers = peers;
+        setTitle(nodeName != null ? "Server Control Panel - node " + nodeName : "Server Control Panel");
+        setSize(900, 400);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
         setLayout(new BorderLayout());
@@ -41,9 +76,24 @@ public class ServerGUI extends JFrame {
         startButton = new JButton("Start Server");
         stopButton = new JButton("Stop Server");
         stopButton.setEnabled(false);
+        modeBox = new JComboBox<>(Server.IoMode.values());
 
+        serverLimit = new JSpinner(new SpinnerNumberModel(0, 0, 10_000_000, 100));
+        handleLimit = new JSpinner(new SpinnerNumberModel(0, 0, 10_000_000, 100));
+        serverLimit.addChangeListener(e -> applyLimits());
+        handleLimit.addChangeListener(e -> applyLimits());
+        cacheSize = new JSpinner(new SpinnerNumberModel(64, 0, 65_536, 16));
+        cacheSize.addChangeListener(e -> applyLimits());
+
+        controlPanel.add(modeBox);
         controlPanel.add(startButton);
         controlPanel.add(stopButton);
+        controlPanel.add(new JLabel("KB/s total"));
+        controlPanel.add(serverLimit);
+        controlPanel.add(new JLabel("per user"));
+        controlPanel.add(handleLimit);
+        controlPanel.add(new JLabel("MB cache"));
+        controlPanel.add(cacheSize);
 
         add(controlPanel, BorderLayout.SOUTH);
 
@@ -51,8 +101,18 @@ public class ServerGUI extends JFrame {
             @Override
             public void actionPerformed(ActionEvent e) {
                 try {
-                    server = new Server(12345, logArea);
+                    server = new Server(port, logArea, (Server.IoMode) modeBox.getSelectedItem());
+                    applyLimits();
+                    if (nodeName != null) {
+                        try {
+                            server.federate(nodeName, peerPort, peers);
+                        } catch (IOException federationError) {
+                            server.stop();
+                            throw federationError;
+                        }
+                    }
                     server.start();
+                    modeBox.setEnabled(false);
                     startButton.setEnabled(false);
                     stopButton.setEnabled(true);
                 } catch (IOException ioException) {
@@ -67,15 +127,35 @@ public class ServerGUI extends JFrame {
                 if (server != null) {
                     server.stop();
                 }
+                modeBox.setEnabled(true);
                 startButton.setEnabled(true);
                 stopButton.setEnabled(false);
             }
         });
     }
 
+    private void applyLimits() {
+        if (server != null) {
+            server.setBandwidthLimit(1024L * (Integer) serverLimit.getValue());
+            server.setHandleBandwidthLimit(1024L * (Integer) handleLimit.getValue());
+            server.setFileCacheSize(1024L * 1024 * (Integer) cacheSize.getValue());
+        }
+    }
+
+    /**
+     * Arguments: [port [node-name peer-port [host:peer-port ...]]]
+     */
     public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String nodeName = args.length > 2 ? args[1] : null;
+        int peerPort = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            int colon = args[i].lastIndexOf(':');
+            peers.add(new InetSocketAddress(args[i].substring(0, colon), Integer.parseInt(args[i].substring(colon + 1))));
+        }
         SwingUtilities.invokeLater(() -> {
-            ServerGUI gui = new ServerGUI();
+            ServerGUI gui = new ServerGUI(port, nodeName, peerPort, peers);
             gui.setVisible(true);
         });
     }
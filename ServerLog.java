@@ -0,0 +1,304 @@
+/**
+ * The server's log. Worker threads hand messages over without blocking or
+ * taking a lock, and a single background thread does the slow parts: it
+ * writes them to a size-capped, rolling log file and shows them in the GUI.
+ *
+ * Messages go through a fixed ring of slots. A producer claims a slot with one
+ * compare-and-set on the tail sequence, fills it and publishes it by bumping
+ * the slot's own sequence number, so producers never wait on each other or on
+ * the consumer. When the ring is full the message is dropped and counted rather
+ * than making a worker wait for the disk or the event dispatch thread.
+ *
+ * The consumer drains whatever has arrived in one batch per wakeup and hands
+ * new lines to the text area with at most one SwingUtilities.invokeLater per
+ * frame. The text area keeps only the last MAX_VIEW_LINES lines.
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+
+public class ServerLog {
+    private static final int CAPACITY = 8192;
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+    private static final int MAX_VIEW_LINES = 5000;
+    /** Text waiting for a busy event dispatch thread is cut to roughly a screenful of scrollback. */
+    private static final int MAX_PENDING_VIEW_CHARS = MAX_VIEW_LINES * 200;
+    private static final long MAX_FILE_SIZE = 10 * 1024 * 1024;
+    /** Large batches are written in pieces of about this size, so files overshoot the cap by little. */
+    private static final int MAX_FILE_WRITE = 64 * 1024;
+    /** The current file plus this many rolled-over ones (.1 is the newest). */
+    private static final int MAX_ROLLED_FILES = 4;
+    private static final DateTimeFormatter TIMESTAMP =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final JTextArea view;
+    private final Path file;
+
+    // Slot i holds a message when sequences[i] is one past the position it was
+    // claimed at, and is free for position p when sequences[i] == p.
+    private final String[] messages = new String[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+
+    // Only touched by the consumer thread.
+    private long head;
+    private FileChannel output;
+    private long fileSize;
+    private final StringBuilder fileBatch = new StringBuilder();
+    private final StringBuilder pendingView = new StringBuilder();
+    private long nextFrame;
+
+    private final AtomicBoolean viewUpdateScheduled = new AtomicBoolean();
+    private final Thread consumer;
+    private volatile boolean running = true;
+
+    /**
+     * Either destination may be null. With neither, the log is disabled and
+     * log() returns straight away.
+     */
+    public ServerLog(JTextArea view, Path file) {
+        this.view = view;
+        this.file = file;
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        consumer = new Thread(this::run, "server-log");
+        consumer.setDaemon(true);
+        if (isEnabled()) {
+            consumer.start();
+        }
+    }
+
+    /**
+     * Whether messages go anywhere. Callers on hot paths check this before
+     * building a message.
+     */
+    public boolean isEnabled() {
+        return view != null || file != null;
+    }
+
+    public void log(String message) {
+        if (!isEnabled()) {
+            return;
+        }
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) (position & (CAPACITY - 1));
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // The consumer has not freed this slot yet, so the ring is full.
+                dropped.increment();
+                return;
+            }
+            // Another producer claimed the slot first; try the next position.
+        }
+        messages[index] = message;
+        times[index] = System.currentTimeMillis();
+        sequences.lazySet(index, position + 1);
+    }
+
+    /**
+     * Writes out everything logged so far and stops the background thread.
+     */
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        openFile();
+        while (true) {
+            boolean stopping = !running;
+            int drained = drain();
+            long now = System.nanoTime();
+            if (pendingView.length() > 0 && (stopping || now - nextFrame >= 0)) {
+                publishView();
+                nextFrame = now + FRAME_NANOS;
+            }
+            if (stopping && drained == 0) {
+                break;
+            }
+            if (drained == 0) {
+                LockSupport.parkNanos(FRAME_NANOS);
+            }
+        }
+        closeFile();
+    }
+
+    /**
+     * Takes every published message off the ring and writes them to the file
+     * in a few large writes. Returns how many there were.
+     */
+    private int drain() {
+        int count = 0;
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            append(System.currentTimeMillis(), lost + " log message(s) dropped, the log could not keep up.");
+        }
+        while (true) {
+            int index = (int) (head & (CAPACITY - 1));
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            String message = messages[index];
+            long time = times[index];
+            messages[index] = null;
+            sequences.lazySet(index, head + CAPACITY);
+            head++;
+            count++;
+            append(time, message);
+            if (fileBatch.length() >= MAX_FILE_WRITE) {
+                flushFile();
+            }
+        }
+        flushFile();
+        return count;
+    }
+
+    private void flushFile() {
+        if (fileBatch.length() > 0) {
+            writeFile(fileBatch.toString());
+            fileBatch.setLength(0);
+        }
+    }
+
+    private void append(long time, String message) {
+        if (output != null) {
+            TIMESTAMP.formatTo(Instant.ofEpochMilli(time), fileBatch);
+            fileBatch.append(' ').append(message).append('\n');
+        }
+        if (view != null) {
+            pendingView.append(message).append('\n');
+            if (pendingView.length() > MAX_PENDING_VIEW_CHARS) {
+                int cut = pendingView.indexOf("\n", pendingView.length() - MAX_PENDING_VIEW_CHARS);
+                pendingView.delete(0, cut + 1);
+            }
+        }
+    }
+
+    /**
+     * Hands the lines gathered since the last frame to the event dispatch
+     * thread, unless it has not got round to the previous batch yet, in which
+     * case they wait for the next frame.
+     */
+    private void publishView() {
+        if (!viewUpdateScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        String text = pendingView.toString();
+        pendingView.setLength(0);
+        SwingUtilities.invokeLater(() -> {
+            view.append(text);
+            int excess = view.getLineCount() - MAX_VIEW_LINES;
+            if (excess > 0) {
+                try {
+                    view.getDocument().remove(0, view.getLineEndOffset(excess - 1));
+                } catch (BadLocationException ignored) {
+                }
+            }
+            viewUpdateScheduled.set(false);
+        });
+    }
+
+    private void openFile() {
+        if (file == null) {
+            return;
+        }
+        try {
+            output = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            fileSize = output.size();
+        } catch (IOException e) {
+            fileFailed(e);
+        }
+    }
+
+    private void writeFile(String text) {
+        ByteBuffer bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        try {
+            if (fileSize > 0 && fileSize + bytes.remaining() > MAX_FILE_SIZE) {
+                roll();
+            }
+            while (bytes.hasRemaining()) {
+                fileSize += output.write(bytes);
+            }
+        } catch (IOException e) {
+            fileFailed(e);
+        }
+    }
+
+    /**
+     * Shifts server.log to server.log.1, .1 to .2 and so on, dropping the oldest.
+     */
+    private void roll() throws IOException {
+        output.close();
+        Files.deleteIfExists(rolled(MAX_ROLLED_FILES));
+        for (int i = MAX_ROLLED_FILES - 1; i >= 1; i--) {
+            if (Files.exists(rolled(i))) {
+                Files.move(rolled(i), rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        output = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileSize = 0;
+    }
+
+    private Path rolled(int generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation);
+    }
+
+    private void fileFailed(IOException e) {
+        closeFile();
+        if (view != null) {
+            pendingView.append("Error writing ").append(file).append(", file logging is off: ")
+                    .append(e.getMessage()).append('\n');
+        }
+    }
+
+    private void closeFile() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException ignored) {
+            }
+            output = null;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/**
+ * Counters and latency histograms for one server, readable over JMX, with the
+ * /stats command, and from a snapshot file written every so often.
+ *
+ * Recording is cheap enough to do on every command: a histogram update is an
+ * atomic increment (see LatencyHistogram) and byte counts go to LongAdders, so
+ * threads recording at the same time do not contend on one counter. Gauges
+ * such as queue depths are only computed when something reads them.
+ */
+
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class ServerMetrics implements ServerMetricsMBean {
+    /** Unknown commands all go here, so junk input cannot add histograms. */
+    public static final String OTHER = "other";
+    /** From the /store command to the file being stored. */
+    public static final String UPLOAD = "upload";
+    /** From the /get command to the last byte of the file being written. */
+    public static final String DOWNLOAD = "download";
+
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder fileBytesIn = new LongAdder();
+    private final LongAdder fileBytesOut = new LongAdder();
+    private final IntSupplier registeredClients;
+    private final LongSupplier broadcastQueueDepth;
+    private final LongSupplier outboundQueuedBytes;
+    private final FileCache fileCache;
+    private final DiskIo diskIo;
+    private final Consumer<String> log;
+
+    private ObjectName name;
+    private ScheduledExecutorService snapshots;
+
+    /**
+     * The histograms are fixed at construction: one for each of commands, plus
+     * OTHER, UPLOAD and DOWNLOAD. The suppliers, the file cache and the disk
+     * threads are the gauges.
+     */
+    public ServerMetrics(String[] commands, IntSupplier registeredClients, LongSupplier broadcastQueueDepth,
+            LongSupplier outboundQueuedBytes, FileCache fileCache, DiskIo diskIo, Consumer<String> log) {
+        for (String command : commands) {
+            latencies.put(command, new LatencyHistogram());
+        }
+        latencies.put(OTHER, new LatencyHistogram());
+        latencies.put(UPLOAD, new LatencyHistogram());
+        latencies.put(DOWNLOAD, new LatencyHistogram());
+        this.registeredClients = registeredClients;
+        this.broadcastQueueDepth = broadcastQueueDepth;
+        this.outboundQueuedBytes = outboundQueuedBytes;
+        this.fileCache = fileCache;
+        this.diskIo = diskIo;
+        this.log = log;
+    }
+
+    /**
+     * Records that command took elapsedNanos.
+     */
+    public void record(String command, long elapsedNanos) {
+        LatencyHistogram histogram = latencies.get(command);
+        if (histogram == null) {
+            histogram = latencies.get(OTHER);
+        }
+        histogram.record(elapsedNanos);
+    }
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+        connectionsAccepted.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    public void bytesRead(long count) {
+        bytesIn.add(count);
+    }
+
+    public void bytesWritten(long count) {
+        bytesOut.add(count);
+    }
+
+    /**
+     * Raw bytes of an upload body, whether or not it arrived compressed.
+     */
+    public void fileBytesReceived(long count) {
+        fileBytesIn.add(count);
+    }
+
+    /**
+     * A finished download: its raw length and the bytes it took on the wire.
+     */
+    public void downloadFinished(long startNanos, long rawBytes, long wireBytes) {
+        record(DOWNLOAD, System.nanoTime() - startNanos);
+        fileBytesOut.add(rawBytes);
+        bytesOut.add(wireBytes);
+    }
+
+    /**
+     * Makes the metrics visible over JMX as Server:type=Metrics,port=port.
+     */
+    public void register(int port) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName("Server:type=Metrics,port=" + port);
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            name = null;
+            log.accept("Error registering metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes getSnapshot() to file every period, replacing the previous one.
+     */
+    public void startSnapshots(Path file, long period, TimeUnit unit) {
+        snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshots.scheduleAtFixedRate(() -> writeSnapshot(file), period, period, unit);
+    }
+
+    private void writeSnapshot(Path file) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.write(temp, getSnapshot().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.accept("Error writing " + file + ": " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+        }
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException ignored) {
+            }
+            name = null;
+        }
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public int getRegisteredClients() {
+        return registeredClients.getAsInt();
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getFileBytesIn() {
+        return fileBytesIn.sum();
+    }
+
+    @Override
+    public long getFileBytesOut() {
+        return fileBytesOut.sum();
+    }
+
+    @Override
+    public long getBroadcastQueueDepth() {
+        return broadcastQueueDepth.getAsLong();
+    }
+
+    @Override
+    public long getOutboundQueuedBytes() {
+        return outboundQueuedBytes.getAsLong();
+    }
+
+    @Override
+    public long getFileCacheHits() {
+        return fileCache.getHits();
+    }
+
+    @Override
+    public long getFileCacheMisses() {
+        return fileCache.getMisses();
+    }
+
+    @Override
+    public double getFileCacheHitRatio() {
+        return fileCache.getHitRatio();
+    }
+
+    @Override
+    public long getFileCacheEvictions() {
+        return fileCache.getEvictions();
+    }
+
+    @Override
+    public long getFileCacheBytes() {
+        return fileCache.getSize();
+    }
+
+    @Override
+    public long getDiskCommitRounds() {
+        return diskIo.getCommitRounds();
+    }
+
+    @Override
+    public long getDiskCommittedFiles() {
+        return diskIo.getCommittedFiles();
+    }
+
+    @Override
+    public String[] getCommandLatencies() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%-12s %9s %9s %9s %9s %9s %9s %9s", "command", "count", "mean", "p50", "p90",
+                "p99", "p99.9", "max (ms)"));
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram.Snapshot snapshot = entry.getValue().snapshot();
+            if (snapshot.getCount() == 0) {
+                continue;
+            }
+            lines.add(String.format("%-12s %9d %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f", entry.getKey(),
+                    snapshot.getCount(), millis(snapshot.getMean()), millis(snapshot.getPercentile(50)),
+                    millis(snapshot.getPercentile(90)), millis(snapshot.getPercentile(99)),
+                    millis(snapshot.getPercentile(99.9)), millis(snapshot.getMax())));
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public double getLatencyPercentile(String command, double percentile) {
+        LatencyHistogram histogram = latencies.get(command);
+        return histogram == null ? 0 : millis(histogram.snapshot().getPercentile(percentile));
+    }
+
+    @Override
+    public String getSnapshot() {
+        StringBuilder text = new StringBuilder();
+        text.append("Server statistics at ").append(new Date()).append('\n');
+        text.append("Connections: ").append(getActiveConnections()).append(" open, ")
+                .append(getRegisteredClients()).append(" registered, ")
+                .append(getConnectionsAccepted()).append(" accepted in total\n");
+        text.append("Traffic: ").append(getBytesIn()).append(" bytes in, ").append(getBytesOut())
+                .append(" bytes out; file data ").append(getFileBytesIn()).append(" bytes stored, ")
+                .append(getFileBytesOut()).append(" bytes sent\n");
+        text.append("Queues: ").append(getBroadcastQueueDepth()).append(" broadcasts waiting to fan out, ")
+                .append(getOutboundQueuedBytes()).append(" bytes waiting for clients\n");
+        text.append(String.format("File cache: %d of %d bytes in %d files; %d hits, %d misses (%.1f%% hits), "
+                + "%d evictions, %d not admitted%n", getFileCacheBytes(), fileCache.getCapacity(),
+                fileCache.getEntryCount(), getFileCacheHits(), getFileCacheMisses(), 100 * getFileCacheHitRatio(),
+                getFileCacheEvictions(), fileCache.getRejections()));
+        long rounds = getDiskCommitRounds();
+        text.append(String.format("Disk: %d files committed in %d syncs (%.1f per sync)%n", getDiskCommittedFiles(),
+                rounds, rounds == 0 ? 0.0 : (double) getDiskCommittedFiles() / rounds));
+        for (String line : getCommandLatencies()) {
+            text.append(line).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * What ServerMetrics shows over JMX, e.g. in JConsole under Server:type=Metrics.
+ * Counters run from server start; latencies are in milliseconds.
+ */
+
+
+public interface ServerMetricsMBean {
+    int getActiveConnections();
+
+    int getRegisteredClients();
+
+    long getConnectionsAccepted();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getFileBytesIn();
+
+    long getFileBytesOut();
+
+    long getBroadcastQueueDepth();
+
+    long getOutboundQueuedBytes();
+
+    long getFileCacheHits();
+
+    long getFileCacheMisses();
+
+    double getFileCacheHitRatio();
+
+    long getFileCacheEvictions();
+
+    /**
+     * File contents currently held by the cache (see FileCache).
+     */
+    long getFileCacheBytes();
+
+    /**
+     * Group commit rounds of the disk threads (see DiskIo), and the uploads
+     * they made durable between them.
+     */
+    long getDiskCommitRounds();
+
+    long getDiskCommittedFiles();
+
+    /**
+     * One line per command that has been used: count, mean and percentiles.
+     */
+    String[] getCommandLatencies();
+
+    double getLatencyPercentile(String command, double percentile);
+
+    /**
+     * Everything above as text, the same as the /stats command replies with.
+     */
+    String getSnapshot();
+}
@@ -0,0 +1,137 @@
+/**
+ * Compares the server's I/O modes under many idle connections.
+ *
+ * To run open CMD and input    javac *.java
+ *
+ * Afterwards, input            java ThreadModeBenchmark [mode] [connections...]
+ * e.g.                         java ThreadModeBenchmark VIRTUAL_THREADS 1000 10000 50000
+ *
+ * Every connection is held open by this process too, so raise the open file
+ * limit (ulimit -n) to at least twice the largest connection count first.
+ */
+
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class ThreadModeBenchmark {
+    private static final int BASE_PORT = 23000;
+    private static final int LATENCY_SAMPLES = 2000;
+
+    public static void main(String[] args) throws Exception {
+        Server.IoMode[] modes = args.length > 0
+                ? new Server.IoMode[] { Server.IoMode.valueOf(args[0]) }
+                : new Server.IoMode[] { Server.IoMode.THREAD_PER_CLIENT, Server.IoMode.VIRTUAL_THREADS };
+        int[] counts = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[] { 1000, 10000, 50000 };
+
+        System.out.printf("%-18s %8s %10s %10s %8s %10s %10s %10s%n",
+                "mode", "conns", "heap MB", "rss MB", "threads", "p50 us", "p99 us", "max us");
+        int port = BASE_PORT;
+        for (Server.IoMode mode : modes) {
+            for (int count : counts) {
+                run(mode, count, port++);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(Server.IoMode mode, int count, int port) throws Exception {
+        Server server = new Server(port, null, mode);
+        server.start();
+
+        List<SocketChannel> connections = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                connections.add(SocketChannel.open(new InetSocketAddress("127.0.0.1", port)));
+            }
+        } catch (IOException e) {
+            System.out.println(mode + ": only opened " + connections.size() + " of " + count
+                    + " connections (" + e.getMessage() + ")");
+        }
+
+        // Every handler must have answered once before memory is sampled, so the
+        // per-connection state is fully allocated.
+        for (SocketChannel connection : connections) {
+            roundTrip(connection);
+        }
+        System.gc();
+        long heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        long rss = residentSetSize();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        Random random = new Random(42);
+        long[] latencies = new long[Math.min(LATENCY_SAMPLES, connections.size())];
+        for (int i = 0; i < latencies.length; i++) {
+            SocketChannel connection = connections.get(random.nextInt(connections.size()));
+            long start = System.nanoTime();
+            roundTrip(connection);
+            latencies[i] = (System.nanoTime() - start) / 1000;
+        }
+        Arrays.sort(latencies);
+
+        System.out.printf("%-18s %8d %10d %10s %8d %10d %10d %10d%n",
+                mode, connections.size(), heap >> 20, rss < 0 ? "n/a" : String.valueOf(rss >> 20), threads,
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 1.0));
+
+        for (SocketChannel connection : connections) {
+            connection.close();
+        }
+        server.stop();
+    }
+
+    /**
+     * Sends a command with a single-line reply and waits for the whole line.
+     */
+    private static void roundTrip(SocketChannel connection) throws IOException {
+        connection.write(ByteBuffer.wrap("/join bench 0\n".getBytes(StandardCharsets.UTF_8)));
+        ByteBuffer reply = ByteBuffer.allocate(256);
+        while (true) {
+            if (connection.read(reply) < 0) {
+                throw new IOException("Server closed the connection.");
+            }
+            if (reply.position() > 0 && reply.get(reply.position() - 1) == '\n') {
+                return;
+            }
+        }
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * Resident memory of this process, which unlike the heap includes the native
+     * stacks of platform threads. Returns -1 where /proc is not available.
+     */
+    private static long residentSetSize() {
+        Path status = Paths.get("/proc/self/status");
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    String kb = line.substring(6).trim().split("\\s+")[0];
+                    return Long.parseLong(kb) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux, fall through.
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Token bucket that shapes transfer bandwidth, in bytes per second.
+ *
+ * The bucket refills continuously and holds at most one second's worth of
+ * tokens (never less than MIN_BURST), so an idle connection can burst briefly
+ * before settling at the rate. take() never blocks: it grants what is there,
+ * and delayNanos() says how long until asking again is worthwhile. A rate of
+ * UNLIMITED grants everything, and the rate can be changed at any time.
+ */
+
+
+public class TokenBucket {
+    public static final long UNLIMITED = 0;
+    private static final long MIN_BURST = 64 * 1024;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private volatile long rate;
+    // Guarded by this.
+    private double tokens;
+    private long refilled = System.nanoTime();
+
+    public TokenBucket(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+        tokens = burst();
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        rate = Math.max(UNLIMITED, bytesPerSecond);
+        tokens = Math.min(tokens, burst());
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public boolean isUnlimited() {
+        return rate == UNLIMITED;
+    }
+
+    /**
+     * Takes up to wanted tokens and returns how many were granted.
+     */
+    public long take(long wanted) {
+        if (rate == UNLIMITED) {
+            return wanted;
+        }
+        synchronized (this) {
+            refill();
+            long granted = Math.min(wanted, (long) tokens);
+            tokens -= granted;
+            return granted;
+        }
+    }
+
+    /**
+     * Returns tokens that were granted but not used, such as when the socket
+     * took less than was asked for.
+     */
+    public void giveBack(long unused) {
+        if (unused <= 0 || rate == UNLIMITED) {
+            return;
+        }
+        synchronized (this) {
+            tokens = Math.min(tokens + unused, burst());
+        }
+    }
+
+    /**
+     * How long until wanted tokens, or a full bucket if that is less, will be
+     * available. Zero if they already are.
+     */
+    public long delayNanos(long wanted) {
+        long current = rate;
+        if (current == UNLIMITED) {
+            return 0;
+        }
+        synchronized (this) {
+            refill();
+            double missing = Math.min(wanted, burst()) - tokens;
+            return missing <= 0 ? 0 : (long) Math.ceil(missing * NANOS_PER_SECOND / current);
+        }
+    }
+
+    /**
+     * Takes from two buckets at once, granting what both allow.
+     */
+    public static long take(TokenBucket first, TokenBucket second, long wanted) {
+        long granted = first.take(wanted);
+        long both = second.take(granted);
+        first.giveBack(granted - both);
+        return both;
+    }
+
+    public static void giveBack(TokenBucket first, TokenBucket second, long unused) {
+        first.giveBack(unused);
+        second.giveBack(unused);
+    }
+
+    public static long delayNanos(TokenBucket first, TokenBucket second, long wanted) {
+        return Math.max(first.delayNanos(wanted), second.delayNanos(wanted));
+    }
+
+    private long burst() {
+        return Math.max(MIN_BURST, rate);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long current = rate;
+        if (current != UNLIMITED) {
+            tokens = Math.min(burst(), tokens + (double) (now - refilled) * current / NANOS_PER_SECOND);
+        }
+        refilled = now;
+    }
+}
@@ -0,0 +1,318 @@
+/**
+ * Optional Deflate compression of file bodies sent with /store and /get.
+ *
+ * A client that sends NEGOTIATE and gets ACCEPTED back may receive compressed
+ * downloads and send compressed uploads on that connection; anything else
+ * (an older server answers "Error: Command not found.") means bodies stay raw.
+ * Each transfer decides on its own: the sender compresses the first block as
+ * a sample and only compresses the transfer if that block shrinks enough, so
+ * archives and images go out raw without spending CPU on them.
+ *
+ * Compressed body:  block...   where block = int length | length bytes of Deflate
+ *
+ * Every block but the last holds exactly BLOCK_SIZE raw bytes and ends with a
+ * sync flush, so each block can be inflated as soon as it arrives and a
+ * receiver that rejects the transfer can skip the body without inflating it.
+ * Blocks of one transfer share a single Deflate stream, primed with DICTIONARY.
+ */
+
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public final class TransferCompression {
+    public static final String NEGOTIATE = "/compress deflate";
+    public static final String ACCEPTED = "Compression deflate";
+    /** Marks a compressed body in "/store" commands and "/file" headers. */
+    public static final String ENCODING = "deflate";
+
+    public static final int BLOCK_SIZE = 64 * 1024;
+    /** Upper bound on a compressed block, including incompressible data. */
+    public static final int MAX_BLOCK_LENGTH = BLOCK_SIZE + BLOCK_SIZE / 100 + 1024;
+    /** A sample must shrink to at most this fraction of its size to be worth it. */
+    private static final double MAX_USEFUL_RATIO = 0.9;
+
+    /**
+     * Preset dictionary of strings common in the logs and CSV files we move, so
+     * that even the first block compresses well. Deflate looks for matches at
+     * the end of the dictionary first, so the most common strings come last.
+     */
+    private static final byte[] DICTIONARY = (
+            "\"id\",\"name\",\"value\",\"timestamp\",\"status\",\"type\",\"count\",\"total\","
+            + "true,false,null,NULL,N/A,,\r\n"
+            + "Exception in thread \"main\" java.lang.NullPointerException\n\tat java.base/\n"
+            + "Caused by: java.io.IOException: Connection reset\n\t... more\n"
+            + "GET /index.html HTTP/1.1\" 200 \"Mozilla/5.0 (Windows NT 10.0; Win64; x64)\" "
+            + "POST /api/ HTTP/1.1\" 404 - https://http://www..com/\n"
+            + "[main] [pool-1-thread-1] org.apache. com.example. "
+            + "Jan Feb Mar Apr May Jun Jul Aug Sep Oct Nov Dec Mon Tue Wed Thu Fri Sat Sun "
+            + "UTC +0000 GMT 2024-01-01T00:00:00.000Z 2025- 2026- "
+            + " TRACE  DEBUG  FINE  NOTICE  SEVERE  FATAL  WARNING  WARN  ERROR  INFO "
+            + "0,1,2,3,4,5,6,7,8,9,10,0.0,1.0,100,1000,\n"
+            ).getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final ConcurrentLinkedQueue<Encoder> ENCODERS = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Decoder> DECODERS = new ConcurrentLinkedQueue<>();
+
+    private TransferCompression() {
+    }
+
+    /**
+     * Compresses the sample (the transfer's first block) and says whether the
+     * transfer is worth compressing. The sample's position is not changed.
+     */
+    public static boolean worthCompressing(ByteBuffer sample) {
+        if (!sample.hasRemaining()) {
+            return false;
+        }
+        Encoder encoder = Encoder.acquire();
+        try {
+            int compressed = encoder.encode(sample.duplicate()).remaining() - 4;
+            return compressed <= sample.remaining() * MAX_USEFUL_RATIO;
+        } finally {
+            encoder.release();
+        }
+    }
+
+    /**
+     * The raw length of the next block of a transfer that has rawRemaining bytes left.
+     */
+    public static int blockLength(long rawRemaining) {
+        return (int) Math.min(BLOCK_SIZE, rawRemaining);
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Compresses the blocks of one transfer. Encoders keep a Deflater and an
+     * output buffer and go back to a pool after each transfer, since a Deflater
+     * is costly to set up.
+     */
+    public static class Encoder {
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private final byte[] output = new byte[4 + MAX_BLOCK_LENGTH];
+        private final TransferStats stats = new TransferStats();
+
+        private Encoder() {
+            deflater.setDictionary(DICTIONARY);
+        }
+
+        public static Encoder acquire() {
+            Encoder encoder = ENCODERS.poll();
+            return encoder != null ? encoder : new Encoder();
+        }
+
+        /**
+         * Resets the encoder and returns it to the pool. It must not be used afterwards.
+         */
+        public void release() {
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            stats.reset();
+            ENCODERS.offer(this);
+        }
+
+        /**
+         * Compresses one block of raw bytes and returns it with its length prefix.
+         * The returned buffer is reused by the next call, so write it out first.
+         */
+        public ByteBuffer encode(ByteBuffer raw) {
+            long start = cpuTime();
+            int rawLength = raw.remaining();
+            deflater.setInput(raw);
+            // The output has room for a whole block even if it does not compress,
+            // so one sync flush drains everything.
+            int length = deflater.deflate(output, 4, MAX_BLOCK_LENGTH, Deflater.SYNC_FLUSH);
+            if (!deflater.needsInput() || length == MAX_BLOCK_LENGTH) {
+                throw new IllegalStateException("Block of " + rawLength + " bytes did not fit after compression.");
+            }
+            ByteBuffer block = ByteBuffer.wrap(output, 0, 4 + length);
+            block.putInt(0, length);
+            stats.add(rawLength, 4 + length, cpuTime() - start);
+            return block;
+        }
+
+        public TransferStats getStats() {
+            return stats;
+        }
+    }
+
+    /**
+     * Inflates the blocks of one transfer, either pushed in as they arrive with
+     * feed() or one complete block at a time with inflateBlock().
+     */
+    public static class Decoder {
+        private final Inflater inflater = new Inflater();
+        private final byte[] block = new byte[MAX_BLOCK_LENGTH];
+        private final byte[] raw = new byte[BLOCK_SIZE];
+        private final ByteBuffer header = ByteBuffer.allocate(4);
+        private final TransferStats stats = new TransferStats();
+        private long rawRemaining;
+        private int pendingLength = -1;
+        private int blockFilled;
+        private boolean discard;
+
+        private Decoder() {
+        }
+
+        /**
+         * A decoder for a body that inflates to rawLength bytes. With discard the
+         * blocks are skipped without being inflated.
+         */
+        public static Decoder acquire(long rawLength, boolean discard) {
+            Decoder decoder = DECODERS.poll();
+            if (decoder == null) {
+                decoder = new Decoder();
+            }
+            decoder.rawRemaining = rawLength;
+            decoder.discard = discard;
+            return decoder;
+        }
+
+        public void release() {
+            inflater.reset();
+            header.clear();
+            pendingLength = -1;
+            blockFilled = 0;
+            stats.reset();
+            DECODERS.offer(this);
+        }
+
+        public boolean isComplete() {
+            return rawRemaining == 0;
+        }
+
+        /**
+         * Receives raw bytes as they are inflated.
+         */
+        public interface Sink {
+            void accept(ByteBuffer raw) throws IOException;
+        }
+
+        /**
+         * Takes compressed bytes from source, but never more than the body has,
+         * and passes each completed block's raw bytes to sink.
+         */
+        public void feed(ByteBuffer source, Sink sink) throws IOException {
+            while (source.hasRemaining() && rawRemaining > 0) {
+                if (pendingLength < 0) {
+                    while (header.hasRemaining() && source.hasRemaining()) {
+                        header.put(source.get());
+                    }
+                    if (header.hasRemaining()) {
+                        return;
+                    }
+                    pendingLength = header.getInt(0);
+                    header.clear();
+                    if (pendingLength < 0 || pendingLength > MAX_BLOCK_LENGTH) {
+                        throw new IOException("Compressed block is too large.");
+                    }
+                }
+
+                int count = Math.min(source.remaining(), pendingLength - blockFilled);
+                source.get(block, blockFilled, count);
+                blockFilled += count;
+                if (blockFilled == pendingLength) {
+                    int length = pendingLength;
+                    pendingLength = -1;
+                    blockFilled = 0;
+                    if (discard) {
+                        rawRemaining -= blockLength(rawRemaining);
+                    } else {
+                        sink.accept(inflateBlock(block, length));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Inflates one complete block, without its length prefix. The returned
+         * buffer is reused by the next call.
+         */
+        public ByteBuffer inflateBlock(byte[] compressed, int length) throws IOException {
+            long start = cpuTime();
+            int expected = blockLength(rawRemaining);
+            inflater.setInput(compressed, 0, length);
+            int produced = 0;
+            try {
+                while (produced < expected) {
+                    int count = inflater.inflate(raw, produced, expected - produced);
+                    if (count == 0) {
+                        if (inflater.needsDictionary()) {
+                            inflater.setDictionary(DICTIONARY);
+                        } else if (inflater.needsInput() || inflater.finished()) {
+                            break;
+                        }
+                    }
+                    produced += count;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed block: " + e.getMessage());
+            }
+            if (produced != expected || inflater.getRemaining() > 0) {
+                throw new IOException("Compressed block does not match its expected size.");
+            }
+            rawRemaining -= produced;
+            stats.add(produced, 4 + length, cpuTime() - start);
+            return ByteBuffer.wrap(raw, 0, produced);
+        }
+
+        public TransferStats getStats() {
+            return stats;
+        }
+    }
+
+    /**
+     * Raw and on-the-wire byte counts of one transfer and the CPU time spent
+     * compressing or inflating it.
+     */
+    public static class TransferStats {
+        private long rawBytes;
+        private long wireBytes;
+        private long cpuNanos;
+
+        void add(long raw, long wire, long cpu) {
+            rawBytes += raw;
+            wireBytes += wire;
+            cpuNanos += cpu;
+        }
+
+        void reset() {
+            rawBytes = 0;
+            wireBytes = 0;
+            cpuNanos = 0;
+        }
+
+        public long getRawBytes() {
+            return rawBytes;
+        }
+
+        public long getWireBytes() {
+            return wireBytes;
+        }
+
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        public double getRatio() {
+            return wireBytes == 0 ? 1 : (double) rawBytes / wireBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d -> %d bytes (%.1fx), %d ms CPU", rawBytes, wireBytes, getRatio(),
+                    cpuNanos / 1_000_000);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Binary framing shared by Server and Client.
+ *
+ * A connection starts in the text protocol. A client that sends NEGOTIATE and
+ * gets ACCEPTED back switches to frames for the rest of the connection; anything
+ * else (an older server answers "Error: Command not found.") means it stays on text.
+ *
+ * Frame:   int length | byte opcode | fields...     (length counts opcode + fields)
+ * String:  unsigned short length | UTF-8 bytes
+ * Long:    8 bytes, big endian
+ *
+ * File bodies after a "/store <name> <size>" command or a FILE frame are sent raw,
+ * outside of any frame, exactly as in the text protocol.
+ */
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class WireProtocol {
+    public static final int VERSION = 1;
+    public static final String NEGOTIATE = "/protocol binary " + VERSION;
+    public static final String ACCEPTED = "Protocol binary " + VERSION;
+
+    public static final int HEADER_LENGTH = 4;
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+    public static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    // Client to server.
+    /** A text command line that has no opcode of its own: [line]. */
+    public static final byte OP_COMMAND = 1;
+    /** [message] */
+    public static final byte OP_BROADCAST = 2;
+    /** [target handle][message] */
+    public static final byte OP_UNICAST = 3;
+
+    // Server to client.
+    /** A reply line, the same text the text protocol would send: [line]. */
+    public static final byte OP_TEXT = 16;
+    /** [sender handle][message] */
+    public static final byte OP_BROADCAST_FROM = 17;
+    /** [sender handle][message] */
+    public static final byte OP_UNICAST_FROM = 18;
+    /** [filename][offset][length], followed by length raw bytes. */
+    public static final byte OP_FILE = 19;
+    /** As OP_FILE, but the body is compressed (see TransferCompression). */
+    public static final byte OP_FILE_DEFLATE = 20;
+
+    private WireProtocol() {
+    }
+
+    /**
+     * Returns the total size of the frame at the buffer's position, including the
+     * length header, or -1 if the header itself has not fully arrived yet.
+     */
+    public static int frameSize(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return -1;
+        }
+        return HEADER_LENGTH + buffer.getInt(buffer.position());
+    }
+
+    public static ByteBuffer stringFrame(byte opcode, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + 1 + 2 + bytes.length);
+        frame.putInt(frame.capacity() - HEADER_LENGTH).put(opcode);
+        putString(frame, bytes);
+        return frame.flip();
+    }
+
+    public static ByteBuffer broadcastFrame(String message) {
+        return stringFrame(OP_BROADCAST, message);
+    }
+
+    public static ByteBuffer unicastFrame(String target, String message) {
+        byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + 1 + 2 + targetBytes.length + 2 + messageBytes.length);
+        frame.putInt(frame.capacity() - HEADER_LENGTH).put(OP_UNICAST);
+        putString(frame, targetBytes);
+        putString(frame, messageBytes);
+        return frame.flip();
+    }
+
+    /**
+     * Builds an OP_BROADCAST_FROM or OP_UNICAST_FROM frame from already encoded
+     * fields, without going through a String.
+     */
+    public static ByteBuffer deliveryFrame(byte opcode, byte[] sender, ByteBuffer message) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + 1 + 2 + sender.length + 2 + message.remaining());
+        frame.putInt(frame.capacity() - HEADER_LENGTH).put(opcode);
+        putString(frame, sender);
+        frame.putShort((short) message.remaining()).put(message.duplicate());
+        return frame.flip();
+    }
+
+    public static ByteBuffer fileFrame(String filename, long offset, long length) {
+        return fileFrame(OP_FILE, filename, offset, length);
+    }
+
+    public static ByteBuffer fileFrame(byte opcode, String filename, long offset, long length) {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + 1 + 2 + name.length + 8 + 8);
+        frame.putInt(frame.capacity() - HEADER_LENGTH).put(opcode);
+        putString(frame, name);
+        frame.putLong(offset).putLong(length);
+        return frame.flip();
+    }
+
+    /**
+     * Turns a line typed by the user into a frame. Chat commands get their own
+     * opcodes; everything else is carried verbatim in an OP_COMMAND frame.
+     */
+    public static ByteBuffer encodeCommand(String line) {
+        if (line.startsWith("/broadcast ")) {
+            return broadcastFrame(line.substring("/broadcast ".length()));
+        }
+        if (line.startsWith("/unicast ")) {
+            int split = line.indexOf(' ', "/unicast ".length());
+            if (split > 0) {
+                return unicastFrame(line.substring("/unicast ".length(), split), line.substring(split + 1));
+            }
+        }
+        return stringFrame(OP_COMMAND, line);
+    }
+
+    public static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes.length > MAX_STRING_LENGTH) {
+            throw new IllegalArgumentException("Field is longer than " + MAX_STRING_LENGTH + " bytes.");
+        }
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    /**
+     * Returns a view of the next string field and advances past it. The view
+     * shares the frame's memory, so nothing is copied or decoded.
+     */
+    public static ByteBuffer getStringView(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("Field runs past the end of the frame.");
+        }
+        ByteBuffer view = buffer.slice();
+        view.limit(length);
+        buffer.position(buffer.position() + length);
+        return view;
+    }
+
+    public static String getString(ByteBuffer buffer) {
+        return decode(getStringView(buffer));
+    }
+
+    public static String decode(ByteBuffer view) {
+        return StandardCharsets.UTF_8.decode(view.duplicate()).toString();
+    }
+}
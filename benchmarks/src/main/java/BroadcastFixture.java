@@ -0,0 +1,52 @@
+/**
+ * A server with a number of registered clients, the first of which sends the
+ * broadcasts. See bench.BroadcastBenchmark.
+ */
+
+
+import java.io.IOException;
+
+public class BroadcastFixture implements bench.Fixtures.Broadcast {
+    private static final String BROADCAST = "/broadcast the quick brown fox jumps over the lazy dog";
+
+    private final Server server;
+    private final LoopbackClients clients;
+    private final Server.ClientHandler sender;
+    private final int clientCount;
+    private long expectedLines;
+
+    public BroadcastFixture(int clientCount) throws IOException {
+        this.clientCount = clientCount;
+        server = new Server(0, null);
+        clients = new LoopbackClients(true);
+        Server.ClientHandler first = null;
+        for (int i = 0; i < clientCount; i++) {
+            Server.ClientHandler handler = server.new ClientHandler(clients.open());
+            handler.processCommand("/register user" + i);
+            if (first == null) {
+                first = handler;
+            }
+        }
+        sender = first;
+        // One welcome line each.
+        expectedLines = clientCount;
+        clients.awaitLines(expectedLines);
+    }
+
+    @Override
+    public void broadcastAndWait() {
+        // The sender receives its own broadcast too.
+        expectedLines += clientCount;
+        sender.processCommand(BROADCAST);
+        clients.awaitLines(expectedLines);
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop();
+        clients.close();
+        for (int i = 0; i < clientCount; i++) {
+            LoopbackClients.deleteClientFolder("user" + i);
+        }
+    }
+}
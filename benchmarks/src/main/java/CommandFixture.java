@@ -0,0 +1,35 @@
+/**
+ * A server with two registered clients, "bench" and "other", where commands
+ * from bench are passed straight to its handler's processCommand(). See
+ * bench.CommandBenchmark.
+ */
+
+
+import java.io.IOException;
+
+public class CommandFixture implements bench.Fixtures.Commands {
+    private final Server server;
+    private final LoopbackClients clients;
+    private final Server.ClientHandler handler;
+
+    public CommandFixture() throws IOException {
+        server = new Server(0, null);
+        clients = new LoopbackClients(false);
+        handler = server.new ClientHandler(clients.open());
+        handler.processCommand("/register bench");
+        server.new ClientHandler(clients.open()).processCommand("/register other");
+    }
+
+    @Override
+    public void process(String command) {
+        handler.processCommand(command);
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop();
+        clients.close();
+        LoopbackClients.deleteClientFolder("bench");
+        LoopbackClients.deleteClientFolder("other");
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Client connections for the benchmark fixtures. Each is a pair of connected
+ * loopback sockets: open() returns the server's end, to hand to a
+ * Server.ClientHandler, and one background thread reads every client end,
+ * throwing the bytes away but counting them, and optionally the lines among
+ * them, so a benchmark can wait for its output to arrive.
+ */
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+class LoopbackClients implements Closeable {
+    private final ServerSocketChannel listener;
+    private final Selector selector;
+    private final boolean countLines;
+    private final Queue<SocketChannel> newClients = new ConcurrentLinkedQueue<>();
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong lines = new AtomicLong();
+    private final Thread reader;
+    private volatile boolean running = true;
+
+    /**
+     * Counting lines means looking at every byte, so leave it off when only
+     * byte counts are needed for large transfers.
+     */
+    LoopbackClients(boolean countLines) throws IOException {
+        this.countLines = countLines;
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        selector = Selector.open();
+        reader = new Thread(this::read, "loopback-clients");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Connects a new client and returns the server's end of the connection,
+     * in blocking mode like a connection accepted by Server.
+     */
+    SocketChannel open() throws IOException {
+        SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel server = listener.accept();
+        client.configureBlocking(false);
+        channels.add(client);
+        channels.add(server);
+        newClients.add(client);
+        selector.wakeup();
+        return server;
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    long lines() {
+        return lines.get();
+    }
+
+    /**
+     * Waits until at least count bytes have arrived over all connections.
+     */
+    void awaitBytes(long count) {
+        while (bytes.get() < count) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Waits until at least count lines have arrived over all connections.
+     */
+    void awaitLines(long count) {
+        while (lines.get() < count) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Deletes the folder the server creates for a handle when it registers.
+     */
+    static void deleteClientFolder(String handle) throws IOException {
+        Path folder = Paths.get(handle + "_files");
+        if (!Files.exists(folder)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    private void read() {
+        ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+        byte[] array = buffer.array();
+        try {
+            while (running) {
+                selector.select();
+                SocketChannel client;
+                while ((client = newClients.poll()) != null) {
+                    client.register(selector, SelectionKey.OP_READ);
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    buffer.clear();
+                    int read = ((SocketChannel) key.channel()).read(buffer);
+                    if (read < 0) {
+                        key.cancel();
+                        continue;
+                    }
+                    if (countLines) {
+                        int newlines = 0;
+                        for (int i = 0; i < read; i++) {
+                            if (array[i] == '\n') {
+                                newlines++;
+                            }
+                        }
+                        lines.addAndGet(newlines);
+                    }
+                    bytes.addAndGet(read);
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            // Closed.
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        listener.close();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        selector.close();
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * A ClientRegistry filled with handles user0, user1, ... See
+ * bench.RegistryContentionBenchmark.
+ */
+
+
+public class RegistryFixture implements bench.Fixtures.Registry {
+    private final ClientRegistry<Object> registry;
+    private final String[] names;
+
+    public RegistryFixture(int handles) {
+        registry = new ClientRegistry<>(handles);
+        names = new String[handles];
+        for (int i = 0; i < handles; i++) {
+            names[i] = "user" + i;
+            registry.claim(names[i], new Object());
+        }
+    }
+
+    @Override
+    public Object get(int index) {
+        return registry.get(names[index]);
+    }
+
+    @Override
+    public boolean churn(int index, Object client) {
+        String handle = names[index];
+        Object previous = registry.get(handle);
+        return previous != null && registry.release(handle, previous) && registry.claim(handle, client);
+    }
+
+    @Override
+    public int fanOut() {
+        int count = 0;
+        for (Object client : registry.values()) {
+            if (client != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * A server with one file of a given size and a registered client "bench" that
+ * fetches it. See bench.TransferBenchmark.
+ */
+
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class TransferFixture implements bench.Fixtures.Transfer {
+    private static final String HANDLE = "bench";
+    private static final String FILENAME = "transfer-benchmark.bin";
+
+    private final Server server;
+    private final LoopbackClients clients;
+    private final Server.ClientHandler handler;
+    private final Path file;
+    private final long streamedBytes;
+    private long expectedBytes;
+
+    public TransferFixture(int size) throws IOException {
+        server = new Server(0, null);
+        // Written after the server has started, so its store does not hash it
+        // up front; the contents do not matter.
+        file = Paths.get("server_files", FILENAME);
+        Files.write(file, new byte[size]);
+
+        clients = new LoopbackClients(false);
+        handler = server.new ClientHandler(clients.open());
+        handler.processCommand("/register " + HANDLE);
+        expectedBytes = replyLength("Welcome " + HANDLE + "!");
+        clients.awaitBytes(expectedBytes);
+
+        String done = "File received from Server: " + FILENAME;
+        streamedBytes = replyLength("/file " + FILENAME + " 0 " + size) + size + replyLength(done);
+    }
+
+    private static long replyLength(String line) {
+        return (line + System.lineSeparator()).getBytes(Charset.defaultCharset()).length;
+    }
+
+    @Override
+    public void copy() {
+        expectedBytes += replyLength("File received from Server: " + FILENAME);
+        handler.processCommand("/get " + FILENAME);
+        // Only the reply line is sent, so this rarely waits.
+        clients.awaitBytes(expectedBytes);
+    }
+
+    @Override
+    public void stream() {
+        expectedBytes += streamedBytes;
+        handler.processCommand("/get " + FILENAME + " 0");
+        clients.awaitBytes(expectedBytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop();
+        clients.close();
+        Files.deleteIfExists(file);
+        LoopbackClients.deleteClientFolder(HANDLE);
+    }
+}
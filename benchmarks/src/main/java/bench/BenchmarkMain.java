@@ -0,0 +1,80 @@
+/**
+ * Entry point of benchmarks.jar. Takes the usual JMH command line, e.g.
+ *
+ *     java -jar benchmarks/target/benchmarks.jar Broadcast -p clients=100
+ *
+ * but unless -rf or -rff is given, results are written as JSON to
+ * jmh-results/<commit>.json, named after the checked out git commit (with
+ * "-dirty" if there are uncommitted changes), so runs on two commits can be
+ * compared side by side, e.g. with https://jmh.morethan.io.
+ */
+
+
+package bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class BenchmarkMain {
+    private static final Path RESULTS_DIRECTORY = Paths.get("jmh-results");
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (!commandLine.getResultFormat().hasValue() && !commandLine.getResult().hasValue()) {
+            Files.createDirectories(RESULTS_DIRECTORY);
+            Path result = RESULTS_DIRECTORY.resolve(runName() + ".json");
+            options.resultFormat(ResultFormatType.JSON).result(result.toString());
+            System.out.println("Results will be written to " + result);
+        }
+        new Runner(options.build()).run();
+    }
+
+    /**
+     * The short commit hash, or the time if this is not a git checkout.
+     */
+    private static String runName() {
+        String commit = git("rev-parse", "--short", "HEAD");
+        if (commit == null || commit.isEmpty()) {
+            return new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        }
+        String changes = git("status", "--porcelain", "--untracked-files=no");
+        return changes == null || changes.isEmpty() ? commit : commit + "-dirty";
+    }
+
+    private static String git(String... args) {
+        String[] command = new String[args.length + 1];
+        command[0] = "git";
+        System.arraycopy(args, 0, command, 1, args.length);
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            StringBuilder output = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.append(line).append('\n');
+                }
+            }
+            return process.waitFor() == 0 ? output.toString().trim() : null;
+        } catch (IOException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
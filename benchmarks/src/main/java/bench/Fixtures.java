@@ -0,0 +1,89 @@
+/**
+ * What the benchmarks in this package need from the server, and how they get it.
+ *
+ * JMH will not generate code for benchmark classes in the default package, and
+ * a class in a named package cannot refer to the server's default-package
+ * classes at all. So each benchmark works through one of the interfaces below,
+ * implemented by a fixture class in the default package of this module (see
+ * CommandFixture and friends) that uses the server classes directly. Fixtures
+ * are created reflectively once per trial; the measured calls are plain
+ * interface calls, which the JIT inlines like any other.
+ */
+
+
+package bench;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+public final class Fixtures {
+
+    /**
+     * A registered client whose commands go straight to the server's handler.
+     */
+    public interface Commands extends AutoCloseable {
+        void process(String command);
+    }
+
+    /**
+     * Registered clients that all receive each broadcast.
+     */
+    public interface Broadcast extends AutoCloseable {
+        /**
+         * Broadcasts one message and returns once every client has received it.
+         */
+        void broadcastAndWait();
+    }
+
+    /**
+     * A file of a fixed size in server_files and a client to fetch it.
+     */
+    public interface Transfer extends AutoCloseable {
+        /**
+         * The original /get: the server copies the file into the handle's folder.
+         */
+        void copy();
+
+        /**
+         * /get with an offset: the file is streamed over the connection. Returns
+         * once the client has read all of it.
+         */
+        void stream();
+    }
+
+    /**
+     * A ClientRegistry filled with handles, addressed by index.
+     */
+    public interface Registry {
+        Object get(int index);
+
+        /**
+         * What a reconnect does: releases the handle and claims it for client.
+         */
+        boolean churn(int index, Object client);
+
+        /**
+         * Walks every registered client, as a broadcast does.
+         */
+        int fanOut();
+    }
+
+    private Fixtures() {
+    }
+
+    /**
+     * Creates the default-package class className, passing args to its only
+     * public constructor.
+     */
+    public static <T> T create(Class<T> type, String className, Object... args) throws Exception {
+        Constructor<?> constructor = Class.forName(className).getConstructors()[0];
+        try {
+            return type.cast(constructor.newInstance(args));
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
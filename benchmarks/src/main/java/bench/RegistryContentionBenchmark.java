@@ -0,0 +1,72 @@
+/**
+ * ClientRegistry under the server's mix of traffic, run as one JMH group:
+ * three threads looking handles up (unicasts), one releasing and reclaiming
+ * handles (reconnects) and one walking every client (broadcasts). Each
+ * thread's score is reported separately. The plain-Java RegistryBenchmark in
+ * the repository root compares the same mix against a locked HashMap.
+ */
+
+
+package bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryContentionBenchmark {
+    @Param({ "1000", "100000" })
+    public int handles;
+
+    private Fixtures.Registry registry;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        registry = Fixtures.create(Fixtures.Registry.class, "RegistryFixture", handles);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        final Object self = new Object();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Object lookup() {
+        return registry.get(ThreadLocalRandom.current().nextInt(handles));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public boolean churn(Client client) {
+        return registry.churn(ThreadLocalRandom.current().nextInt(handles), client.self);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public int fanOut() {
+        return registry.fanOut();
+    }
+}